@@ -0,0 +1,14 @@
+package android.os;
+
+/**
+ * android.os.AsyncTask 的 JVM 替身，仅为满足 ExAsyncTask 文档注释中的引用
+ *
+ * @date 2016/7/8
+ */
+public abstract class AsyncTask<Params, Progress, Result> {
+
+    protected abstract Result doInBackground(Params... params);
+
+    protected void onPostExecute(Result result) {
+    }
+}
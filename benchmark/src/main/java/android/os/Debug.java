@@ -0,0 +1,26 @@
+package android.os;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * android.os.Debug 的 JVM 替身，仅供基准测试使用
+ *
+ * @date 2016/7/10
+ */
+public final class Debug {
+    private static final ThreadMXBean sThreadMXBean = ManagementFactory.getThreadMXBean();
+
+    private Debug() {
+    }
+
+    /**
+     * 当前线程的 CPU 时间（纳秒），JVM 不支持时返回 -1
+     */
+    public static long threadCpuTimeNanos() {
+        if (!sThreadMXBean.isCurrentThreadCpuTimeSupported()) {
+            return -1;
+        }
+        return sThreadMXBean.getCurrentThreadCpuTime();
+    }
+}
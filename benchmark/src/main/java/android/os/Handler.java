@@ -0,0 +1,78 @@
+package android.os;
+
+/**
+ * android.os.Handler 的 JVM 替身，仅供基准测试使用
+ * <p/>
+ * 未指定 Looper 时绑定到 {@link Looper#getMainLooper()}，消息在替身主线程上分发
+ *
+ * @date 2016/7/8
+ */
+public class Handler {
+    private final Looper mLooper;
+
+    public Handler() {
+        this(Looper.getMainLooper());
+    }
+
+    public Handler(Looper looper) {
+        mLooper = looper;
+    }
+
+    public void handleMessage(Message msg) {
+    }
+
+    public void dispatchMessage(Message msg) {
+        if (msg.callback != null) {
+            msg.callback.run();
+        } else {
+            handleMessage(msg);
+        }
+    }
+
+    public final Looper getLooper() {
+        return mLooper;
+    }
+
+    public final Message obtainMessage() {
+        return Message.obtain(this, 0, null);
+    }
+
+    public final Message obtainMessage(int what) {
+        return Message.obtain(this, what, null);
+    }
+
+    public final Message obtainMessage(int what, Object obj) {
+        return Message.obtain(this, what, obj);
+    }
+
+    public final boolean post(Runnable r) {
+        return postDelayed(r, 0);
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        Message msg = Message.obtain(this, 0, null);
+        msg.callback = r;
+        return sendMessageDelayed(msg, delayMillis);
+    }
+
+    public final boolean sendMessage(Message msg) {
+        return sendMessageDelayed(msg, 0);
+    }
+
+    public final boolean sendEmptyMessage(int what) {
+        return sendMessage(obtainMessage(what));
+    }
+
+    public final boolean sendMessageDelayed(Message msg, long delayMillis) {
+        if (delayMillis < 0) {
+            delayMillis = 0;
+        }
+        msg.target = this;
+        mLooper.enqueue(msg, SystemClock.uptimeMillis() + delayMillis);
+        return true;
+    }
+
+    public final void removeMessages(int what) {
+        mLooper.remove(this, what);
+    }
+}
@@ -0,0 +1,101 @@
+package android.os;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * android.os.Looper 的 JVM 替身，仅供基准测试使用
+ * <p/>
+ * 用一个守护线程加延时队列模拟主线程的消息循环，只实现并发框架用到的部分
+ *
+ * @date 2016/7/8
+ */
+public final class Looper {
+    private static final Looper sMainLooper = new Looper("main");
+
+    private final DelayQueue<Entry> mQueue = new DelayQueue<Entry>();
+    private final AtomicLong mSequence = new AtomicLong();
+    private final Thread mThread;
+
+    private Looper(String name) {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public static Looper getMainLooper() {
+        return sMainLooper;
+    }
+
+    public static Looper myLooper() {
+        return Thread.currentThread() == sMainLooper.mThread ? sMainLooper : null;
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    void enqueue(Message msg, long uptimeMillis) {
+        mQueue.put(new Entry(msg, TimeUnit.MILLISECONDS.toNanos(uptimeMillis),
+            mSequence.getAndIncrement()));
+    }
+
+    boolean remove(Handler h, int what) {
+        boolean removed = false;
+        for (Entry entry : mQueue) {
+            if (entry.mMessage.target == h && entry.mMessage.what == what) {
+                removed |= mQueue.remove(entry);
+            }
+        }
+        return removed;
+    }
+
+    private void loop() {
+        for (; ; ) {
+            Message msg;
+            try {
+                msg = mQueue.take().mMessage;
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                msg.target.dispatchMessage(msg);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
+    }
+
+    private static final class Entry implements Delayed {
+        final Message mMessage;
+        final long mWhen;
+        final long mSeq;
+
+        Entry(Message message, long when, long seq) {
+            mMessage = message;
+            mWhen = when;
+            mSeq = seq;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mWhen - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            Entry other = (Entry) o;
+            if (mWhen != other.mWhen) {
+                return mWhen < other.mWhen ? -1 : 1;
+            }
+            return mSeq < other.mSeq ? -1 : mSeq > other.mSeq ? 1 : 0;
+        }
+    }
+}
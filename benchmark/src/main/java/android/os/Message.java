@@ -0,0 +1,38 @@
+package android.os;
+
+/**
+ * android.os.Message 的 JVM 替身，仅供基准测试使用
+ *
+ * @date 2016/7/8
+ */
+public final class Message {
+    public int what;
+    public int arg1;
+    public int arg2;
+    public Object obj;
+    Handler target;
+    Runnable callback;
+
+    public Message() {
+    }
+
+    public static Message obtain() {
+        return new Message();
+    }
+
+    public static Message obtain(Handler h, int what, Object obj) {
+        Message m = new Message();
+        m.target = h;
+        m.what = what;
+        m.obj = obj;
+        return m;
+    }
+
+    public Handler getTarget() {
+        return target;
+    }
+
+    public void sendToTarget() {
+        target.sendMessage(this);
+    }
+}
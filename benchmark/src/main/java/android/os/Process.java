@@ -0,0 +1,32 @@
+package android.os;
+
+/**
+ * android.os.Process 的 JVM 替身，仅供基准测试使用
+ * <p/>
+ * setThreadPriority 在 JVM 上没有对应的 nice 值语义，这里只做记录，不修改线程
+ *
+ * @date 2016/7/8
+ */
+public class Process {
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    private static final ThreadLocal<int[]> sPriority = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[]{THREAD_PRIORITY_DEFAULT};
+        }
+    };
+
+    public static void setThreadPriority(int priority) {
+        sPriority.get()[0] = priority;
+    }
+
+    public static int getThreadPriority(int tid) {
+        return sPriority.get()[0];
+    }
+
+    public static int myTid() {
+        return (int) Thread.currentThread().getId();
+    }
+}
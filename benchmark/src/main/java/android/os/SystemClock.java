@@ -0,0 +1,22 @@
+package android.os;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * android.os.SystemClock 的 JVM 替身，仅供基准测试使用
+ *
+ * @date 2016/7/8
+ */
+public final class SystemClock {
+
+    private SystemClock() {
+    }
+
+    public static long uptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    public static long elapsedRealtime() {
+        return uptimeMillis();
+    }
+}
@@ -0,0 +1,47 @@
+package android.util;
+
+/**
+ * android.util.Log 的 JVM 替身，仅供基准测试使用
+ * <p/>
+ * 默认丢弃日志，避免输出影响测量结果；设置系统属性 concurrent.log=true 后打印到标准错误
+ *
+ * @date 2016/7/8
+ */
+public final class Log {
+    private static final boolean ENABLED = Boolean.getBoolean("concurrent.log");
+
+    private Log() {
+    }
+
+    public static int d(String tag, String msg) {
+        return println("D", tag, msg);
+    }
+
+    public static int i(String tag, String msg) {
+        return println("I", tag, msg);
+    }
+
+    public static int w(String tag, String msg) {
+        return println("W", tag, msg);
+    }
+
+    public static int e(String tag, String msg) {
+        return println("E", tag, msg);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        int n = println("E", tag, msg);
+        if (ENABLED && tr != null) {
+            tr.printStackTrace();
+        }
+        return n;
+    }
+
+    private static int println(String level, String tag, String msg) {
+        if (!ENABLED) {
+            return 0;
+        }
+        System.err.println(level + "/" + tag + ": " + msg);
+        return msg == null ? 0 : msg.length();
+    }
+}
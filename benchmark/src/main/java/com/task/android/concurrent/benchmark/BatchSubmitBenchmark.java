@@ -0,0 +1,92 @@
+package com.task.android.concurrent.benchmark;
+
+import com.task.android.concurrent.ConcurrentManager;
+import com.task.android.concurrent.Config.Business;
+import com.task.android.concurrent.Config.Priority;
+import com.task.android.concurrent.PriorityRunnable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次提交一批任务：逐个execute与executeAll的对比
+ * <p/>
+ * 每次操作提交BATCH个任务并等待全部执行完，分数按单个任务折算
+ *
+ * @date 2016/7/11
+ */
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class BatchSubmitBenchmark {
+    private static final String TAG = "BatchBenchmark";
+
+    private static final int BATCH = 32;
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+        @Param({"CPU", "HIGH_IO", "LOW_IO"})
+        public Business business;
+
+        ConcurrentManager mManager;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            mManager = ConcurrentManager.getInsance();
+            mManager.initThreadPool(business, TAG);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mManager.clearAllThreadPool();
+            ConcurrentManager.release();
+        }
+    }
+
+    /**
+     * 每个生产者线程持有自己的信号
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        final CountSignal mSignal = new CountSignal();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void executeOneByOne(Pool pool, Producer producer) {
+        producer.mSignal.arm(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            pool.mManager.execute(new PriorityRunnable(producer.mSignal,
+                PRIORITIES[i % PRIORITIES.length]), pool.business, TAG);
+        }
+        producer.mSignal.await();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void executeAll(Pool pool, Producer producer) {
+        producer.mSignal.arm(BATCH);
+        List<Runnable> batch = new ArrayList<Runnable>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            batch.add(new PriorityRunnable(producer.mSignal,
+                PRIORITIES[i % PRIORITIES.length]));
+        }
+        pool.mManager.executeAll(batch, pool.business, TAG);
+        producer.mSignal.await();
+    }
+}
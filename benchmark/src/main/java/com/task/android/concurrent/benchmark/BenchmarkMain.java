@@ -0,0 +1,58 @@
+package com.task.android.concurrent.benchmark;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基准测试入口
+ * <p/>
+ * 依次以 1、4、16、64 个生产者线程运行匹配的基准：
+ * Throughput 模式输出 ops/s，SampleTime 模式输出 p50/p99/p999 延迟（微秒）
+ * <p/>
+ * 同时挂载 GC profiler，gc.alloc.rate.norm 即每次操作（每个任务）分配的字节数
+ * <p/>
+ * 用法：java -jar benchmarks.jar [include-regex] [threads,...]
+ * <p/>
+ * 需要 JMH 的其它选项（-rf json 等）时直接使用 org.openjdk.jmh.Main
+ *
+ * @date 2016/7/8
+ */
+public class BenchmarkMain {
+    private static final int[] DEFAULT_THREADS = {1, 4, 16, 64};
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : "com\\.task\\.android\\.concurrent\\.benchmark\\..*";
+        int[] threads = args.length > 1 ? parseThreads(args[1]) : DEFAULT_THREADS;
+
+        for (int t : threads) {
+            run(include, t, Mode.Throughput, TimeUnit.SECONDS);
+            run(include, t, Mode.SampleTime, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    private static void run(String include, int threads, Mode mode, TimeUnit unit)
+        throws RunnerException {
+        ChainedOptionsBuilder builder = new OptionsBuilder()
+            .include(include)
+            .threads(threads)
+            .mode(mode)
+            .timeUnit(unit)
+            .addProfiler(GCProfiler.class);
+        new Runner(builder.build()).run();
+    }
+
+    private static int[] parseThreads(String value) {
+        String[] parts = value.split(",");
+        int[] threads = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            threads[i] = Integer.parseInt(parts[i].trim());
+        }
+        return threads;
+    }
+}
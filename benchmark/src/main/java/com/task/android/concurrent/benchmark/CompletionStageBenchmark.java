@@ -0,0 +1,110 @@
+package com.task.android.concurrent.benchmark;
+
+import com.task.android.concurrent.ConcurrentManager;
+import com.task.android.concurrent.Config.Business;
+import com.task.android.concurrent.Config.Priority;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * 三步流水线（下载 → 解码 → 写缓存）的三种写法：
+ * <p/>
+ * blockingNested：每一步提交到下一个线程池后阻塞等待 get()，中间步骤占着一个线程；
+ * stageCrossPool：CompletionStage 组合，每一步换一个线程池，只有入队没有阻塞；
+ * stageSamePool：后两步指定同一个线程池，直接在当前工作线程执行，省掉入队和唤醒
+ *
+ * @date 2016/7/12
+ */
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class CompletionStageBenchmark {
+    private static final String TAG = "StageBenchmark";
+
+    @State(Scope.Benchmark)
+    public static class Pools {
+        ConcurrentManager mManager;
+        Executor mCpu;
+        Executor mHighIo;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            mManager = ConcurrentManager.getInsance();
+            mCpu = mManager.executorFor(Business.CPU, TAG);
+            mHighIo = mManager.executorFor(Business.HIGH_IO, TAG);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mManager.clearAllThreadPool();
+            ConcurrentManager.release();
+        }
+    }
+
+    private static final Callable<Integer> DOWNLOAD = new Callable<Integer>() {
+        @Override
+        public Integer call() {
+            return 1;
+        }
+    };
+
+    private static final Function<Integer, Integer> STEP = new Function<Integer, Integer>() {
+        @Override
+        public Integer apply(Integer value) {
+            return value + 1;
+        }
+    };
+
+    @Benchmark
+    public Integer blockingNested(final Pools pools) throws Exception {
+        Future<Integer> future = pools.mManager.executeShared(new Object(),
+            new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    final Integer downloaded = DOWNLOAD.call();
+                    Future<Integer> decoded = pools.mManager.executeShared(new Object(),
+                        new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                return STEP.apply(downloaded);
+                            }
+                        }, Priority.NORM_PRIORITY, Business.CPU, TAG);
+                    return STEP.apply(decoded.get());
+                }
+            }, Priority.NORM_PRIORITY, Business.LOW_IO, TAG);
+        return future.get();
+    }
+
+    @Benchmark
+    public Integer stageCrossPool(Pools pools) throws Exception {
+        CompletionStage<Integer> stage = pools.mManager
+            .supplyAsync(DOWNLOAD, Priority.NORM_PRIORITY, Business.LOW_IO, TAG)
+            .thenApplyAsync(STEP, pools.mCpu)
+            .thenApplyAsync(STEP, pools.mHighIo);
+        return stage.toCompletableFuture().get();
+    }
+
+    @Benchmark
+    public Integer stageSamePool(Pools pools) throws Exception {
+        CompletionStage<Integer> stage = pools.mManager
+            .supplyAsync(DOWNLOAD, Priority.NORM_PRIORITY, Business.CPU, TAG)
+            .thenApplyAsync(STEP, pools.mCpu)
+            .thenApplyAsync(STEP, pools.mCpu);
+        return stage.toCompletableFuture().get();
+    }
+}
@@ -0,0 +1,124 @@
+package com.task.android.concurrent.benchmark;
+
+import com.task.android.concurrent.ConcurrentManager;
+import com.task.android.concurrent.Config.Business;
+import com.task.android.concurrent.Config.Priority;
+import com.task.android.concurrent.PriorityRunnable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConcurrentManager.execute(...) 各个重载的提交到执行完成的开销
+ * <p/>
+ * 每次操作提交一个任务并等待工作线程执行完毕，吞吐量反映提交 + 入队 + 出队 + 唤醒的整条路径，
+ * SampleTime 模式下的 p50/p99/p999 即单个任务从提交到执行的端到端延迟
+ *
+ * @date 2016/7/8
+ */
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ConcurrentManagerBenchmark {
+    private static final String TAG = "Benchmark";
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    /**
+     * 默认线程池（HIGH_IO + IMAGE_LOADER）
+     */
+    @State(Scope.Benchmark)
+    public static class DefaultPool {
+        ConcurrentManager mManager;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            mManager = ConcurrentManager.getInsance();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mManager.clearAllThreadPool();
+            ConcurrentManager.release();
+        }
+    }
+
+    /**
+     * 指定业务类型的线程池，每种 Business 各跑一遍
+     */
+    @State(Scope.Benchmark)
+    public static class TypedPool {
+        @Param({"CPU", "HIGH_IO", "LOW_IO"})
+        public Business business;
+
+        // 注册的线程池数量，提交开销不应随它增长
+        @Param({"1", "512"})
+        public int tags;
+
+        ConcurrentManager mManager;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            mManager = ConcurrentManager.getInsance();
+            // 其它tag的线程池只注册不提交任务，不会启动工作线程
+            for (int i = 1; i < tags; i++) {
+                mManager.initThreadPool(business, TAG + i);
+            }
+            mManager.initThreadPool(business, TAG);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mManager.clearAllThreadPool();
+            ConcurrentManager.release();
+        }
+    }
+
+    /**
+     * 生产者线程私有状态
+     */
+    @State(Scope.Thread)
+    public static class Producer {
+        final Signal mSignal = new Signal();
+        int mCount;
+
+        Priority nextPriority() {
+            return PRIORITIES[(mCount++ & 0x7fffffff) % PRIORITIES.length];
+        }
+    }
+
+    @Benchmark
+    public void executeRunnable(DefaultPool pool, Producer p) {
+        pool.mManager.execute(p.mSignal.arm());
+        p.mSignal.await();
+    }
+
+    @Benchmark
+    public void executePriorityRunnable(DefaultPool pool, Producer p) {
+        pool.mManager.execute(new PriorityRunnable(p.mSignal.arm(), p.nextPriority()));
+        p.mSignal.await();
+    }
+
+    @Benchmark
+    public void executeRunnableTyped(TypedPool pool, Producer p) {
+        pool.mManager.execute(p.mSignal.arm(), pool.business, TAG);
+        p.mSignal.await();
+    }
+
+    @Benchmark
+    public void executePriorityRunnableTyped(TypedPool pool, Producer p) {
+        pool.mManager.execute(new PriorityRunnable(p.mSignal.arm(), p.nextPriority()),
+            pool.business, TAG);
+        p.mSignal.await();
+    }
+}
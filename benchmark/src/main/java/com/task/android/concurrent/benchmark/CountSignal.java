@@ -0,0 +1,46 @@
+package com.task.android.concurrent.benchmark;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 可复用的计数完成信号：一批任务共享一个实例，最后一个任务执行时唤醒生产者线程
+ *
+ * @date 2016/7/11
+ */
+public final class CountSignal implements Runnable {
+    private static final int SPINS = 128;
+
+    private final AtomicInteger mRemaining = new AtomicInteger();
+    private volatile Thread mWaiter;
+
+    /**
+     * 提交一批任务前调用
+     *
+     * @param count 本批任务数
+     */
+    public CountSignal arm(int count) {
+        mWaiter = Thread.currentThread();
+        mRemaining.set(count);
+        return this;
+    }
+
+    @Override
+    public void run() {
+        if (mRemaining.decrementAndGet() == 0) {
+            LockSupport.unpark(mWaiter);
+        }
+    }
+
+    /**
+     * 等待整批任务完成，先自旋再 park
+     */
+    public void await() {
+        for (int i = 0; i < SPINS && mRemaining.get() > 0; i++) {
+            Thread.yield();
+        }
+        while (mRemaining.get() > 0) {
+            LockSupport.park(this);
+        }
+    }
+}
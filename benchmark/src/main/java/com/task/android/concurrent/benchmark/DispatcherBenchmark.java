@@ -0,0 +1,175 @@
+package com.task.android.concurrent.benchmark;
+
+import com.task.android.concurrent.ConcurrentManager;
+import com.task.android.concurrent.Config.Business;
+import com.task.android.concurrent.EventLoopDispatcher;
+import com.task.android.concurrent.ExAsyncTask;
+import com.task.android.concurrent.ExThreadPoolExecutor;
+import com.task.android.concurrent.ResultDispatcher;
+import com.task.android.concurrent.ResultDispatchers;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 各 ResultDispatcher 的回调投递开销
+ * <p/>
+ * MAIN_LOOPER 投递到（替身）主线程，DIRECT 在工作线程上直接回调，EVENT_LOOP 投递到单消费者事件循环。
+ * post 只衡量投递本身；executeToPostExecute 是单个任务的完整往返；
+ * burstToPostExecute 一次提交 32 个任务，衡量回调合并的效果；progressFlood 衡量进度回调的负担
+ *
+ * @date 2016/7/12
+ */
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class DispatcherBenchmark {
+    private static final String TAG = "Benchmark";
+
+    private static final int BURST = 32;
+
+    public enum Kind {
+        MAIN_LOOPER, DIRECT, EVENT_LOOP
+    }
+
+    @State(Scope.Benchmark)
+    public static class Env {
+        @Param({"MAIN_LOOPER", "DIRECT", "EVENT_LOOP"})
+        public Kind dispatcher;
+
+        @Param({"1000"})
+        public int updates;
+
+        ResultDispatcher mDispatcher;
+        ExThreadPoolExecutor mExecutor;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            switch (dispatcher) {
+                case MAIN_LOOPER:
+                    mDispatcher = ResultDispatchers.mainLooper();
+                    break;
+                case DIRECT:
+                    mDispatcher = ResultDispatchers.direct();
+                    break;
+                default:
+                    mDispatcher = ResultDispatchers.newEventLoop(TAG);
+                    break;
+            }
+            ExAsyncTask.setDefaultDispatcher(mDispatcher);
+            mExecutor = ConcurrentManager.getInsance().initThreadPool(Business.CPU, TAG);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            ExAsyncTask.setDefaultDispatcher(null);
+            if (mDispatcher instanceof EventLoopDispatcher) {
+                ((EventLoopDispatcher) mDispatcher).shutdown();
+            }
+            ConcurrentManager.getInsance().clearAllThreadPool();
+            ConcurrentManager.release();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        final Signal mSignal = new Signal();
+        final CountSignal mBatch = new CountSignal();
+    }
+
+    /**
+     * 空任务，onPostExecute 中唤醒生产者
+     */
+    static final class SignalTask extends ExAsyncTask<Void, Void, Void> {
+        private final Runnable mSignal;
+
+        SignalTask(Runnable signal) {
+            mSignal = signal;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            mSignal.run();
+        }
+    }
+
+    /**
+     * 连续上报进度的任务
+     */
+    static final class ProgressTask extends ExAsyncTask<Void, Integer, Void> {
+        private final Signal mSignal;
+        private final int mUpdates;
+        int mDelivered;
+
+        ProgressTask(Signal signal, int updates) {
+            mSignal = signal;
+            mUpdates = updates;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            for (int i = 0; i < mUpdates; i++) {
+                publishProgressValue(i);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onProgressValue(Integer value) {
+            mDelivered++;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            mSignal.run();
+        }
+    }
+
+    @Benchmark
+    public void post(Env env, Producer p) {
+        env.mDispatcher.post(p.mSignal.arm());
+        p.mSignal.await();
+    }
+
+    @Benchmark
+    public ExAsyncTask<Void, Void, Void> executeToPostExecute(Env env, Producer p) {
+        SignalTask task = new SignalTask(p.mSignal.arm());
+        task.execute(env.mExecutor);
+        p.mSignal.await();
+        return task;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BURST)
+    public void burstToPostExecute(Env env, Producer p) {
+        p.mBatch.arm(BURST);
+        for (int i = 0; i < BURST; i++) {
+            new SignalTask(p.mBatch).execute(env.mExecutor);
+        }
+        p.mBatch.await();
+    }
+
+    @Benchmark
+    public int progressFlood(Env env, Producer p) {
+        ProgressTask task = new ProgressTask(p.mSignal.arm(), env.updates);
+        task.execute(env.mExecutor);
+        p.mSignal.await();
+        return task.mDelivered;
+    }
+}
@@ -0,0 +1,189 @@
+package com.task.android.concurrent.benchmark;
+
+import com.task.android.concurrent.ConcurrentManager;
+import com.task.android.concurrent.Config.Business;
+import com.task.android.concurrent.Config.Priority;
+import com.task.android.concurrent.ExAsyncTask;
+import com.task.android.concurrent.ExThreadPoolExecutor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ExAsyncTask.execute(ExThreadPoolExecutor) 的完整路径：
+ * 入队 → doInBackground → done() → 结果消息投递到（替身）主线程 → onPostExecute
+ * <p/>
+ * progressFlood 在 doInBackground 中连续 publishProgress，衡量进度合并后主线程的负担；
+ * progressValueFlood 使用不分配 varargs 数组的 publishProgressValue
+ *
+ * @date 2016/7/8
+ */
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ExAsyncTaskBenchmark {
+    private static final String TAG = "Benchmark";
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+        @Param({"CPU", "HIGH_IO", "LOW_IO"})
+        public Business business;
+
+        ExThreadPoolExecutor mExecutor;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            ExAsyncTask.init();
+            mExecutor = ConcurrentManager.getInsance().initThreadPool(business, TAG);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            ConcurrentManager.getInsance().clearAllThreadPool();
+            ConcurrentManager.release();
+        }
+    }
+
+    /**
+     * 每个任务发布的进度次数
+     */
+    @State(Scope.Benchmark)
+    public static class Progress {
+        @Param({"1000"})
+        public int updates;
+
+        // onProgressUpdate 最小间隔(ms)，0 表示只合并不限速
+        @Param({"0", "16"})
+        public long intervalMillis;
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        final Signal mSignal = new Signal();
+        int mCount;
+    }
+
+    /**
+     * 空任务，onPostExecute 中唤醒生产者
+     */
+    static final class SignalTask extends ExAsyncTask<Void, Void, Void> {
+        private final Signal mSignal;
+
+        SignalTask(Signal signal) {
+            mSignal = signal;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            mSignal.run();
+        }
+    }
+
+    /**
+     * 逐块上报进度的任务，onPostExecute 中唤醒生产者
+     */
+    static final class ProgressTask extends ExAsyncTask<Void, Integer, Void> {
+        private final Signal mSignal;
+        private final int mUpdates;
+        int mDelivered;
+
+        ProgressTask(Signal signal, int updates) {
+            mSignal = signal;
+            mUpdates = updates;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            for (int i = 0; i < mUpdates; i++) {
+                publishProgress(i);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            mDelivered++;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            mSignal.run();
+        }
+    }
+
+    /**
+     * 与 ProgressTask 相同，但使用单值进度接口
+     */
+    static final class ProgressValueTask extends ExAsyncTask<Void, Integer, Void> {
+        private final Signal mSignal;
+        private final int mUpdates;
+        int mDelivered;
+
+        ProgressValueTask(Signal signal, int updates) {
+            mSignal = signal;
+            mUpdates = updates;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
+            for (int i = 0; i < mUpdates; i++) {
+                publishProgressValue(i);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onProgressValue(Integer value) {
+            mDelivered++;
+        }
+
+        @Override
+        protected void onPostExecute(Void result) {
+            mSignal.run();
+        }
+    }
+
+    @Benchmark
+    public int progressValueFlood(Pool pool, Progress progress, Producer p) {
+        ProgressValueTask task = new ProgressValueTask(p.mSignal.arm(), progress.updates);
+        task.setProgressInterval(progress.intervalMillis, TimeUnit.MILLISECONDS);
+        task.execute(pool.mExecutor);
+        p.mSignal.await();
+        return task.mDelivered;
+    }
+
+    @Benchmark
+    public int progressFlood(Pool pool, Progress progress, Producer p) {
+        ProgressTask task = new ProgressTask(p.mSignal.arm(), progress.updates);
+        task.setProgressInterval(progress.intervalMillis, TimeUnit.MILLISECONDS);
+        task.execute(pool.mExecutor);
+        p.mSignal.await();
+        return task.mDelivered;
+    }
+
+    @Benchmark
+    public ExAsyncTask<Void, Void, Void> executeToPostExecute(Pool pool, Producer p) {
+        SignalTask task = new SignalTask(p.mSignal.arm());
+        task.setmPriority(PRIORITIES[(p.mCount++ & 0x7fffffff) % PRIORITIES.length]);
+        task.execute(pool.mExecutor);
+        p.mSignal.await();
+        return task;
+    }
+}
@@ -0,0 +1,86 @@
+package com.task.android.concurrent.benchmark;
+
+import com.task.android.concurrent.ConcurrentFactory;
+import com.task.android.concurrent.Config.Business;
+import com.task.android.concurrent.Config.Priority;
+import com.task.android.concurrent.ExThreadPoolExecutor;
+import com.task.android.concurrent.PriorityRunnable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 线程池工作队列本身的入队/出队开销，不经过工作线程
+ * <p/>
+ * 队列取自 ConcurrentFactory 为各 Business 创建的线程池，预先填充 depth 个任务，
+ * 每次操作 offer 一个随机优先级的任务再 poll 一个，体现堆调整和锁竞争的成本
+ *
+ * @date 2016/7/8
+ */
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class PoolQueueBenchmark {
+    private static final String TAG = "Benchmark";
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private static final Runnable EMPTY = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @State(Scope.Benchmark)
+    public static class Queue {
+        @Param({"CPU", "HIGH_IO", "LOW_IO"})
+        public Business business;
+
+        @Param({"0", "1024"})
+        public int depth;
+
+        BlockingQueue<Runnable> mQueue;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            // 只借用工厂创建出的队列，线程池本身不启动任何工作线程
+            ExThreadPoolExecutor executor = ConcurrentFactory.getInstance()
+                .createThreadPollInstance(business, TAG);
+            mQueue = executor.getQueue();
+            executor.shutdown();
+            for (int i = 0; i < depth; i++) {
+                mQueue.offer(new PriorityRunnable(EMPTY, PRIORITIES[i % PRIORITIES.length]));
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        PriorityRunnable[] mTasks;
+        int mCount;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            mTasks = new PriorityRunnable[64];
+            for (int i = 0; i < mTasks.length; i++) {
+                mTasks[i] = new PriorityRunnable(EMPTY, PRIORITIES[(i * 7) % PRIORITIES.length]);
+            }
+        }
+    }
+
+    @Benchmark
+    public Runnable offerPoll(Queue q, Producer p) {
+        q.mQueue.offer(p.mTasks[p.mCount++ & 63]);
+        return q.mQueue.poll();
+    }
+}
@@ -0,0 +1,88 @@
+package com.task.android.concurrent.benchmark;
+
+import com.task.android.concurrent.Config.Priority;
+import com.task.android.concurrent.PriorityLaneBlockingQueue;
+import com.task.android.concurrent.PriorityRunnable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PriorityBlockingQueue 与 PriorityLaneBlockingQueue 的对比
+ * <p/>
+ * 每个线程 offer 一个随机优先级的任务再 poll 一个，线程数由 BenchmarkMain 的 1/4/16/64 决定，
+ * 体现多个提交线程和工作线程同时争用队列时的成本
+ *
+ * @date 2016/7/9
+ */
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class QueueContentionBenchmark {
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private static final Runnable EMPTY = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @State(Scope.Benchmark)
+    public static class Queue {
+        @Param({"PriorityBlockingQueue", "PriorityLaneBlockingQueue"})
+        public String impl;
+
+        @Param({"0", "1024"})
+        public int depth;
+
+        BlockingQueue<Runnable> mQueue;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            if ("PriorityBlockingQueue".equals(impl)) {
+                mQueue = new PriorityBlockingQueue<Runnable>();
+            } else {
+                mQueue = new PriorityLaneBlockingQueue();
+            }
+            for (int i = 0; i < depth; i++) {
+                mQueue.offer(new PriorityRunnable(EMPTY, PRIORITIES[i % PRIORITIES.length]));
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        PriorityRunnable[] mTasks;
+        int mCount;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            mTasks = new PriorityRunnable[64];
+            for (int i = 0; i < mTasks.length; i++) {
+                mTasks[i] = new PriorityRunnable(EMPTY, PRIORITIES[(i * 7) % PRIORITIES.length]);
+            }
+        }
+
+        PriorityRunnable next() {
+            return mTasks[mCount++ & 63];
+        }
+    }
+
+    @Benchmark
+    public Runnable offerPoll(Queue q, Producer p) {
+        q.mQueue.offer(p.next());
+        return q.mQueue.poll();
+    }
+}
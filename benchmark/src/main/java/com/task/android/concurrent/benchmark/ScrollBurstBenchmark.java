@@ -0,0 +1,93 @@
+package com.task.android.concurrent.benchmark;
+
+import com.task.android.concurrent.AsyncTag;
+import com.task.android.concurrent.ConcurrentFactory;
+import com.task.android.concurrent.ConcurrentManager;
+import com.task.android.concurrent.Config.Business;
+import com.task.android.concurrent.Config.DispatchPolicy;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 模拟快速滑动：每次操作一口气提交 BURST 个图片请求，只等待最后提交的那个（屏幕上可见的）完成
+ * <p/>
+ * 分数即“最新图片可见”的耗时：PRIORITY_FIFO 要等前面积压的请求全部执行完，
+ * LIFO 类策略直接执行最新的请求，容量上限丢弃滑走的旧请求，积压不会无限增长
+ *
+ * @date 2016/7/11
+ */
+@Warmup(iterations = 3, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+public class ScrollBurstBenchmark {
+    private static final int BURST = 32;
+
+    // 单个请求的解码开销
+    private static final long DECODE_TOKENS = 2000;
+
+    @State(Scope.Benchmark)
+    public static class Pool {
+        // 出队策略/队列容量
+        @Param({"PRIORITY_FIFO/0", "LIFO/64", "PRIORITY_LIFO/64"})
+        public String policy;
+
+        ConcurrentManager mManager;
+        String mTag;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            String[] parts = policy.split("/");
+            mTag = AsyncTag.IMAGE_LOADER + policy;
+            ConcurrentFactory.getInstance().setDispatchPolicy(Business.HIGH_IO, mTag,
+                DispatchPolicy.valueOf(parts[0]), Integer.parseInt(parts[1]));
+            mManager = ConcurrentManager.getInsance();
+            mManager.initThreadPool(Business.HIGH_IO, mTag);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mManager.clearAllThreadPool();
+            ConcurrentManager.release();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        final Signal mSignal = new Signal();
+    }
+
+    private static final Runnable DECODE = new Runnable() {
+        @Override
+        public void run() {
+            Blackhole.consumeCPU(DECODE_TOKENS);
+        }
+    };
+
+    @Benchmark
+    public void newestVisible(Pool pool, Producer p) {
+        for (int i = 0; i < BURST - 1; i++) {
+            pool.mManager.execute(DECODE, Business.HIGH_IO, pool.mTag);
+        }
+        final Signal signal = p.mSignal.arm();
+        pool.mManager.execute(new Runnable() {
+            @Override
+            public void run() {
+                Blackhole.consumeCPU(DECODE_TOKENS);
+                signal.run();
+            }
+        }, Business.HIGH_IO, pool.mTag);
+        signal.await();
+    }
+}
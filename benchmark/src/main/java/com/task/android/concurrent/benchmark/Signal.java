@@ -0,0 +1,47 @@
+package com.task.android.concurrent.benchmark;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 可复用的完成信号：生产者线程提交任务后在此等待，工作线程执行任务时唤醒它
+ * <p/>
+ * 每个生产者线程持有一个实例，避免每次操作分配 CountDownLatch 干扰 GC 统计
+ *
+ * @date 2016/7/8
+ */
+public final class Signal implements Runnable {
+    private static final int SPINS = 128;
+
+    private volatile boolean mDone;
+    private volatile Thread mWaiter;
+
+    /**
+     * 提交任务前调用，重置完成状态
+     */
+    public Signal arm() {
+        mDone = false;
+        mWaiter = Thread.currentThread();
+        return this;
+    }
+
+    /**
+     * 由工作线程调用，标记完成并唤醒等待者
+     */
+    @Override
+    public void run() {
+        mDone = true;
+        LockSupport.unpark(mWaiter);
+    }
+
+    /**
+     * 等待任务完成，先自旋再 park
+     */
+    public void await() {
+        for (int i = 0; i < SPINS && !mDone; i++) {
+            Thread.yield();
+        }
+        while (!mDone) {
+            LockSupport.park(this);
+        }
+    }
+}
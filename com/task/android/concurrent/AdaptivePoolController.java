@@ -0,0 +1,249 @@
+package com.task.android.concurrent;
+
+import android.util.Log;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 线程池的自适应线程数控制器
+ * <p/>
+ * 每个周期读取线程池的累计统计，计算这一周期内的：
+ * <ul>
+ * <li>平均忙碌线程数 = 执行时间总和 / 周期长度</li>
+ * <li>平均执行时间和平均排队时间</li>
+ * <li>阻塞比例 = 1 - 线程CPU时间 / 执行墙钟时间（IO等待越多越接近1）</li>
+ * </ul>
+ * 目标线程数 = 平均忙碌线程数 / 目标利用率，有积压（排队时间超过执行时间）时至少再加一个线程，
+ * 并且不超过 CPU数 * (1 + 等待时间/计算时间)，即《java并发编程实战》中的最佳线程数，最后限制在[min, max]内
+ * <p/>
+ * 防抖：扩容需要连续{@link #GROW_VOTES}个周期都认为需要扩容，缩容需要连续{@link #SHRINK_VOTES}个周期，
+ * 且每次缩容最多减掉与目标差值的一半
+ *
+ * @date 2016/7/10
+ */
+public class AdaptivePoolController {
+    private static final String TAG = "AdaptivePoolController";
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+
+    // 目标利用率，忙碌线程数除以它得到需要的线程数
+    static final double TARGET_UTILIZATION = 0.75;
+    // 等待时间/计算时间的上限，避免阻塞比例接近1时算出过大的线程数
+    static final double MAX_WAIT_COMPUTE_RATIO = 50;
+    // 连续多少个周期需要扩容才真正扩容
+    static final int GROW_VOTES = 2;
+    // 连续多少个周期需要缩容才真正缩容
+    static final int SHRINK_VOTES = 3;
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+
+    // 所有控制器共用的调度线程
+    private static final ScheduledThreadPoolExecutor sScheduler = newScheduler();
+
+    private final ExThreadPoolExecutor mExecutor;
+    private final int mMinPoolSize;
+    private final int mMaxPoolSize;
+    private final long mIntervalNanos;
+
+    private ScheduledFuture<?> mFuture;
+
+    // 上一周期的累计值
+    private long mLastTime;
+    private long mLastExecCount;
+    private long mLastExecNanos;
+    private long mLastWaitCount;
+    private long mLastWaitNanos;
+    private long mLastCpuNanos;
+    private long mLastCpuWallNanos;
+
+    private int mGrowVotes;
+    private int mShrinkVotes;
+    // 最近一次计算出的目标线程数
+    private volatile int mTargetPoolSize;
+
+    AdaptivePoolController(ExThreadPoolExecutor executor, int minPoolSize, int maxPoolSize,
+                           long intervalNanos) {
+        if (minPoolSize <= 0 || maxPoolSize < minPoolSize) {
+            throw new IllegalArgumentException("invalid bounds [" + minPoolSize + ", "
+                + maxPoolSize + "]");
+        }
+        if (intervalNanos <= 0) {
+            throw new IllegalArgumentException("interval <= 0");
+        }
+        mExecutor = executor;
+        mMinPoolSize = minPoolSize;
+        mMaxPoolSize = maxPoolSize;
+        mIntervalNanos = intervalNanos;
+        mTargetPoolSize = executor.getMaximumPoolSize();
+    }
+
+    private static ScheduledThreadPoolExecutor newScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "AdaptivePoolController");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    void start() {
+        synchronized (this) {
+            ThreadPoolMetrics metrics = mExecutor.metrics();
+            mLastTime = System.nanoTime();
+            mLastExecCount = metrics.mExecution.getCount();
+            mLastExecNanos = metrics.mExecution.getTotalNanos();
+            mLastWaitCount = metrics.mQueueWait.getCount();
+            mLastWaitNanos = metrics.mQueueWait.getTotalNanos();
+            mLastCpuNanos = metrics.mCpuNanos.get();
+            mLastCpuWallNanos = metrics.mCpuWallNanos.get();
+            mFuture = sScheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        adjust();
+                    } catch (RuntimeException e) {
+                        Log.d(TAG, "adjust failed: " + e.getMessage());
+                    }
+                }
+            }, mIntervalNanos, mIntervalNanos, TimeUnit.NANOSECONDS);
+        }
+        // 调整前先落在[min, max]内
+        resize(clamp(mExecutor.getMaximumPoolSize()));
+    }
+
+    synchronized void stop() {
+        if (mFuture != null) {
+            mFuture.cancel(false);
+            mFuture = null;
+        }
+    }
+
+    /**
+     * 最近一次计算出的目标线程数
+     *
+     * @return mTargetPoolSize
+     */
+    public int getTargetPoolSize() {
+        return mTargetPoolSize;
+    }
+
+    /**
+     * 一个调整周期：在本对象的锁内计算新的线程数，释放锁之后再修改线程池，
+     * setPoolSize需要线程池的mainLock，不能在持有本对象的锁时获取
+     */
+    void adjust() {
+        int poolSize = nextPoolSize();
+        if (poolSize > 0) {
+            resize(poolSize);
+        }
+    }
+
+    /**
+     * 读取这一周期的统计并投票
+     *
+     * @return 需要调整时为新的线程数，否则为0
+     */
+    private synchronized int nextPoolSize() {
+        if (mFuture == null || mExecutor.isShutdown()) {
+            return 0;
+        }
+        ThreadPoolMetrics metrics = mExecutor.metrics();
+        long now = System.nanoTime();
+        long execCount = metrics.mExecution.getCount();
+        long execNanos = metrics.mExecution.getTotalNanos();
+        long waitCount = metrics.mQueueWait.getCount();
+        long waitNanos = metrics.mQueueWait.getTotalNanos();
+        long cpuNanos = metrics.mCpuNanos.get();
+        long cpuWallNanos = metrics.mCpuWallNanos.get();
+
+        long elapsed = now - mLastTime;
+        long tasks = execCount - mLastExecCount;
+        long busyNanos = execNanos - mLastExecNanos;
+        long waits = waitCount - mLastWaitCount;
+        long waitedNanos = waitNanos - mLastWaitNanos;
+        long cpu = cpuNanos - mLastCpuNanos;
+        long cpuWall = cpuWallNanos - mLastCpuWallNanos;
+
+        mLastTime = now;
+        mLastExecCount = execCount;
+        mLastExecNanos = execNanos;
+        mLastWaitCount = waitCount;
+        mLastWaitNanos = waitNanos;
+        mLastCpuNanos = cpuNanos;
+        mLastCpuWallNanos = cpuWallNanos;
+
+        if (elapsed <= 0) {
+            return 0;
+        }
+
+        int poolSize = mExecutor.getMaximumPoolSize();
+        int target = computeTarget(poolSize, elapsed, tasks, busyNanos, waits, waitedNanos,
+            cpu, cpuWall, !mExecutor.getQueue().isEmpty());
+        mTargetPoolSize = target;
+
+        if (target > poolSize) {
+            mShrinkVotes = 0;
+            if (++mGrowVotes >= GROW_VOTES) {
+                mGrowVotes = 0;
+                return target;
+            }
+        } else if (target < poolSize) {
+            mGrowVotes = 0;
+            if (++mShrinkVotes >= SHRINK_VOTES) {
+                mShrinkVotes = 0;
+                return poolSize - (poolSize - target + 1) / 2;
+            }
+        } else {
+            mGrowVotes = 0;
+            mShrinkVotes = 0;
+        }
+        return 0;
+    }
+
+    /**
+     * 根据一个周期内的测量值计算目标线程数
+     */
+    int computeTarget(int poolSize, long elapsedNanos, long tasks, long busyNanos,
+                      long waits, long waitedNanos, long cpuNanos, long cpuWallNanos,
+                      boolean backlog) {
+        // 平均忙碌线程数
+        double busyThreads = (double) busyNanos / elapsedNanos;
+        int target = (int) Math.ceil(busyThreads / TARGET_UTILIZATION);
+
+        // 有积压：平均排队时间超过平均执行时间，说明线程不够
+        if (backlog && tasks > 0 && waits > 0
+            && (double) waitedNanos / waits > (double) busyNanos / tasks) {
+            target = Math.max(target, poolSize + 1);
+        }
+
+        // 阻塞比例决定线程数的合理上限：CPU数 * (1 + W/C)
+        if (cpuWallNanos > 0) {
+            double blocked = 1.0 - Math.min(1.0, (double) cpuNanos / cpuWallNanos);
+            double waitComputeRatio = blocked >= 1.0 ? MAX_WAIT_COMPUTE_RATIO
+                : Math.min(MAX_WAIT_COMPUTE_RATIO, blocked / (1.0 - blocked));
+            int limit = (int) Math.ceil(CPU_COUNT * (1 + waitComputeRatio));
+            target = Math.min(target, limit);
+        }
+        return clamp(target);
+    }
+
+    private int clamp(int poolSize) {
+        return Math.max(mMinPoolSize, Math.min(mMaxPoolSize, poolSize));
+    }
+
+    private void resize(int poolSize) {
+        if (poolSize != mExecutor.getMaximumPoolSize() && !mExecutor.isShutdown()) {
+            Log.d(TAG, mExecutor.getmThreadPoolType() + "/" + mExecutor.getmTag()
+                + " pool size " + mExecutor.getMaximumPoolSize() + " -> " + poolSize);
+            mExecutor.setPoolSize(poolSize);
+        }
+    }
+}
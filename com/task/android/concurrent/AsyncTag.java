@@ -13,5 +13,10 @@ public class AsyncTag {
      */
     public static final String IMAGE_LOADER = "ImageLoader";
 
+    /**
+     * 每个Business的共享线程池，{@link VirtualPool}的任务都在这里执行
+     */
+    public static final String SHARED = "Shared";
+
 
 }
@@ -3,8 +3,10 @@ package com.task.android.concurrent;
 import android.util.Log;
 
 import com.task.android.concurrent.Config.Business;
+import com.task.android.concurrent.Config.DispatchPolicy;
+import com.task.android.concurrent.Config.OverflowPolicy;
 
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -16,9 +18,44 @@ import java.util.concurrent.TimeUnit;
 public class ConcurrentFactory {
     private static final String TAG = "ConcurrentFactory";
     public static final int MAX_CORE_SIZE = 3;
+    // 虚拟线程模式下LOW_IO线程池默认的并发数上限
+    public static final int DEFAULT_VIRTUAL_THREAD_CONCURRENCY = 256;
+    // LOW_IO线程池工作队列默认的容量上限
+    public static final int DEFAULT_LOW_IO_QUEUE_CAPACITY = 256;
 
     private static int mAvailableProcessors = Runtime.getRuntime().availableProcessors();
 
+    // 工作队列的老化周期（毫秒），0表示不老化
+    private volatile long mAgingIntervalMillis;
+    // CPU线程池是否使用工作窃取引擎
+    private volatile boolean mWorkStealingEnabled;
+    // LOW_IO线程池是否使用虚拟线程
+    private volatile boolean mVirtualThreadEnabled;
+    // 虚拟线程模式下LOW_IO线程池的并发数上限
+    private volatile int mVirtualThreadConcurrency = DEFAULT_VIRTUAL_THREAD_CONCURRENCY;
+    // 工作队列是否按最早截止时间优先出队
+    private volatile boolean mEarliestDeadlineFirst;
+    // LOW_IO线程池工作队列的容量上限，0表示不限
+    private volatile int mLowIoQueueCapacity = DEFAULT_LOW_IO_QUEUE_CAPACITY;
+    // 各线程池的出队策略和队列容量，key为type/tag
+    private final ConcurrentHashMap<String, QueueConfig> mQueueConfigs =
+        new ConcurrentHashMap<String, QueueConfig>();
+
+    /**
+     * 单个线程池的工作队列配置
+     */
+    private static class QueueConfig {
+        final DispatchPolicy mPolicy;
+        final int mCapacity;
+        final OverflowPolicy mOverflowPolicy;
+
+        QueueConfig(DispatchPolicy policy, int capacity, OverflowPolicy overflowPolicy) {
+            mPolicy = policy;
+            mCapacity = capacity;
+            mOverflowPolicy = overflowPolicy;
+        }
+    }
+
     private static class ThreadPoolFactoryHolder {
         private final static ConcurrentFactory instance = new ConcurrentFactory();
     }
@@ -32,10 +69,139 @@ public class ConcurrentFactory {
         return ThreadPoolFactoryHolder.instance;
     }
 
+    /**
+     * 设置之后新建线程池的工作队列老化周期：低优先级任务每等待一个周期，有效优先级提升一级，
+     * 持续的高优先级负载下低优先级任务也能在有限时间内得到执行，0表示关闭老化（默认）
+     *
+     * @param interval
+     * @param unit
+     */
+    public void setAgingInterval(long interval, TimeUnit unit) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval < 0");
+        }
+        mAgingIntervalMillis = unit.toMillis(interval);
+    }
+
+    /**
+     * 设置之后新建的CPU线程池是否使用工作窃取（ForkJoinPool）引擎，默认不使用
+     * <p/>
+     * 适合可以拆分成子任务的计算（图片解码、布局、JSON解析等），
+     * 优先级和pause/resume的语义不变，见{@link WorkStealingThreadPoolExecutor}
+     *
+     * @param enabled
+     */
+    public void setWorkStealingEnabled(boolean enabled) {
+        mWorkStealingEnabled = enabled;
+    }
+
+    /**
+     * 设置之后新建的LOW_IO线程池是否让每个任务运行在虚拟线程上（需要JDK 21+），默认不使用
+     * <p/>
+     * 并发数不再受MAX_CORE_SIZE限制，而是由maxConcurrency个许可控制，
+     * 运行环境不支持虚拟线程时忽略该设置，见{@link VirtualThreadPoolExecutor}
+     *
+     * @param enabled
+     * @param maxConcurrency 同时执行的任务数上限
+     */
+    public void setVirtualThreadMode(boolean enabled, int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency <= 0");
+        }
+        mVirtualThreadConcurrency = maxConcurrency;
+        mVirtualThreadEnabled = enabled;
+    }
+
+    /**
+     * 设置之后新建线程池的工作队列是否开启EDF模式：带截止时间的任务按截止时间先后出队，
+     * 排在优先级之前，默认关闭。无论是否开启，过期的任务都会在出队时被丢弃
+     *
+     * @param enabled
+     */
+    public void setEarliestDeadlineFirst(boolean enabled) {
+        mEarliestDeadlineFirst = enabled;
+    }
+
+    /**
+     * 设置某个线程池的出队策略和队列容量，在线程池创建之前设置才生效
+     * <p/>
+     * 例如快速滑动时的图片加载：
+     * setDispatchPolicy(Business.HIGH_IO, AsyncTag.IMAGE_LOADER, DispatchPolicy.LIFO, 64)，
+     * 最新的请求最先执行，积压超过64个时丢弃最早的请求（ExAsyncTask回调onCancelled）
+     *
+     * @param type
+     * @param tag
+     * @param policy    出队策略
+     * @param maxQueued 队列容量上限，超出时丢弃最早提交的任务，0表示不限
+     */
+    public void setDispatchPolicy(Business type, String tag, DispatchPolicy policy,
+                                  int maxQueued) {
+        setDispatchPolicy(type, tag, policy, maxQueued, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * 设置某个线程池的出队策略、队列容量和队列满时的丢弃策略，在线程池创建之前设置才生效
+     *
+     * @param type
+     * @param tag
+     * @param policy         出队策略
+     * @param maxQueued      队列容量上限，0表示不限
+     * @param overflowPolicy 超出容量时丢弃哪个任务
+     */
+    public void setDispatchPolicy(Business type, String tag, DispatchPolicy policy,
+                                  int maxQueued, OverflowPolicy overflowPolicy) {
+        if (maxQueued < 0) {
+            throw new IllegalArgumentException("maxQueued < 0");
+        }
+        mQueueConfigs.put(queueConfigKey(type, tag),
+            new QueueConfig(policy, maxQueued, overflowPolicy));
+    }
+
+    /**
+     * 设置之后新建的LOW_IO线程池的工作队列容量，默认{@link #DEFAULT_LOW_IO_QUEUE_CAPACITY}
+     * <p/>
+     * 网络断开时请求会持续积压，队列满了之后舍弃优先级最低的任务（同优先级舍弃最早提交的），
+     * 被舍弃的任务走取消流程并计入统计，0表示不限容量
+     *
+     * @param capacity
+     */
+    public void setLowIoQueueCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity < 0");
+        }
+        mLowIoQueueCapacity = capacity;
+    }
+
+    private static String queueConfigKey(Business type, String tag) {
+        return type + "/" + tag;
+    }
+
+    /**
+     * 创建线程池的工作队列
+     *
+     * @return workQueue
+     */
+    private PriorityLaneBlockingQueue newWorkQueue(Business type, String tag) {
+        QueueConfig config = mQueueConfigs.get(queueConfigKey(type, tag));
+        PriorityLaneBlockingQueue queue;
+        if (config != null) {
+            queue = new PriorityLaneBlockingQueue(config.mPolicy, config.mCapacity,
+                config.mOverflowPolicy);
+        } else if (type == Business.LOW_IO) {
+            queue = new PriorityLaneBlockingQueue(DispatchPolicy.PRIORITY_FIFO,
+                mLowIoQueueCapacity, OverflowPolicy.SHED_LOWEST_PRIORITY);
+        } else {
+            queue = new PriorityLaneBlockingQueue();
+        }
+        queue.setAgingInterval(mAgingIntervalMillis, TimeUnit.MILLISECONDS);
+        queue.setEarliestDeadlineFirst(mEarliestDeadlineFirst);
+        return queue;
+    }
+
     /**
      * <p/>
      * 新建线程池实例 Business枚举和Tag唯一确定一个线程池
-     * 如果没有符合线程池实例，则会新建一个，并加入到ConcurrentManager的链表中加以管理
+     * 如果没有符合线程池实例，则会新建一个，并加入到ConcurrentManager的注册表中加以管理
      * <p/>
      * <p/>
      * Business的分类依据CPU等待时间的长短（反而言之即CPU负载的大小）
@@ -46,6 +212,9 @@ public class ConcurrentFactory {
      * <p/>
      * Tag可以根据客户端的任务逻辑随意编写，不写则为“default” 不同Tag的任务因分处不同池，故不会产生竞争条件
      * Tag可以用来作为整理操作的某种依据（譬如pause/resume/schedule/delay）
+     * <p/>
+     * 工作队列统一使用{@link PriorityLaneBlockingQueue}，按优先级分通道，入队出队不争同一把锁，
+     * 出队策略和容量由{@link #setDispatchPolicy(Business, String, DispatchPolicy, int)}决定
      *
      * @param type
      * @param tag
@@ -69,9 +238,14 @@ public class ConcurrentFactory {
                 final int cpuThreadNums = mAvailableProcessors + 1;
                 Log.d(TAG ,  "cpuThreadNums:" + cpuThreadNums);
 
-                mThreadPool = new ExThreadPoolExecutor(cpuThreadNums, cpuThreadNums, 0L,
-                        TimeUnit.MILLISECONDS,
-                        new PriorityBlockingQueue<Runnable>(), type, tag);
+                if (mWorkStealingEnabled) {
+                    mThreadPool = new WorkStealingThreadPoolExecutor(cpuThreadNums,
+                            newWorkQueue(type, tag), type, tag);
+                } else {
+                    mThreadPool = new ExThreadPoolExecutor(cpuThreadNums, cpuThreadNums, 0L,
+                            TimeUnit.MILLISECONDS,
+                            newWorkQueue(type, tag), type, tag);
+                }
                 break;
             case HIGH_IO:
                 int highIOThreadNums = (int) Math.ceil(mAvailableProcessors * 1.1);
@@ -81,24 +255,34 @@ public class ConcurrentFactory {
 
                 mThreadPool = new ExThreadPoolExecutor(highIOThreadNums, highIOThreadNums, 0L,
                         TimeUnit.MILLISECONDS,
-                        new PriorityBlockingQueue<Runnable>(), type, tag);
+                        newWorkQueue(type, tag), type, tag);
                 break;
             case LOW_IO:
+                if (mVirtualThreadEnabled && VirtualThreadPoolExecutor.isSupported()) {
+                    Log.d(TAG ,  "lowIOVirtualThreadConcurrency:" + mVirtualThreadConcurrency);
+
+                    mThreadPool = new VirtualThreadPoolExecutor(mVirtualThreadConcurrency,
+                            newWorkQueue(type, tag), type, tag);
+                    break;
+                }
+
                 int lowIOThreadNums = (int) Math.ceil(mAvailableProcessors * 1.5);
                 lowIOThreadNums = Math.min(lowIOThreadNums, MAX_CORE_SIZE);
 
                 Log.d(TAG ,  "lowIOThreadNums:" + lowIOThreadNums);
 
                 mThreadPool = new ExThreadPoolExecutor(lowIOThreadNums, lowIOThreadNums, 0L,
-                        TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(10),
+                        TimeUnit.SECONDS, newWorkQueue(type, tag),
                         type, tag);
+                // 工作队列自己有容量上限，满了会按优先级舍弃任务，不会拒绝；
+                // 这里的拒绝策略只在线程池关闭后生效：静默丢弃而不是抛异常
                 mThreadPool
                         .setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardOldestPolicy());
                 break;
             default:
                 mThreadPool = new ExThreadPoolExecutor(5, 5, 0L,
                         TimeUnit.MILLISECONDS,
-                        new PriorityBlockingQueue<Runnable>(), type, tag);
+                        newWorkQueue(type, tag), type, tag);
                 break;
         }
 
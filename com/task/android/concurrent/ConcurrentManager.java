@@ -1,7 +1,26 @@
 package com.task.android.concurrent;
 
 import com.task.android.concurrent.Config.Business;
+import com.task.android.concurrent.Config.Priority;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 引入并发框架：
@@ -15,6 +34,17 @@ import java.util.ArrayList;
  * 4、线程的优先级设定  priority
  * 5、工厂类创建线程池
  * 6、写了一个扩展的AsncTask类，添加了AsncTask的优先级
+ * 7、按key合并的任务提交（single-flight） executeShared
+ * 8、批量提交任务 executeAll / executeAllTasks
+ * 9、带截止时间的任务，过期未执行的任务走取消流程
+ * 10、按owner提交任务，cancelByOwner批量取消某个owner的任务
+ * 11、CompletionStage组合：supplyAsync/runAsync提交，executorFor指定后续步骤的线程池
+ * 12、分阶段流水线（SEDA），见{@link Pipeline}
+ * 13、按key的虚拟线程池：串行或限制并发数，复用每个Business的共享线程池，见{@link VirtualPool}
+ * 14、进程级线程预算：所有线程池同时执行的任务数受总预算约束，按权重分配，见{@link ThreadBudget}
+ * 15、令牌桶限流：setRateLimit限制线程池的派发速率，见{@link RateLimiter}
+ * 16、延迟、周期和重试任务：schedule / scheduleAtFixedRate / retryWithBackoff，见{@link TimingWheel}
+ * 17、任务日志：executeDurable提交的任务在执行完之前记入日志，进程被杀后重启时恢复，见{@link TaskJournal}
  *
  * @date 2016/7/8
  */
@@ -22,13 +52,50 @@ public class ConcurrentManager {
     private static final String TAG = "ConcurrentManager";
 
     // 并发对外操作类的实例对象
-    private static ConcurrentManager mCMInstance;
+    private static volatile ConcurrentManager mCMInstance;
+
+    // 线程池注册表：Business -> (tag -> 线程池)，构造后结构不变，查找不加锁
+    private final EnumMap<Business, ConcurrentHashMap<String, ExThreadPoolExecutor>> mThreadPools;
+
+    // 按key合并的执行中任务
+    private final SingleFlight mSingleFlight = new SingleFlight();
+
+    // owner -> 尚未结束的任务
+    private final OwnerIndex mOwnerIndex = new OwnerIndex();
+
+    // 所有线程池共享的线程预算
+    private final ThreadBudget mThreadBudget = new ThreadBudget();
+
+    // 线程池在预算中的权重，key为type/tag，没有设置的为1
+    private final ConcurrentHashMap<String, Integer> mBudgetWeights =
+        new ConcurrentHashMap<String, Integer>();
 
-    // 线程池列表
-    private ArrayList<ExThreadPoolExecutor> mThreadPoolList;
+    // 延迟和周期任务的时间轮，第一次使用时创建
+    private volatile TimingWheel mTimingWheel;
+
+    // 组提交的间隔(ms)
+    private static final long JOURNAL_COMMIT_INTERVAL = 10;
+
+    // 任务日志，enableJournal之后才有
+    private volatile TaskJournal mJournal;
+    private volatile TaskJournal.TaskFactory mTaskFactory;
+    // executeDurable是否等待记录落盘
+    private volatile boolean mJournalSync;
+
+    // 虚拟线程池注册表：Business -> (key -> 虚拟线程池)
+    private final EnumMap<Business, ConcurrentHashMap<String, VirtualPool>> mVirtualPools;
 
     private ConcurrentManager() {
-        mThreadPoolList = new ArrayList<ExThreadPoolExecutor>();
+        mThreadPools = new EnumMap<Business, ConcurrentHashMap<String, ExThreadPoolExecutor>>(
+            Business.class);
+        for (Business type : Business.values()) {
+            mThreadPools.put(type, new ConcurrentHashMap<String, ExThreadPoolExecutor>());
+        }
+        mVirtualPools = new EnumMap<Business, ConcurrentHashMap<String, VirtualPool>>(
+            Business.class);
+        for (Business type : Business.values()) {
+            mVirtualPools.put(type, new ConcurrentHashMap<String, VirtualPool>());
+        }
         addThreadPool(Business.HIGH_IO, AsyncTag.IMAGE_LOADER);
     }
 
@@ -79,7 +146,7 @@ public class ConcurrentManager {
      * @param r
      */
     public void execute(Runnable r) {
-        PriorityRunnable mRunnable = new PriorityRunnable(r);
+        PriorityRunnable mRunnable = PriorityRunnable.obtain(r, 5);
         ExThreadPoolExecutor threadPool = initThreadPool(
             Business.HIGH_IO, AsyncTag.IMAGE_LOADER);
         threadPool.execute(mRunnable);
@@ -93,7 +160,7 @@ public class ConcurrentManager {
      * @param tag  线程池标签 --由type,tag决定唯一线程池实例
      */
     public void execute(Runnable r, Business type, String tag) {
-        PriorityRunnable mRunnable = new PriorityRunnable(r);
+        PriorityRunnable mRunnable = PriorityRunnable.obtain(r, 5);
         ExThreadPoolExecutor threadPool = initThreadPool(type, tag);
         threadPool.execute(mRunnable);
     }
@@ -121,12 +188,687 @@ public class ConcurrentManager {
         threadPool.execute(r);
     }
 
+    /**
+     * 执行带截止时间的Runnable：从提交时刻起超过timeout还没有开始执行的任务被丢弃，
+     * 返回的Future随之被取消
+     *
+     * @param r
+     * @param priority 优先级
+     * @param timeout  有效期，0表示没有截止时间，与{@link ExAsyncTask#setDeadline}一致
+     * @param unit
+     * @param type     线程池类型
+     * @param tag      线程池标签--由type,tag决定唯一线程池实例
+     * @return 可以用来取消任务或判断是否过期（isCancelled）
+     */
+    public Future<?> execute(Runnable r, Priority priority, long timeout, TimeUnit unit,
+                             Business type, String tag) {
+        long timeoutNanos = Math.max(0, unit.toNanos(timeout));
+        long deadline = 0;
+        if (timeoutNanos > 0) {
+            deadline = System.nanoTime() + timeoutNanos;
+            // 0表示没有截止时间，恰好算出0时顺延1ns
+            if (deadline == 0) {
+                deadline = 1;
+            }
+        }
+        PriorityFutureTask<Void> task = new PriorityFutureTask<Void>(r, null,
+            PriorityRunnable.priorityValue(priority), deadline);
+        ExThreadPoolExecutor threadPool = initThreadPool(type, tag);
+        threadPool.execute(task);
+        return task;
+    }
+
+    /**
+     * 执行带截止时间的AsyncTask异步任务，过期时回调onCancelled
+     *
+     * @param mTask
+     * @param timeout 有效期
+     * @param unit
+     * @param type    线程池类型
+     * @param tag     线程池标签--由type,tag决定唯一线程池实例
+     */
+    @SuppressWarnings({"rawtypes"})
+    public void execute(ExAsyncTask mTask, long timeout, TimeUnit unit, Business type,
+                        String tag) {
+        mTask.setDeadline(timeout, unit);
+        execute(mTask, type, tag);
+    }
+
+    /**
+     * 按owner执行Runnable，owner（例如页面对象）关闭时用{@link #cancelByOwner(Object)}
+     * 批量取消它尚未执行的任务，不影响同一线程池中的其它任务
+     *
+     * @param r
+     * @param priority 优先级
+     * @param owner    任务归属，按equals区分
+     * @param type     线程池类型
+     * @param tag      线程池标签--由type,tag决定唯一线程池实例
+     * @return 任务对应的Future
+     */
+    public Future<?> execute(Runnable r, Priority priority, Object owner, Business type,
+                             String tag) {
+        PriorityFutureTask<Void> task = new PriorityFutureTask<Void>(r, null,
+            PriorityRunnable.priorityValue(priority), 0);
+        task.mOwnerGroup = mOwnerIndex.add(owner, task);
+        ExThreadPoolExecutor threadPool = initThreadPool(type, tag);
+        threadPool.execute(task);
+        return task;
+    }
+
+    /**
+     * 按owner执行AsyncTask异步任务，被{@link #cancelByOwner(Object)}取消时回调onCancelled
+     *
+     * @param mTask
+     * @param owner 任务归属，按equals区分
+     * @param type  线程池类型
+     * @param tag   线程池标签--由type,tag决定唯一线程池实例
+     */
+    @SuppressWarnings({"rawtypes"})
+    public void execute(ExAsyncTask mTask, Object owner, Business type, String tag) {
+        mTask.joinOwnerGroup(mOwnerIndex, owner);
+        execute(mTask, type, tag);
+    }
+
+    /**
+     * 取消owner的全部任务，已在执行的任务不中断
+     *
+     * @param owner
+     * @return 取消的任务数
+     */
+    public int cancelByOwner(Object owner) {
+        return cancelByOwner(owner, false);
+    }
+
+    /**
+     * 取消owner的全部任务
+     * <p/>
+     * 只标记取消、不在工作队列中逐个查找删除，已取消的任务在出队时被丢弃，
+     * 开销与取消的任务数成正比
+     *
+     * @param owner
+     * @param mayInterruptIfRunning 是否中断已在执行的任务
+     * @return 取消的任务数
+     */
+    public int cancelByOwner(Object owner, boolean mayInterruptIfRunning) {
+        return mOwnerIndex.cancel(owner, mayInterruptIfRunning);
+    }
+
+    /**
+     * 获得owner尚未结束的任务数
+     *
+     * @param owner
+     * @return
+     */
+    public int getOwnerTaskCount(Object owner) {
+        return mOwnerIndex.count(owner);
+    }
+
+    /**
+     * 在(Business, tag)线程池中执行callable，返回结果的非阻塞视图
+     * <p/>
+     * 例如下载 → 解码 → 写缓存：
+     * <pre class="prettyprint">
+     * ConcurrentManager cm = ConcurrentManager.getInsance();
+     * cm.supplyAsync(download, Priority.NORM_PRIORITY, Business.LOW_IO, tag)
+     *     .thenApplyAsync(decode, cm.executorFor(Business.CPU, tag))
+     *     .thenAcceptAsync(saveToCache, cm.executorFor(Business.HIGH_IO, tag));
+     * </pre>
+     * 每一步只在前一步完成后才入队，中间不占用任何阻塞等待的线程
+     *
+     * @param callable
+     * @param priority 优先级
+     * @param type     线程池类型
+     * @param tag      线程池标签--由type,tag决定唯一线程池实例
+     * @return CompletionStage，callable抛出的异常使其异常完成；任务被丢弃时以CancellationException完成
+     */
+    public <T> CompletionStage<T> supplyAsync(final Callable<T> callable, Priority priority,
+                                              Business type, String tag) {
+        final CompletableFuture<T> stage = new CompletableFuture<T>();
+        // 由done()完成stage：任务在队列中被容量上限丢弃、或线程池关闭后被拒绝策略丢弃时
+        // 会被取消，stage随之异常完成，不会永远等不到结果
+        PriorityFutureTask<T> task = new PriorityFutureTask<T>(callable,
+            PriorityRunnable.priorityValue(priority), 0) {
+            @Override
+            protected void done() {
+                super.done();
+                try {
+                    stage.complete(get());
+                } catch (ExecutionException e) {
+                    stage.completeExceptionally(e.getCause() != null ? e.getCause() : e);
+                } catch (CancellationException e) {
+                    stage.completeExceptionally(e);
+                } catch (InterruptedException e) {
+                    // 任务已经结束，get()不会等待
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        initThreadPool(type, tag).execute(task);
+        return stage;
+    }
+
+    /**
+     * 在(Business, tag)线程池中执行runnable，返回完成通知的非阻塞视图
+     *
+     * @param r
+     * @param priority 优先级
+     * @param type     线程池类型
+     * @param tag      线程池标签--由type,tag决定唯一线程池实例
+     * @return CompletionStage，r抛出的异常使其异常完成
+     */
+    public CompletionStage<Void> runAsync(final Runnable r, Priority priority, Business type,
+                                          String tag) {
+        return supplyAsync(new Callable<Void>() {
+            @Override
+            public Void call() {
+                r.run();
+                return null;
+            }
+        }, priority, type, tag);
+    }
+
+    /**
+     * 获得(Business, tag)线程池的Executor视图，以普通优先级执行，
+     * 用作CompletionStage.xxxAsync(..., executor)的执行器
+     *
+     * @param type 线程池类型
+     * @param tag  线程池标签--由type,tag决定唯一线程池实例
+     * @return Executor，当前线程就是该线程池的工作线程时直接执行
+     */
+    public Executor executorFor(Business type, String tag) {
+        return executorFor(type, tag, Priority.NORM_PRIORITY);
+    }
+
+    /**
+     * 获得(Business, tag)线程池的Executor视图
+     *
+     * @param type     线程池类型
+     * @param tag      线程池标签--由type,tag决定唯一线程池实例
+     * @param priority 通过它提交的任务的优先级
+     * @return Executor，当前线程就是该线程池的工作线程时直接执行
+     */
+    public Executor executorFor(Business type, String tag, Priority priority) {
+        return new PoolExecutor(this, type, tag, PriorityRunnable.priorityValue(priority));
+    }
+
+    /**
+     * 延迟执行：delay之后把r以priority交给(Business, tag)线程池
+     * <p/>
+     * 到期之前只占用时间轮中的一个结点，不占用任何线程；不要再在工作线程中sleep等待
+     *
+     * @param r
+     * @param delay    延迟
+     * @param unit
+     * @param priority 优先级
+     * @param type     线程池类型
+     * @param tag      线程池标签--由type,tag决定唯一线程池实例
+     * @return 定时器句柄，可以用来取消
+     */
+    public TimingWheel.Timer schedule(Runnable r, long delay, TimeUnit unit, Priority priority,
+                                      Business type, String tag) {
+        return timingWheel().schedule(r, targetOf(type, tag),
+            PriorityRunnable.priorityValue(priority), delay, 0, unit);
+    }
+
+    /**
+     * 周期执行：initialDelay之后第一次执行，之后每隔period执行一次
+     * <p/>
+     * 下一次的计划时间从上一次的计划时间起算，上一次执行完之前不会开始下一次，
+     * 执行时间超过周期时错过的次数不补执行
+     *
+     * @param r
+     * @param initialDelay 首次执行的延迟
+     * @param period       周期
+     * @param unit
+     * @param priority     优先级
+     * @param type         线程池类型
+     * @param tag          线程池标签--由type,tag决定唯一线程池实例
+     * @return 定时器句柄，cancel后不再执行
+     */
+    public TimingWheel.Timer scheduleAtFixedRate(Runnable r, long initialDelay, long period,
+                                                 TimeUnit unit, Priority priority,
+                                                 Business type, String tag) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("period <= 0");
+        }
+        return timingWheel().schedule(r, targetOf(type, tag),
+            PriorityRunnable.priorityValue(priority), initialDelay, period, unit);
+    }
+
+    /**
+     * 失败重试：立即在(Business, tag)线程池中执行callable，抛出异常时按指数退避重试，
+     * 等待期间不占用线程
+     * <p/>
+     * 第n次重试前等待min(maxBackoff, initialBackoff * 2^(n-1))，并在其后一半范围内随机抖动，
+     * 避免大量请求同时重试。取消返回的stage后不再重试
+     *
+     * @param callable
+     * @param maxAttempts    最多执行的次数，包括第一次
+     * @param initialBackoff 第一次重试前的等待时间
+     * @param maxBackoff     等待时间的上限
+     * @param unit
+     * @param priority       优先级
+     * @param type           线程池类型
+     * @param tag            线程池标签--由type,tag决定唯一线程池实例
+     * @return CompletionStage，最后一次失败的异常使其异常完成，被线程池丢弃时以丢弃原因完成
+     */
+    public <T> CompletionStage<T> retryWithBackoff(Callable<T> callable, int maxAttempts,
+                                                   long initialBackoff, long maxBackoff,
+                                                   TimeUnit unit, Priority priority,
+                                                   Business type, String tag) {
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException("maxAttempts <= 0");
+        }
+        if (initialBackoff < 0 || maxBackoff < initialBackoff) {
+            throw new IllegalArgumentException("invalid backoff");
+        }
+        RetryAttempt<T> attempt = new RetryAttempt<T>(callable, maxAttempts,
+            unit.toNanos(initialBackoff), unit.toNanos(maxBackoff),
+            PriorityRunnable.priorityValue(priority), type, tag);
+        attempt.submit();
+        return attempt.mStage;
+    }
+
+    /**
+     * retryWithBackoff的一次执行，失败时通过时间轮安排下一次；
+     * 某一次在线程池中被丢弃时不会再有下一次，stage以丢弃的原因异常完成
+     */
+    private class RetryAttempt<T> implements Runnable, TimingWheel.DropAware {
+        final CompletableFuture<T> mStage = new CompletableFuture<T>();
+        final Callable<T> mCallable;
+        final int mMaxAttempts;
+        final long mInitialBackoffNanos;
+        final long mMaxBackoffNanos;
+        final int mPriority;
+        final Business mThreadPoolType;
+        final String mTag;
+        // 已经执行的次数，同一时间只有一次执行
+        int mAttempts;
+
+        RetryAttempt(Callable<T> callable, int maxAttempts, long initialBackoffNanos,
+                     long maxBackoffNanos, int priority, Business type, String tag) {
+            mCallable = callable;
+            mMaxAttempts = maxAttempts;
+            mInitialBackoffNanos = initialBackoffNanos;
+            mMaxBackoffNanos = maxBackoffNanos;
+            mPriority = priority;
+            mThreadPoolType = type;
+            mTag = tag;
+        }
+
+        /**
+         * 第一次执行：以FutureTask入队，被丢弃时走取消流程
+         */
+        void submit() {
+            initThreadPool(mThreadPoolType, mTag).execute(
+                new PriorityFutureTask<Void>(this, null, mPriority, 0) {
+                    @Override
+                    protected void done() {
+                        super.done();
+                        if (isCancelled()) {
+                            onDropped(new CancellationException("retry attempt dropped by "
+                                + mThreadPoolType + "/" + mTag));
+                        }
+                    }
+                });
+        }
+
+        @Override
+        public void onDropped(Throwable cause) {
+            mStage.completeExceptionally(cause);
+        }
+
+        @Override
+        public void run() {
+            if (mStage.isDone()) {
+                return;
+            }
+            mAttempts++;
+            try {
+                mStage.complete(mCallable.call());
+            } catch (Throwable t) {
+                if (mAttempts >= mMaxAttempts) {
+                    mStage.completeExceptionally(t);
+                    return;
+                }
+                long backoff = mInitialBackoffNanos;
+                for (int i = 1; i < mAttempts && backoff < mMaxBackoffNanos; i++) {
+                    backoff <<= 1;
+                }
+                backoff = Math.min(backoff, mMaxBackoffNanos);
+                long half = backoff / 2;
+                long delay = half + (half > 0 ? ThreadLocalRandom.current().nextLong(half + 1) : 0);
+                try {
+                    timingWheel().schedule(this, targetOf(mThreadPoolType, mTag), mPriority,
+                        delay, 0, TimeUnit.NANOSECONDS);
+                } catch (RejectedExecutionException e) {
+                    // 时间轮已经停止，不能再重试
+                    mStage.completeExceptionally(t);
+                }
+            }
+        }
+    }
+
+    /**
+     * 时间轮到期时按(Business, tag)解析线程池
+     */
+    private TimingWheel.Target targetOf(final Business type, final String tag) {
+        return new TimingWheel.Target() {
+            @Override
+            public ExThreadPoolExecutor get() {
+                return initThreadPool(type, tag);
+            }
+
+            @Override
+            public boolean isCurrent(ExThreadPoolExecutor pool) {
+                return getThreadPool(type, tag) == pool;
+            }
+        };
+    }
+
+    private TimingWheel timingWheel() {
+        TimingWheel wheel = mTimingWheel;
+        if (wheel == null) {
+            synchronized (this) {
+                wheel = mTimingWheel;
+                if (wheel == null) {
+                    wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, "Concurrent TimingWheel");
+                    mTimingWheel = wheel;
+                }
+            }
+        }
+        return wheel;
+    }
+
+    /**
+     * 开启任务日志：之后用{@link #executeDurable}提交的任务在执行完或取消之前一直记在file中，
+     * 进程被杀后下次开启时按优先级恢复执行，不需要重新扫描生成任务
+     * <p/>
+     * 执行中被杀的任务会再执行一次，任务需要能够重复执行
+     *
+     * @param file         日志文件
+     * @param factory      由任务描述创建任务，提交和恢复时都用它
+     * @param syncOnSubmit executeDurable是否等待记录落盘（同一时间提交的任务共享一次force）；
+     *                     false时进程被杀不会丢失记录，掉电可能丢失最近几毫秒的记录
+     * @return 恢复执行的任务数
+     * @throws IOException
+     */
+    public int enableJournal(File file, TaskJournal.TaskFactory factory, boolean syncOnSubmit)
+        throws IOException {
+        TaskJournal journal;
+        synchronized (this) {
+            if (mJournal != null) {
+                throw new IllegalStateException("journal already enabled");
+            }
+            journal = new TaskJournal(file, JOURNAL_COMMIT_INTERVAL, TimeUnit.MILLISECONDS);
+            mTaskFactory = factory;
+            mJournalSync = syncOnSubmit;
+            mJournal = journal;
+        }
+        List<TaskJournal.Entry> recovered = journal.getRecoveredEntries();
+        int replayed = 0;
+        for (int i = 0, size = recovered.size(); i < size; i++) {
+            TaskJournal.Entry entry = recovered.get(i);
+            Runnable r;
+            try {
+                r = factory.create(entry.getDescriptor());
+            } catch (RuntimeException e) {
+                // 无法恢复的任务不再保留，避免每次启动都失败一次
+                Platform.logDebug(TAG, "drop journaled task " + entry.getId() + ": " + e);
+                journal.complete(entry.getId());
+                continue;
+            }
+            submitJournaled(journal, entry, r);
+            replayed++;
+        }
+        return replayed;
+    }
+
+    /**
+     * 执行有可序列化描述的任务，并记入任务日志，需要先{@link #enableJournal}
+     * <p/>
+     * 任务执行结束（包括抛出异常）或被取消后从日志中移除；
+     * clearAllThreadPool时尚未执行的任务保留在日志中，下次enableJournal时恢复
+     *
+     * @param descriptor 任务描述，由enableJournal传入的TaskFactory创建任务
+     * @param priority   优先级
+     * @param type       线程池类型
+     * @param tag        线程池标签--由type,tag决定唯一线程池实例
+     * @return 任务对应的Future
+     * @throws IOException 描述无法序列化、日志已经关闭，或同步模式下日志无法落盘
+     */
+    public Future<?> executeDurable(Serializable descriptor, Priority priority, Business type,
+                                    String tag) throws IOException {
+        TaskJournal journal = mJournal;
+        if (journal == null) {
+            throw new IllegalStateException("journal not enabled");
+        }
+        // 与initThreadPool的默认值一致，日志中记下的是任务实际使用的线程池
+        if (type == null) {
+            type = Business.HIGH_IO;
+        }
+        if (tag == null || tag.length() == 0) {
+            tag = AsyncTag.IMAGE_LOADER;
+        }
+        Runnable r = mTaskFactory.create(descriptor);
+        TaskJournal.Entry entry = journal.append(descriptor,
+            PriorityRunnable.priorityValue(priority), type, tag);
+        if (mJournalSync) {
+            try {
+                journal.awaitCommitted(entry);
+            } catch (IOException e) {
+                // 没有提交，调用方得到异常，任务也不应在下次启动时被恢复
+                journal.complete(entry.getId());
+                throw e;
+            }
+        }
+        return submitJournaled(journal, entry, r);
+    }
+
+    private Future<?> submitJournaled(final TaskJournal journal, final TaskJournal.Entry entry,
+                                      Runnable r) {
+        PriorityFutureTask<Void> task = new PriorityFutureTask<Void>(r, null,
+            entry.getPriority(), 0) {
+            @Override
+            protected void done() {
+                super.done();
+                journal.complete(entry.getId());
+            }
+        };
+        try {
+            initThreadPool(entry.getThreadPoolType(), entry.getTag()).execute(task);
+        } catch (RejectedExecutionException e) {
+            journal.complete(entry.getId());
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * 获得任务日志，没有开启时返回null
+     *
+     * @return
+     */
+    public TaskJournal getJournal() {
+        return mJournal;
+    }
+
+    /**
+     * 关闭任务日志，未结束的任务保留在文件中，之后executeDurable抛出IllegalStateException
+     */
+    public void disableJournal() {
+        TaskJournal journal;
+        synchronized (this) {
+            journal = mJournal;
+            mJournal = null;
+        }
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                Platform.logDebug(TAG, "close journal failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 批量执行Runnable：整批任务一次进入工作队列，只唤醒需要的工作线程数，
+     * 适合一次提交几十个任务的场景（例如一屏缩略图），没有优先级的Runnable采用默认优先级5
+     *
+     * @param runnables
+     * @param type      线程池类型
+     * @param tag       线程池标签--由type,tag决定唯一线程池实例
+     */
+    public void executeAll(Collection<? extends Runnable> runnables, Business type, String tag) {
+        ArrayList<Runnable> batch = new ArrayList<Runnable>(runnables.size());
+        for (Runnable r : runnables) {
+            batch.add(r instanceof PriorityTask ? r : PriorityRunnable.obtain(r, 5));
+        }
+        ExThreadPoolExecutor threadPool = initThreadPool(type, tag);
+        threadPool.executeAll(batch);
+    }
+
+    /**
+     * 批量执行AsyncTask异步任务，每个任务的onPreExecute在提交线程上依次调用，
+     * 之后整批任务一次进入工作队列
+     *
+     * @param tasks
+     * @param type  线程池类型
+     * @param tag   线程池标签--由type,tag决定唯一线程池实例
+     */
+    @SuppressWarnings({"rawtypes"})
+    public void executeAllTasks(Collection<? extends ExAsyncTask> tasks, Business type,
+                                String tag) {
+        ArrayList<Runnable> batch = new ArrayList<Runnable>(tasks.size());
+        for (ExAsyncTask task : tasks) {
+            batch.add(task.prepareExecute());
+        }
+        ExThreadPoolExecutor threadPool = initThreadPool(type, tag);
+        threadPool.executeAll(batch);
+    }
+
+    /**
+     * 按key合并执行：相同key的任务正在排队或运行时，不再新建任务，而是共享那一次执行的结果
+     * <p/>
+     * 例如同一个图片URL在列表滑动时被多次提交，只会下载和解码一次；共享任务的优先级提升为
+     * 所有请求者中最高的，只有所有请求者都取消了，共享任务才会被取消，见{@link SingleFlight}
+     *
+     * @param key      合并的依据，例如URL
+     * @param callable 任务
+     * @param priority 本次请求的优先级
+     * @param type     线程池类型
+     * @param tag      线程池标签--由type,tag决定唯一线程池实例
+     * @return 本次请求的Future，cancel只取消本次请求
+     */
+    public <T> Future<T> executeShared(Object key, Callable<T> callable, Priority priority,
+                                       Business type, String tag) {
+        ExThreadPoolExecutor threadPool = initThreadPool(type, tag);
+        return mSingleFlight.submit(key, callable, priority, threadPool);
+    }
+
+    /**
+     * 获得key对应的虚拟线程池，不存在时创建
+     * <p/>
+     * 虚拟线程池不创建线程，任务在type的共享线程池（tag为{@link AsyncTag#SHARED}）上执行，
+     * 适合按功能、按会话等数量很多的key区分任务的场景，代替每个tag一个线程池
+     *
+     * @param type           线程池类型
+     * @param key            虚拟线程池的key
+     * @param maxConcurrency 同时执行的任务数上限，1为串行，只在创建时生效
+     * @return 虚拟线程池
+     */
+    public VirtualPool getVirtualPool(Business type, String key, int maxConcurrency) {
+        if (type == null) {
+            type = Business.HIGH_IO;
+        }
+        ConcurrentHashMap<String, VirtualPool> pools = mVirtualPools.get(type);
+        VirtualPool pool = pools.get(key);
+        if (pool == null) {
+            VirtualPool created = new VirtualPool(this, type, key, maxConcurrency);
+            pool = pools.putIfAbsent(key, created);
+            if (pool == null) {
+                pool = created;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * 在key对应的串行虚拟线程池中执行：同一key的任务依次执行，不同key的任务共享type的线程
+     *
+     * @param r
+     * @param priority 优先级
+     * @param type     线程池类型
+     * @param key      虚拟线程池的key
+     * @throws IllegalStateException key对应的虚拟线程池已经以其它并发数创建（或被修改），不再是串行的
+     */
+    public void executeSerial(Runnable r, Priority priority, Business type, String key) {
+        VirtualPool pool = getVirtualPool(type, key, 1);
+        int maxConcurrency = pool.getMaxConcurrency();
+        if (maxConcurrency != 1) {
+            // 并发数只在创建时生效，已有的虚拟线程池不能保证同一key的任务依次执行
+            throw new IllegalStateException("VirtualPool " + key + " is not serial, maxConcurrency="
+                + maxConcurrency);
+        }
+        pool.execute(r, priority);
+    }
+
+    /**
+     * 暂停key对应的虚拟线程池，不影响共享线程池中的其它key
+     *
+     * @param type
+     * @param key
+     * @return 虚拟线程池不存在时返回false
+     */
+    public boolean pauseVirtualPool(Business type, String key) {
+        VirtualPool pool = mVirtualPools.get(type != null ? type : Business.HIGH_IO).get(key);
+        if (pool != null) {
+            pool.pause();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 恢复key对应的虚拟线程池
+     *
+     * @param type
+     * @param key
+     * @return 虚拟线程池不存在时返回false
+     */
+    public boolean resumeVirtualPool(Business type, String key) {
+        VirtualPool pool = mVirtualPools.get(type != null ? type : Business.HIGH_IO).get(key);
+        if (pool != null) {
+            pool.resume();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 删除key对应的虚拟线程池，尚未执行的任务被取消
+     *
+     * @param type
+     * @param key
+     * @return true/false
+     */
+    public boolean removeVirtualPool(Business type, String key) {
+        VirtualPool pool = mVirtualPools.get(type != null ? type : Business.HIGH_IO).remove(key);
+        if (pool != null) {
+            pool.shutdownNow();
+            return true;
+        }
+        return false;
+    }
+
     /**
      * 根据异步请求初始化线程池:
      * <p/>
      * <p/>
      * 如果已经创建，则直接返回实例，
      * 若未创建，则重新创建
+     * <p/>
+     * 已创建时的查找不加锁；并发提交同一个(type, tag)时只会创建一个线程池
      *
      * @param type
      * @param mTag
@@ -137,36 +879,53 @@ public class ConcurrentManager {
             type = Business.HIGH_IO;
         }
 
-        if (mTag == null || mTag == "") {
+        if (mTag == null || mTag.length() == 0) {
             mTag = AsyncTag.IMAGE_LOADER;
         }
 
-        if (mThreadPoolList != null) {
-            for (ExThreadPoolExecutor mThreadPool : mThreadPoolList) {
-                if (mThreadPool.getmThreadPoolType().equals(type)
-                    && mThreadPool.getmTag().equals(mTag)) {
-                    return mThreadPool;
-                }
-            }
+        ExThreadPoolExecutor mThreadPool = mThreadPools.get(type).get(mTag);
+        if (mThreadPool != null) {
+            return mThreadPool;
         }
 
         return addThreadPool(type, mTag);
     }
 
     /**
-     * 新建线程池实例，并把它添加到管理队列中
+     * 新建线程池实例，并把它添加到注册表中，同一个(type, tag)只创建一次
      *
      * @param type
      * @param mTag
      * @return
      */
     private ExThreadPoolExecutor addThreadPool(Business type, String mTag) {
-        ExThreadPoolExecutor mThreadPool = ConcurrentFactory
-            .getInstance().createThreadPollInstance(type, mTag);
-        if (mThreadPoolList != null) {
-            mThreadPoolList.add(mThreadPool);
+        ConcurrentHashMap<String, ExThreadPoolExecutor> pools = mThreadPools.get(type);
+        synchronized (pools) {
+            ExThreadPoolExecutor mThreadPool = pools.get(mTag);
+            if (mThreadPool == null) {
+                mThreadPool = ConcurrentFactory
+                    .getInstance().createThreadPollInstance(type, mTag);
+                mThreadPool.attachThreadBudget(mThreadBudget,
+                    mThreadBudget.register(type, mTag, budgetWeight(type, mTag)));
+                pools.put(mTag, mThreadPool);
+            }
+            return mThreadPool;
         }
-        return mThreadPool;
+    }
+
+    /**
+     * 查找已创建的线程池，不会新建
+     *
+     * @param type
+     * @param mTag
+     * @return 线程池，不存在时返回null
+     */
+    public ExThreadPoolExecutor getThreadPool(Business type, String mTag) {
+        if (type == null)
+            type = Business.HIGH_IO;
+        if (mTag == null || mTag.length() == 0)
+            mTag = AsyncTag.IMAGE_LOADER;
+        return mThreadPools.get(type).get(mTag);
     }
 
     /**
@@ -179,18 +938,10 @@ public class ConcurrentManager {
      * @return
      */
     public boolean pauseThreadPool(Business type, String mTag) {
-        if (type == null)
-            type = Business.HIGH_IO;
-        if (mTag == null || mTag == "")
-            mTag = AsyncTag.IMAGE_LOADER;
-        if (mThreadPoolList != null) {
-            for (ExThreadPoolExecutor mThreadPool : mThreadPoolList) {
-                if (mThreadPool.getmThreadPoolType().equals(type)
-                    && mThreadPool.getmTag().equals(mTag)) {
-                    mThreadPool.pauseExecutorService();
-                    return true;
-                }
-            }
+        ExThreadPoolExecutor mThreadPool = getThreadPool(type, mTag);
+        if (mThreadPool != null) {
+            mThreadPool.pauseExecutorService();
+            return true;
         }
         return false;
     }
@@ -206,23 +957,30 @@ public class ConcurrentManager {
      * @return
      */
     public boolean resumeThreadPool(Business type, String mTag) {
-        if (type == null)
-            type = Business.HIGH_IO;
-        if (mTag == null || mTag == "")
-            mTag = AsyncTag.IMAGE_LOADER;
-        if (mThreadPoolList != null) {
-            for (ExThreadPoolExecutor mThreadPool : mThreadPoolList) {
-                if (mThreadPool.getmThreadPoolType().equals(type)
-                    && mThreadPool.getmTag().equals(mTag)) {
-                    mThreadPool.resumeExecutorService();
-                    return true;
-                }
-            }
+        ExThreadPoolExecutor mThreadPool = getThreadPool(type, mTag);
+        if (mThreadPool != null) {
+            mThreadPool.resumeExecutorService();
+            return true;
         }
 
         return false;
     }
 
+    /**
+     * 设置指定线程池的派发速率，线程池不存在时创建
+     * <p/>
+     * 适合调用有速率限制的后端的LOW_IO线程池：按后端允许的速率派发，
+     * 而不是超限后被限流再重试。没有令牌时任务留在队列中按优先级排序，不占用工作线程
+     *
+     * @param type
+     * @param mTag
+     * @param permitsPerSecond 平均每秒派发的任务数，0表示关闭限流
+     * @param burst            突发上限，至少为1
+     */
+    public void setRateLimit(Business type, String mTag, double permitsPerSecond, int burst) {
+        initThreadPool(type, mTag).setRateLimit(permitsPerSecond, burst);
+    }
+
     /**
      * 删除指定线程池
      *
@@ -233,32 +991,124 @@ public class ConcurrentManager {
     public boolean removeThreadPool(Business type, String mTag) {
         if (type == null)
             type = Business.HIGH_IO;
-        if (mTag == null || mTag == "")
+        if (mTag == null || mTag.length() == 0)
             mTag = AsyncTag.IMAGE_LOADER;
-        if (mThreadPoolList != null) {
-            ArrayList<ExThreadPoolExecutor> tList = mThreadPoolList;
-            for (ExThreadPoolExecutor mThreadPool : tList) {
-                if (mThreadPool.getmThreadPoolType().equals(type)
-                    && mThreadPool.getmTag().equals(mTag)) {
-                    mThreadPoolList.remove(mThreadPool);
-                    mThreadPool.shutdownNow();
-                    return true;
-                }
-            }
+        ExThreadPoolExecutor mThreadPool = mThreadPools.get(type).remove(mTag);
+        if (mThreadPool != null) {
+            mThreadPool.shutdownNow();
+            mThreadBudget.unregister(mThreadPool.budgetShare());
+            return true;
         }
         return false;
     }
 
+    /**
+     * 设置进程级的线程预算：所有线程池同时执行的任务数上限，0表示不限（默认）
+     * <p/>
+     * 各线程池按权重分得份额，空闲的份额借给繁忙的线程池；许可用完时，
+     * 占用少于份额的线程池优先得到归还的许可，见{@link ThreadBudget}
+     * <p/>
+     * 任务执行期间一直持有许可，在任务中阻塞等待其它任务时要先归还许可，
+     * 否则预算用完后会死锁，见{@link ThreadBudget#beginBlocking()}
+     *
+     * @param totalWorkers
+     */
+    public void setThreadBudget(int totalWorkers) {
+        mThreadBudget.setBudget(totalWorkers);
+    }
+
+    /**
+     * 设置线程池在线程预算中的权重，已创建的线程池立即生效
+     *
+     * @param type
+     * @param mTag
+     * @param weight 权重，至少为1
+     */
+    public void setThreadPoolWeight(Business type, String mTag, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("weight <= 0");
+        }
+        if (type == null)
+            type = Business.HIGH_IO;
+        if (mTag == null || mTag.length() == 0)
+            mTag = AsyncTag.IMAGE_LOADER;
+        mBudgetWeights.put(type + "/" + mTag, weight);
+        ExThreadPoolExecutor mThreadPool = getThreadPool(type, mTag);
+        if (mThreadPool != null) {
+            mThreadBudget.setWeight(mThreadPool.budgetShare(), weight);
+        }
+    }
+
+    private int budgetWeight(Business type, String mTag) {
+        Integer weight = mBudgetWeights.get(type + "/" + mTag);
+        return weight != null ? weight : 1;
+    }
+
+    /**
+     * 获得各线程池在线程预算中的份额、占用、借用和等待情况
+     *
+     * @return 快照列表
+     */
+    public List<ThreadBudget.Usage> getThreadBudgetUsage() {
+        return mThreadBudget.getUsage();
+    }
+
+    /**
+     * 获得指定线程池的统计数据：排队/暂停/执行时间的分布，拒绝/完成/取消次数
+     *
+     * @param type
+     * @param mTag
+     * @return 统计快照，线程池不存在时返回null
+     */
+    public ThreadPoolMetrics.Snapshot getThreadPoolMetrics(Business type, String mTag) {
+        ExThreadPoolExecutor mThreadPool = getThreadPool(type, mTag);
+        return mThreadPool != null ? mThreadPool.getMetrics() : null;
+    }
+
+    /**
+     * 获得所有线程池的统计数据
+     *
+     * @return 统计快照列表
+     */
+    public List<ThreadPoolMetrics.Snapshot> getAllThreadPoolMetrics() {
+        List<ThreadPoolMetrics.Snapshot> snapshots = new ArrayList<ThreadPoolMetrics.Snapshot>();
+        for (ConcurrentHashMap<String, ExThreadPoolExecutor> pools : mThreadPools.values()) {
+            for (ExThreadPoolExecutor mThreadPool : pools.values()) {
+                snapshots.add(mThreadPool.getMetrics());
+            }
+        }
+        return snapshots;
+    }
+
     /**
      * 重要方法：当APP退出时，需要调用该方法，清除APP内所有线程池
      */
     public void clearAllThreadPool() {
-        if (mThreadPoolList != null) {
-            for (ExThreadPoolExecutor mThreadPool : mThreadPoolList) {
-                mThreadPool.shutdownNow();
+        // 先关闭日志：排队中和被shutdownNow中断的任务不记为结束，下次启动时恢复
+        disableJournal();
+        synchronized (this) {
+            if (mTimingWheel != null) {
+                mTimingWheel.shutdown();
+                mTimingWheel = null;
+            }
+        }
+        for (ConcurrentHashMap<String, VirtualPool> pools : mVirtualPools.values()) {
+            for (String key : pools.keySet()) {
+                VirtualPool pool = pools.remove(key);
+                if (pool != null) {
+                    pool.shutdownNow();
+                }
+            }
+        }
+        for (ConcurrentHashMap<String, ExThreadPoolExecutor> pools : mThreadPools.values()) {
+            for (String mTag : pools.keySet()) {
+                ExThreadPoolExecutor mThreadPool = pools.remove(mTag);
+                if (mThreadPool != null) {
+                    mThreadPool.shutdownNow();
+                    mThreadBudget.unregister(mThreadPool.budgetShare());
+                }
             }
         }
-        mThreadPoolList = null;
     }
 
 }
\ No newline at end of file
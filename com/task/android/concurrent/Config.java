@@ -34,4 +34,30 @@ public class Config {
         NORM_PRIORITY, MIN_PRIORITY, MAX_PRIORITY;
     }
 
+    /**
+     * 线程池工作队列的出队策略
+     * <p/>
+     * PRIORITY_FIFO:先按优先级，同优先级先进先出（默认）
+     * <p/>
+     * FIFO:忽略优先级，先进先出
+     * <p/>
+     * LIFO:忽略优先级，后进先出，适合快速滑动时的图片加载，最新的请求对应屏幕上可见的内容
+     * <p/>
+     * PRIORITY_LIFO:先按优先级，同优先级后进先出
+     */
+    public enum DispatchPolicy implements Serializable {
+        PRIORITY_FIFO, FIFO, LIFO, PRIORITY_LIFO;
+    }
+
+    /**
+     * 有容量上限的工作队列满了之后丢弃哪个任务
+     * <p/>
+     * DROP_OLDEST:丢弃最早提交的任务，不看优先级
+     * <p/>
+     * SHED_LOWEST_PRIORITY:丢弃优先级最低的任务，优先级相同时丢弃最早提交的
+     */
+    public enum OverflowPolicy implements Serializable {
+        DROP_OLDEST, SHED_LOWEST_PRIORITY;
+    }
+
 }
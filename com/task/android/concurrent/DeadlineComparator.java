@@ -0,0 +1,40 @@
+package com.task.android.concurrent;
+
+import java.util.Comparator;
+
+/**
+ * 最早截止时间优先（EDF）的排序规则
+ * <p/>
+ * 截止时间早的排在前面；截止时间相同时按{@link PriorityComparator}的规则比较优先级和提交序号
+ *
+ * @date 2016/7/11
+ */
+public class DeadlineComparator implements Comparator<Object> {
+    private static final String TAG = "DeadlineComparator";
+
+    public static final DeadlineComparator INSTANCE = new DeadlineComparator();
+
+    @Override
+    public int compare(Object lhs, Object rhs) {
+        long ld = deadlineOf(lhs);
+        long rd = deadlineOf(rhs);
+        if (ld != rd) {
+            // nanoTime可能为负，用差值比较
+            return ld - rd < 0 ? -1 : 1;
+        }
+        return PriorityComparator.compareTasks(lhs, rhs);
+    }
+
+    /**
+     * 获得任务的截止时间，没有实现{@link DeadlineTask}的任务返回0
+     *
+     * @param r
+     * @return 截止时间
+     */
+    static long deadlineOf(Object r) {
+        if (r instanceof DeadlineTask) {
+            return ((DeadlineTask) r).getDeadline();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,28 @@
+package com.task.android.concurrent;
+
+/**
+ * 带截止时间的任务
+ * <p/>
+ * 截止时间过后任务就没有意义了（例如列表项已经滑出屏幕的缩略图），
+ * {@link PriorityLaneBlockingQueue}在任务交给工作线程之前发现已过期时不再执行它，
+ * 而是调用{@link #expire()}，由任务通过自己的取消路径通知调用方
+ *
+ * @date 2016/7/11
+ */
+public interface DeadlineTask {
+
+    /**
+     * 获得截止时间（System.nanoTime()）
+     *
+     * @return 截止时间，0表示没有截止时间
+     */
+    long getDeadline();
+
+    /**
+     * 任务在队列中过期、被丢弃时调用，实现方应当走取消流程，
+     * 例如FutureTask.cancel(false)，使调用方收到取消通知
+     * <p/>
+     * 调用时可能持有队列的内部锁，不能阻塞
+     */
+    void expire();
+}
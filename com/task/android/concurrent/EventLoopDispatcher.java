@@ -0,0 +1,155 @@
+package com.task.android.concurrent;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 单消费者事件循环的ResultDispatcher，用于没有Android主线程的JVM环境
+ * <p/>
+ * 任意线程post，回调都在同一个守护线程上按提交顺序执行。
+ * 消费线程每次被唤醒后把积累的回调一次执行完再休眠，生产者只在消费线程休眠时才unpark它，
+ * 回调密集时多个回调共用一次唤醒。延迟回调由消费线程自己维护的堆按到期时间执行
+ *
+ * @date 2016/7/12
+ */
+public class EventLoopDispatcher implements ResultDispatcher {
+    private static final String TAG = "EventLoopDispatcher";
+
+    private final ConcurrentLinkedQueue<Runnable> mPending = new ConcurrentLinkedQueue<Runnable>();
+    // 延迟回调先放这里，由消费线程转移到mTimers
+    private final ConcurrentLinkedQueue<Timer> mDelayedInbox = new ConcurrentLinkedQueue<Timer>();
+    // 只由消费线程访问
+    private final PriorityQueue<Timer> mTimers = new PriorityQueue<Timer>();
+    private final Thread mThread;
+    // 消费线程是否准备休眠，生产者看到它才unpark
+    private volatile boolean mSleeping;
+    private volatile boolean mShutdown;
+
+    /**
+     * 延迟回调
+     */
+    private static final class Timer implements Comparable<Timer> {
+        final long mDueNanos;
+        final long mSequence;
+        final Runnable mCallback;
+
+        Timer(long dueNanos, long sequence, Runnable callback) {
+            mDueNanos = dueNanos;
+            mSequence = sequence;
+            mCallback = callback;
+        }
+
+        @Override
+        public int compareTo(Timer another) {
+            long diff = mDueNanos - another.mDueNanos;
+            if (diff != 0) {
+                return diff < 0 ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : mSequence > another.mSequence ? 1 : 0;
+        }
+    }
+
+    private long mTimerSequence;
+
+    /**
+     * @param name 消费线程的名称
+     */
+    public EventLoopDispatcher(String name) {
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    @Override
+    public void post(Runnable callback) {
+        if (callback == null) {
+            throw new NullPointerException();
+        }
+        mPending.offer(callback);
+        wakeUp();
+    }
+
+    @Override
+    public void postDelayed(Runnable callback, long delayMillis) {
+        if (delayMillis <= 0) {
+            post(callback);
+            return;
+        }
+        mDelayedInbox.offer(new Timer(System.nanoTime()
+            + TimeUnit.MILLISECONDS.toNanos(delayMillis), 0, callback));
+        wakeUp();
+    }
+
+    private void wakeUp() {
+        // 先入队再读mSleeping，消费线程先写mSleeping再检查队列，不会丢失唤醒
+        if (mSleeping) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /**
+     * 停止事件循环，尚未执行的回调被丢弃
+     */
+    public void shutdown() {
+        mShutdown = true;
+        LockSupport.unpark(mThread);
+    }
+
+    /**
+     * 当前线程是否是本事件循环的消费线程
+     *
+     * @return
+     */
+    public boolean isEventLoopThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    private void loop() {
+        while (!mShutdown) {
+            Timer timer;
+            while ((timer = mDelayedInbox.poll()) != null) {
+                mTimers.add(new Timer(timer.mDueNanos, ++mTimerSequence, timer.mCallback));
+            }
+            long now = System.nanoTime();
+            while ((timer = mTimers.peek()) != null && timer.mDueNanos - now <= 0) {
+                mTimers.poll();
+                runSafely(timer.mCallback);
+            }
+            // 一批：本次唤醒时已经积累的回调全部执行完
+            Runnable callback;
+            while ((callback = mPending.poll()) != null) {
+                runSafely(callback);
+            }
+            mSleeping = true;
+            if (mPending.isEmpty() && mDelayedInbox.isEmpty() && !mShutdown) {
+                timer = mTimers.peek();
+                if (timer == null) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, timer.mDueNanos - System.nanoTime());
+                }
+            }
+            mSleeping = false;
+        }
+    }
+
+    private static void runSafely(Runnable callback) {
+        try {
+            callback.run();
+        } catch (Throwable t) {
+            // 回调抛出的异常不能终止事件循环
+            Thread thread = Thread.currentThread();
+            Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+            if (handler != null) {
+                handler.uncaughtException(thread, t);
+            }
+        }
+    }
+}
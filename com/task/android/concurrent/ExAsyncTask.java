@@ -1,18 +1,17 @@
 package com.task.android.concurrent;
 
-import android.os.AsyncTask;
-import android.os.Handler;
-import android.os.Message;
-import android.util.Log;
-
 import com.task.android.concurrent.Config.Priority;
 
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * 扩展的AsyncTask抽象类，是根据Android原生的AsyncTask扩展的一个新类，
@@ -20,6 +19,15 @@ import java.util.concurrent.TimeoutException;
  *
  * <p/>
  * 如果项目中有使用AsyncTask的地方，需要子类继承于该类而不继承于原生的AsyncTask类
+ * <p/>
+ * 与原生AsyncTask不同，主线程消息做了合并：
+ * 同一任务的publishProgress只保留最新值，最多只有一条待处理的进度消息，
+ * 两次onProgressUpdate之间至少间隔{@link #setProgressInterval(long, TimeUnit)}；
+ * 同一时间段内完成或取消的多个任务在一次消息分发中依次回调onPostExecute/onCancelled
+ * <p/>
+ * 回调线程由{@link ResultDispatcher}决定，默认是{@link ResultDispatchers#platformDefault()}：
+ * Android上为主线程，普通JVM上为共享的事件循环线程，
+ * 可以通过{@link #setDefaultDispatcher(ResultDispatcher)}或{@link #setDispatcher(ResultDispatcher)}替换
  *
  * @param <Params>
  * @param <Progress>
@@ -29,19 +37,57 @@ import java.util.concurrent.TimeoutException;
 public abstract class ExAsyncTask<Params, Progress, Result> {
     private static final String TAG = "Concurrent ExAsyncTask";
 
-    private static final int MESSAGE_POST_RESULT = 0x1;
-    private static final int MESSAGE_POST_PROGRESS = 0x2;
-    private static final int MESSAGE_POST_CANCEL = 0x3;
+    // mPendingValue中没有待分发进度的标记
+    private static final Object NO_PROGRESS = new Object();
 
-    private static final InternalHandler mHandler = new InternalHandler();
+    // 没有单独设置dispatcher的任务使用的回调方式，null表示尚未初始化
+    private static volatile ResultDispatcher sDefaultDispatcher;
 
     private final WorkerRunnable<Params, Result> mWorker;
-    private final FutureTask<Result> mFuture;
+    private final WorkerFutureTask mFuture;
 
     private volatile Status mStatus = Status.PENDING;
     private int mPriority = 5;
+    // 从提交时刻起的有效期(ns)，0表示没有截止时间
+    private long mTimeoutNanos;
     Params[] mParams;
 
+    // 最新一次publishProgress的值，回调线程取走后置null
+    private final AtomicReference<Progress[]> mPendingProgress =
+        new AtomicReference<Progress[]>();
+    // publishProgressValue发布的最新单个进度值，没有时为NO_PROGRESS
+    private final AtomicReference<Object> mPendingValue = new AtomicReference<Object>(NO_PROGRESS);
+    // 是否已经有一条进度回调在dispatcher中
+    private final AtomicBoolean mProgressScheduled = new AtomicBoolean();
+    // 两次onProgressUpdate的最小间隔(ms)
+    private volatile long mProgressIntervalMillis;
+    // 上一次onProgressUpdate的时间(ms，System.nanoTime换算)
+    private volatile long mLastProgressTime;
+
+    // 本任务的回调方式，null时使用sDefaultDispatcher
+    private volatile ResultDispatcher mDispatcher;
+    // 投递给dispatcher的回调，每个任务只分配一次
+    private final Runnable mProgressCallback = new Runnable() {
+        @Override
+        public void run() {
+            deliverProgress();
+        }
+    };
+    private final Runnable mCompletionCallback = new Runnable() {
+        @Override
+        public void run() {
+            complete();
+        }
+    };
+
+    // 非阻塞的结果视图，第一次调用toCompletionStage时创建
+    private final AtomicReference<CompletableFuture<Result>> mStage =
+        new AtomicReference<CompletableFuture<Result>>();
+
+    // done()中取得的结果，由回调线程在批量分发时回调
+    private Result mResult;
+    private boolean mCancelledResult;
+
     /**
      * Indicates the current status of the task. Each status will be set only
      * once during the lifetime of a task.
@@ -56,75 +102,96 @@ public abstract class ExAsyncTask<Params, Progress, Result> {
          */
         RUNNING,
         /**
-         * Indicates that {@link AsyncTask#onPostExecute} has finished.
+         * Indicates that {@link ExAsyncTask#onPostExecute} has finished.
          */
         FINISHED,
     }
 
     /**
-     * @hide Used to force static handler to be created.
+     * @hide Used to force default dispatcher to be created.
      */
     public static void init() {
-        mHandler.getLooper();
+        defaultDispatcher();
+    }
+
+    /**
+     * 设置全局默认的回调方式，只影响之后投递的回调
+     *
+     * @param dispatcher null表示恢复为{@link ResultDispatchers#platformDefault()}
+     */
+    public static void setDefaultDispatcher(ResultDispatcher dispatcher) {
+        sDefaultDispatcher = dispatcher;
+    }
+
+    private static ResultDispatcher defaultDispatcher() {
+        ResultDispatcher dispatcher = sDefaultDispatcher;
+        if (dispatcher == null) {
+            dispatcher = ResultDispatchers.platformDefault();
+            sDefaultDispatcher = dispatcher;
+        }
+        return dispatcher;
+    }
+
+    /**
+     * 设置本任务的回调方式，需要在execute之前调用
+     *
+     * @param dispatcher null表示使用全局默认
+     */
+    public void setDispatcher(ResultDispatcher dispatcher) {
+        mDispatcher = dispatcher;
+    }
+
+    private ResultDispatcher dispatcher() {
+        ResultDispatcher dispatcher = mDispatcher;
+        return dispatcher != null ? dispatcher : defaultDispatcher();
     }
 
     public ExAsyncTask() {
         mWorker = new WorkerRunnable<Params, Result>() {
 
             public Result call() throws Exception {
-                android.os.Process.setThreadPriority(mPriority);
+                Platform.setThreadPriority(mPriority);
                 return doInBackground(mParams);
             }
         };
 
         mFuture = new WorkerFutureTask(mWorker) {
-            @SuppressWarnings("unchecked")
             @Override
             protected void done() {
-                Message message;
+                OwnerIndex.Group group = mOwnerGroup;
+                if (group != null) {
+                    group.remove(this);
+                }
+                CompletableFuture<Result> stage = mStage.get();
+                if (stage != null) {
+                    completeStage(stage);
+                }
                 Result result = null;
                 try {
                     result = get();
                 } catch (InterruptedException e) {
-                    Log.d(TAG ,  " InterruptedException = " + e.getMessage());
+                    Platform.logDebug(TAG,  " InterruptedException = " + e.getMessage());
                 } catch (ExecutionException e) {
-                    Log.d(TAG , " ExecutionException = " + e.getMessage());
+                    Platform.logDebug(TAG, " ExecutionException = " + e.getMessage());
                     //throw new RuntimeException(
                     //        "An error occured while executing doInBackground()",
                     //        e.getCause());
                 } catch (CancellationException e) {
-                    message = mHandler.obtainMessage(MESSAGE_POST_CANCEL,
-                        new AsyncTaskResult<Result>(ExAsyncTask.this,
-                            (Result[]) null));
-                    message.sendToTarget();
+                    postCompletion(null, true);
                     return;
                 } catch (Throwable t) {
-                    Log.d(TAG , " Throwable = " + t.getMessage());
+                    Platform.logDebug(TAG, " Throwable = " + t.getMessage());
                     //throw new RuntimeException(
                     //        "An error occured while executing "
                     //          + "doInBackground()", t);
                 }
 
-                message = mHandler.obtainMessage(MESSAGE_POST_RESULT,
-                    new AsyncTaskResult<Result>(ExAsyncTask.this,
-                        result));
-                message.sendToTarget();
+                postCompletion(result, false);
             }
 
-            @SuppressWarnings("unchecked")
             @Override
             public int compareTo(Object another) {
-                if (another instanceof ExAsyncTask.WorkerFutureTask) {
-                    return this.mPriority < ((WorkerFutureTask) another).mPriority ? -1
-                        : this.mPriority > ((WorkerFutureTask) another).mPriority ? 1
-                        : 0;
-                } else if (another instanceof PriorityRunnable) {
-                    return this.mPriority < ((PriorityRunnable) another).mPriority ? -1
-                        : this.mPriority > ((PriorityRunnable) another).mPriority ? 1
-                        : 0;
-                } else {
-                    return 0;
-                }
+                return PriorityComparator.compareTasks(this, another);
             }
         };
     }
@@ -152,6 +219,34 @@ public abstract class ExAsyncTask<Params, Progress, Result> {
         }
     }
 
+    /**
+     * 设置两次onProgressUpdate之间的最小间隔，间隔内的publishProgress只保留最新值
+     *
+     * @param interval 0表示不限速，但仍然合并尚未分发的进度
+     * @param unit
+     */
+    public void setProgressInterval(long interval, TimeUnit unit) {
+        mProgressIntervalMillis = Math.max(0, unit.toMillis(interval));
+    }
+
+    /**
+     * 设置截止时间：从execute时刻起超过timeout还没有开始执行的任务被丢弃，
+     * 通过取消流程回调onCancelled，不会再执行doInBackground
+     *
+     * @param timeout 0表示没有截止时间
+     * @param unit
+     */
+    public void setDeadline(long timeout, TimeUnit unit) {
+        mTimeoutNanos = Math.max(0, unit.toNanos(timeout));
+    }
+
+    /**
+     * 在owner索引中登记，必须在execute之前调用
+     */
+    final void joinOwnerGroup(OwnerIndex index, Object owner) {
+        mFuture.mOwnerGroup = index.add(owner, mFuture);
+    }
+
     private Params[] getmParams() {
         return mParams;
     }
@@ -175,6 +270,14 @@ public abstract class ExAsyncTask<Params, Progress, Result> {
     protected void onProgressUpdate(Progress... values) {
     }
 
+    /**
+     * {@link #publishProgressValue(Object)}发布的进度在主线程的回调
+     *
+     * @param value
+     */
+    protected void onProgressValue(Progress value) {
+    }
+
     protected void onCancelled() {
     }
 
@@ -186,13 +289,71 @@ public abstract class ExAsyncTask<Params, Progress, Result> {
         return mFuture.cancel(mayInterruptIfRunning);
     }
 
+    /**
+     * 获得任务结果的非阻塞视图，可以用thenApplyAsync等组合后续步骤，不需要阻塞线程等待get()
+     * <p/>
+     * 后续步骤在工作线程上完成（doInBackground所在线程），需要指定线程池时传入
+     * {@link ConcurrentManager#executorFor(Config.Business, String)}，
+     * 同一线程池时直接执行，不再入队。doInBackground抛出的异常使stage异常完成，
+     * 任务被取消（包括过期、按owner取消）时stage以CancellationException完成；
+     * 反过来取消stage不会取消任务。onPostExecute等主线程回调照常进行
+     *
+     * @return CompletionStage
+     */
+    public final CompletionStage<Result> toCompletionStage() {
+        CompletableFuture<Result> stage = mStage.get();
+        if (stage == null) {
+            CompletableFuture<Result> created = new CompletableFuture<Result>();
+            stage = mStage.compareAndSet(null, created) ? created : mStage.get();
+            // done()可能在创建之前已经执行过，重复complete是无害的
+            if (mFuture.isDone()) {
+                completeStage(stage);
+            }
+        }
+        return stage;
+    }
+
+    /**
+     * 按已结束的mFuture的状态完成stage
+     */
+    private void completeStage(CompletableFuture<Result> stage) {
+        try {
+            stage.complete(mFuture.get());
+        } catch (CancellationException e) {
+            stage.cancel(false);
+        } catch (ExecutionException e) {
+            stage.completeExceptionally(e.getCause());
+        } catch (InterruptedException e) {
+            stage.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 在工作线程中等待时暂时归还线程预算的许可，见{@link ThreadBudget#beginBlocking()}
+     */
     public final Result get() throws InterruptedException, ExecutionException {
-        return mFuture.get();
+        if (mFuture.isDone()) {
+            return mFuture.get();
+        }
+        ThreadBudget.Share held = ThreadBudget.beginBlocking();
+        try {
+            return mFuture.get();
+        } finally {
+            ThreadBudget.endBlocking(held);
+        }
     }
 
     public final Result get(long timeout, TimeUnit unit)
         throws InterruptedException, ExecutionException, TimeoutException {
-        return mFuture.get(timeout, unit);
+        if (mFuture.isDone()) {
+            return mFuture.get(timeout, unit);
+        }
+        ThreadBudget.Share held = ThreadBudget.beginBlocking();
+        try {
+            return mFuture.get(timeout, unit);
+        } finally {
+            ThreadBudget.endBlocking(held);
+        }
     }
 
     /**
@@ -217,6 +378,17 @@ public abstract class ExAsyncTask<Params, Progress, Result> {
      */
     public final ExAsyncTask<Params, Progress, Result> execute(
         ExThreadPoolExecutor executor) {
+        executor.execute(prepareExecute());
+
+        return this;
+    }
+
+    /**
+     * 检查状态、调用onPreExecute并设置参数和优先级，返回需要提交到线程池的任务
+     *
+     * @return 提交到线程池的WorkerFutureTask
+     */
+    final WorkerFutureTask prepareExecute() {
         if (mStatus != Status.PENDING) {
             switch (mStatus) {
                 case RUNNING:
@@ -237,70 +409,164 @@ public abstract class ExAsyncTask<Params, Progress, Result> {
 
         mWorker.mParams = this.getmParams();
         mWorker.mPriority = this.getmPriority();
+        // WorkerFutureTask在构造时就拷贝了优先级，这里需要同步为执行时设定的优先级
+        mFuture.mPriority = mWorker.mPriority;
+        mFuture.mDeadline = mTimeoutNanos > 0 ? deadlineAfter(mTimeoutNanos) : 0;
 
-        executor.execute(mFuture);
-
-        return this;
+        return mFuture;
     }
 
+    /**
+     * 发布进度：只保留最新值，主线程队列中已有本任务的进度消息时不再发送新消息
+     *
+     * @param values
+     */
     protected final void publishProgress(Progress... values) {
-        mHandler.obtainMessage(MESSAGE_POST_PROGRESS,
-            new AsyncTaskResult<Progress>(this, values)).sendToTarget();
+        mPendingProgress.set(values);
+        scheduleProgress();
     }
 
-    private void finish(Result result) {
-        onPostExecute(result);
-        mStatus = Status.FINISHED;
+    /**
+     * 发布单个进度值，不分配varargs数组，在主线程回调{@link #onProgressValue(Object)}
+     * <p/>
+     * 合并规则与{@link #publishProgress(Object[])}相同，同一任务不要混用两种方式
+     *
+     * @param value
+     */
+    protected final void publishProgressValue(Progress value) {
+        mPendingValue.set(value);
+        scheduleProgress();
     }
 
-    private static class InternalHandler extends Handler {
-        @SuppressWarnings({"unchecked"})
-        @Override
-        public void handleMessage(Message msg) {
-            AsyncTaskResult<?> result = (AsyncTaskResult<?>) msg.obj;
-            switch (msg.what) {
-                case MESSAGE_POST_RESULT:
-                    // There is only one result
-                    result.mTask.finish(result.mData[0]);
-                    break;
-                case MESSAGE_POST_PROGRESS:
-                    result.mTask.onProgressUpdate(result.mData);
-                    break;
-                case MESSAGE_POST_CANCEL:
-                    result.mTask.onCancelled();
-                    break;
-                default:
-                    break;
+    private void scheduleProgress() {
+        if (mProgressScheduled.compareAndSet(false, true)) {
+            long delay = mLastProgressTime + mProgressIntervalMillis - uptimeMillis();
+            if (delay > 0) {
+                dispatcher().postDelayed(mProgressCallback, delay);
+            } else {
+                dispatcher().post(mProgressCallback);
             }
         }
     }
 
+    /**
+     * 回调线程：分发最新的进度
+     */
+    private void deliverProgress() {
+        // 先清标记再取值，之后的publishProgress会发送新的消息，不会丢失
+        mProgressScheduled.set(false);
+        Progress[] values = mPendingProgress.getAndSet(null);
+        Object value = mPendingValue.getAndSet(NO_PROGRESS);
+        if (values != null || value != NO_PROGRESS) {
+            mLastProgressTime = uptimeMillis();
+        }
+        if (values != null) {
+            onProgressUpdate(values);
+        }
+        if (value != NO_PROGRESS) {
+            onProgressValue(castProgress(value));
+        }
+    }
+
+    private static long uptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    @SuppressWarnings("unchecked")
+    private Progress castProgress(Object value) {
+        return (Progress) value;
+    }
+
+    /**
+     * 工作线程：记录结果并投递到回调线程，多个任务的合并由dispatcher完成
+     */
+    private void postCompletion(Result result, boolean cancelled) {
+        mResult = result;
+        mCancelledResult = cancelled;
+        // dispatcher内部的并发队列保证了上面两个字段对回调线程可见
+        dispatcher().post(mCompletionCallback);
+    }
+
+    /**
+     * 回调线程：回调结果或取消，尚未分发的进度先行分发，保持进度在结果之前的顺序
+     */
+    private void complete() {
+        if (mPendingProgress.get() != null || mPendingValue.get() != NO_PROGRESS) {
+            deliverProgress();
+        }
+        if (mCancelledResult) {
+            onCancelled();
+        } else {
+            Result result = mResult;
+            mResult = null;
+            finish(result);
+        }
+    }
+
+    private void finish(Result result) {
+        onPostExecute(result);
+        mStatus = Status.FINISHED;
+    }
+
     private static abstract class WorkerRunnable<Params, Result> implements
         Callable<Result> {
         Params[] mParams;
-        int mPriority = android.os.Process.THREAD_PRIORITY_BACKGROUND;
+        int mPriority = Platform.THREAD_PRIORITY_BACKGROUND;
+    }
+
+    /**
+     * 计算截止时间，避开表示“没有截止时间”的0
+     */
+    private static long deadlineAfter(long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        return deadline == 0 ? 1 : deadline;
     }
 
     public abstract class WorkerFutureTask extends FutureTask<Result> implements
-        Comparable<Object> {
+        PriorityTask, DeadlineTask, Comparable<Object> {
 
         int mPriority;
+        volatile long mDeadline;
+        // 按owner提交时所属的分组
+        volatile OwnerIndex.Group mOwnerGroup;
+        private volatile long mSequence;
+        private volatile long mSubmitTime;
 
         @SuppressWarnings({"rawtypes", "unchecked"})
         public WorkerFutureTask(WorkerRunnable callable) {
             super(callable);
             mPriority = callable.mPriority;
         }
-    }
 
-    @SuppressWarnings("rawtypes")
-    private static class AsyncTaskResult<Data> {
-        final ExAsyncTask mTask;
-        final Data[] mData;
+        @Override
+        public int getPriority() {
+            return mPriority;
+        }
 
-        AsyncTaskResult(ExAsyncTask task, Data... data) {
-            mTask = task;
-            mData = data;
+        @Override
+        public long getSequence() {
+            return mSequence;
+        }
+
+        @Override
+        public long getSubmitTime() {
+            return mSubmitTime;
+        }
+
+        @Override
+        public void markSubmitted(long sequence, long submitTime) {
+            mSubmitTime = submitTime;
+            mSequence = sequence;
+        }
+
+        @Override
+        public long getDeadline() {
+            return mDeadline;
+        }
+
+        @Override
+        public void expire() {
+            cancel(false);
         }
     }
 
@@ -1,15 +1,32 @@
 package com.task.android.concurrent;
 
+import android.os.Debug;
+
 import com.task.android.concurrent.Config.Business;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 扩展的线程池，增加了暂停和重启线程池的功能
+ * <p/>
+ * 每个线程池自带任务生命周期统计（排队、暂停、执行时间，拒绝/完成/取消次数），见{@link #getMetrics()}
+ * <p/>
+ * 可选开启自适应线程数，见{@link #enableAdaptiveSizing(int, int)}
+ * <p/>
+ * 由ConcurrentManager创建的线程池受进程级的线程预算约束，见{@link ThreadBudget}
+ * <p/>
+ * 可选开启令牌桶限流，见{@link #setRateLimit(double, int)}
  *
  * @date 2016/7/9
  */
@@ -18,6 +35,10 @@ public class ExThreadPoolExecutor extends ThreadPoolExecutor {
 
     // 暂停和重启锁
     private PauseAndResumeLock mCont;
+    // 支持出队闸门的工作队列，暂停时任务留在队列中，不支持时为null
+    private final PriorityLaneBlockingQueue mQueueGate;
+    // 核心线程是否已全部启动
+    private volatile boolean mCoreThreadsStarted;
     // 线程池的业务类型
     private Business mThreadPoolType = Business.HIGH_IO;
     // 线程池默认的TAG
@@ -26,6 +47,31 @@ public class ExThreadPoolExecutor extends ThreadPoolExecutor {
     private final ThreadGroup mThreadGroup;
     // 线程工厂
     private final ThreadFactory mThreadFactory;
+    // 任务提交序号，从1开始单调递增
+    private final AtomicLong mSequence = new AtomicLong();
+    // 任务生命周期统计
+    private final ThreadPoolMetrics mMetrics;
+    // 使用者设置的拒绝策略，外层包装了一层用于统计拒绝次数
+    private volatile RejectedExecutionHandler mRejectedHandler;
+    // 自适应线程数控制器，未开启时为null
+    private AdaptivePoolController mController;
+    // 是否统计任务的线程CPU时间，开启自适应线程数时才需要
+    private volatile boolean mTrackCpuTime;
+    // 进程级的线程预算和本线程池的份额，执行任务之前设置，之后不变
+    private volatile ThreadBudget mThreadBudget;
+    private volatile ThreadBudget.Share mBudgetShare;
+
+    // 工作线程上当前任务的开始时间：[0]墙钟时间，[1]线程CPU时间，每个线程只分配一次
+    private static final ThreadLocal<long[]> sStartTime = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[2];
+        }
+    };
+
+    // 工作线程所属的线程池：工作线程（包括工作窃取线程和虚拟线程）只为一个线程池执行任务，设置后不需要清除
+    private static final ThreadLocal<ExThreadPoolExecutor> sCurrentExecutor =
+        new ThreadLocal<ExThreadPoolExecutor>();
 
     /**
      * 扩展的线程池构造函数
@@ -46,6 +92,15 @@ public class ExThreadPoolExecutor extends ThreadPoolExecutor {
         this.mThreadPoolType = mThreadPoolType;
         this.mTag = mTag;
         this.mCont = new PauseAndResumeLock();
+        this.mQueueGate = workQueue instanceof PriorityLaneBlockingQueue
+            ? (PriorityLaneBlockingQueue) workQueue : null;
+        this.mMetrics = new ThreadPoolMetrics(mThreadPoolType, mTag);
+        if (mQueueGate != null) {
+            // 暂停发生在出队闸门，工作线程不会在beforeExecute中等待，暂停时长由闸门记录
+            mQueueGate.setPauseRecorder(mMetrics.mPause);
+        }
+        this.mRejectedHandler = super.getRejectedExecutionHandler();
+        super.setRejectedExecutionHandler(new CountingRejectedHandler());
 
         mThreadGroup = new ThreadGroup("Group # " + mThreadPoolType.name());
         mThreadFactory = new ThreadFactory() {
@@ -61,28 +116,449 @@ public class ExThreadPoolExecutor extends ThreadPoolExecutor {
         setThreadFactory(mThreadFactory);
     }
 
+    /**
+     * 提交任务，带优先级的任务在入队前记录提交序号和提交时间，
+     * 用于同优先级先进先出和低优先级任务的老化
+     *
+     * @param command
+     */
+    @Override
+    public void execute(Runnable command) {
+        markSubmitted(command);
+        ensureCoreThreadsStarted();
+        super.execute(command);
+    }
+
+    /**
+     * 批量提交任务
+     * <p/>
+     * 工作队列是{@link PriorityLaneBlockingQueue}时整批任务一次入队，
+     * 只唤醒需要的工作线程数；否则逐个提交
+     *
+     * @param commands
+     */
+    public void executeAll(Collection<? extends Runnable> commands) {
+        if (mQueueGate == null) {
+            for (Runnable command : commands) {
+                execute(command);
+            }
+            return;
+        }
+        if (!prepareBatch(commands)) {
+            return;
+        }
+        ensureCoreThreadsStarted();
+        mQueueGate.offerAll(commands);
+        if (isShutdown()) {
+            // 与父类execute一致：入队后发现已关闭，撤回并拒绝
+            for (Runnable command : commands) {
+                if (remove(command)) {
+                    reject(command);
+                }
+            }
+        }
+    }
+
+    /**
+     * 批量提交前的检查：已关闭时全部拒绝，否则记录提交序号
+     *
+     * @param commands
+     * @return false表示已经全部拒绝
+     */
+    boolean prepareBatch(Collection<? extends Runnable> commands) {
+        if (isShutdown()) {
+            for (Runnable command : commands) {
+                reject(command);
+            }
+            return false;
+        }
+        for (Runnable command : commands) {
+            if (command == null) {
+                throw new NullPointerException();
+            }
+            markSubmitted(command);
+        }
+        return true;
+    }
+
+    /**
+     * 线程数不足核心线程数时父类会把任务直接交给新线程而不经过队列，绕过出队闸门，
+     * 所以先启动全部核心线程，之后的任务都经过工作队列
+     */
+    private void ensureCoreThreadsStarted() {
+        if (mQueueGate != null && !mCoreThreadsStarted) {
+            prestartAllCoreThreads();
+            mCoreThreadsStarted = true;
+        }
+    }
+
+    /**
+     * 支持出队闸门和批量入队的工作队列
+     *
+     * @return 不支持时为null
+     */
+    PriorityLaneBlockingQueue laneQueue() {
+        return mQueueGate;
+    }
+
+    /**
+     * 记录任务的提交序号和提交时间
+     *
+     * @param command
+     */
+    void markSubmitted(Runnable command) {
+        if (command instanceof PriorityTask) {
+            ((PriorityTask) command).markSubmitted(mSequence.incrementAndGet(),
+                System.nanoTime());
+        }
+    }
+
+    /**
+     * 任务开始执行前：统计排队时间，接手出队时领到的线程预算许可（其它工作队列在此领取）
+     * <p/>
+     * 工作队列支持出队闸门时暂停发生在出队，不会走到这里；只有不支持闸门的工作队列
+     * 才在此等待暂停结束并统计等待时间
+     */
     @Override
     protected void beforeExecute(Thread t, Runnable r) {
+        long now = System.nanoTime();
+        if (r instanceof PriorityTask && ((PriorityTask) r).getSequence() != 0) {
+            mMetrics.mQueueWait.record(now - ((PriorityTask) r).getSubmitTime());
+        }
+        if (this.mCont.isPaused()) {
+            try {
+                this.mCont.checkIn();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            long resumed = System.nanoTime();
+            mMetrics.mPause.record(resumed - now);
+            now = resumed;
+        }
+        ThreadBudget budget = mThreadBudget;
+        if (budget != null) {
+            budget.acquire(mBudgetShare);
+            // 等待许可的时间不计入执行时间，由ThreadBudget单独统计
+            now = System.nanoTime();
+        }
+        long[] startTime = sStartTime.get();
+        startTime[0] = now;
+        startTime[1] = mTrackCpuTime ? Debug.threadCpuTimeNanos() : -1;
+        if (sCurrentExecutor.get() != this) {
+            sCurrentExecutor.set(this);
+        }
+        super.beforeExecute(t, r);
+    }
+
+    /**
+     * 当前线程是否是本线程池的工作线程，且正在执行本线程池的任务
+     *
+     * @return
+     */
+    boolean isCurrentThreadWorker() {
+        return sCurrentExecutor.get() == this;
+    }
+
+    /**
+     * 任务执行结束后：统计执行时间和完成/取消/异常次数
+     */
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        // 子类在super.afterExecute之后可能还会用到r，推迟回收
+        PriorityRunnable.retire(r);
+        ThreadBudget budget = mThreadBudget;
+        if (budget != null) {
+            budget.release();
+        }
+        if (r instanceof Future && ((Future<?>) r).isCancelled()) {
+            mMetrics.mCancelled.incrementAndGet();
+            return;
+        }
+        long[] startTime = sStartTime.get();
+        long wall = System.nanoTime() - startTime[0];
+        mMetrics.mExecution.record(wall);
+        if (startTime[1] >= 0) {
+            long cpu = Debug.threadCpuTimeNanos();
+            if (cpu >= 0) {
+                mMetrics.mCpuNanos.addAndGet(cpu - startTime[1]);
+                mMetrics.mCpuWallNanos.addAndGet(wall);
+            }
+        }
+        mMetrics.mCompleted.incrementAndGet();
+        if (t == null && r instanceof Future && ((Future<?>) r).isDone()) {
+            // FutureTask（submit、ExAsyncTask）把异常保存在结果里，不会传到这里
+            t = failureOf((Future<?>) r);
+        }
+        if (t != null) {
+            mMetrics.mFailed.incrementAndGet();
+        }
+    }
+
+    /**
+     * 已完成的Future中保存的异常
+     *
+     * @param future
+     * @return 正常完成时为null
+     */
+    private static Throwable failureOf(Future<?> future) {
         try {
-            this.mCont.checkIn();
+            future.get();
+        } catch (ExecutionException e) {
+            return e.getCause() != null ? e.getCause() : e;
+        } catch (CancellationException e) {
+            // 执行期间被取消，不算失败
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            Thread.currentThread().interrupt();
         }
-        super.beforeExecute(t, r);
+        return null;
+    }
+
+    /**
+     * 当前工作线程记录任务开始时间的位置，嵌套执行任务时（工作窃取线程池中join子任务）
+     * 需要保存并恢复外层任务的开始时间
+     *
+     * @return [0]墙钟时间，[1]线程CPU时间
+     */
+    static long[] startTimeSlot() {
+        return sStartTime.get();
+    }
+
+    /**
+     * 拒绝任务：统计后交给使用者设置的拒绝策略处理
+     * <p/>
+     * 关闭后DiscardPolicy/DiscardOldestPolicy会悄悄丢弃任务，拒绝策略返回后Future仍未结束的，
+     * 不会再有线程执行它，取消它让等待结果的一方得到通知
+     *
+     * @param command
+     */
+    void reject(Runnable command) {
+        mMetrics.mRejected.incrementAndGet();
+        mRejectedHandler.rejectedExecution(command, this);
+        if (isShutdown() && command instanceof Future && !((Future<?>) command).isDone()) {
+            ((Future<?>) command).cancel(false);
+        }
+    }
+
+    @Override
+    public void setRejectedExecutionHandler(RejectedExecutionHandler handler) {
+        if (handler == null) {
+            throw new NullPointerException();
+        }
+        mRejectedHandler = handler;
+    }
+
+    @Override
+    public RejectedExecutionHandler getRejectedExecutionHandler() {
+        return mRejectedHandler;
+    }
+
+    /**
+     * 同时设置核心线程数和最大线程数，线程池的工作队列是无界的，两者保持一致
+     *
+     * @param poolSize
+     */
+    public void setPoolSize(int poolSize) {
+        if (poolSize <= 0) {
+            throw new IllegalArgumentException("poolSize <= 0");
+        }
+        if (poolSize > getMaximumPoolSize()) {
+            setMaximumPoolSize(poolSize);
+            setCorePoolSize(poolSize);
+        } else {
+            setCorePoolSize(poolSize);
+            setMaximumPoolSize(poolSize);
+        }
+        mCoreThreadsStarted = false;
+    }
+
+    /**
+     * 设置出队限流：平均每秒最多派发permitsPerSecond个任务，空闲后最多连续派发burst个
+     * <p/>
+     * 限流作用在工作队列的出队上：没有令牌时任务留在队列中继续按优先级排序，
+     * 工作线程不取任务，也就不会拿着任务等待；令牌紧张时优先级高的任务先派发。
+     * 任务在队头等待令牌的时间见{@link ThreadPoolMetrics.Snapshot#getThrottleWait()}
+     *
+     * @param permitsPerSecond 平均速率，0表示关闭限流
+     * @param burst            突发上限，至少为1
+     */
+    public void setRateLimit(double permitsPerSecond, int burst) {
+        if (mQueueGate == null) {
+            throw new UnsupportedOperationException(
+                "rate limit requires a PriorityLaneBlockingQueue");
+        }
+        if (permitsPerSecond < 0) {
+            throw new IllegalArgumentException("permitsPerSecond < 0");
+        }
+        mQueueGate.setRateLimiter(permitsPerSecond > 0
+            ? new RateLimiter(permitsPerSecond, burst) : null);
+    }
+
+    /**
+     * 当前的限流器
+     *
+     * @return 没有限流时为null
+     */
+    public RateLimiter getRateLimiter() {
+        return mQueueGate != null ? mQueueGate.getRateLimiter() : null;
+    }
+
+    /**
+     * 开启自适应线程数，每秒调整一次，见{@link AdaptivePoolController}
+     *
+     * @param minPoolSize 线程数下限
+     * @param maxPoolSize 线程数上限
+     */
+    public void enableAdaptiveSizing(int minPoolSize, int maxPoolSize) {
+        enableAdaptiveSizing(minPoolSize, maxPoolSize,
+            AdaptivePoolController.DEFAULT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 开启自适应线程数：周期性地测量排队时间、执行时间和阻塞比例，
+     * 在[minPoolSize, maxPoolSize]范围内调整线程数，重复调用会替换之前的设置
+     *
+     * @param minPoolSize 线程数下限
+     * @param maxPoolSize 线程数上限
+     * @param interval    调整周期
+     * @param unit
+     */
+    public synchronized void enableAdaptiveSizing(int minPoolSize, int maxPoolSize,
+                                                  long interval, TimeUnit unit) {
+        disableAdaptiveSizing();
+        mTrackCpuTime = true;
+        mController = new AdaptivePoolController(this, minPoolSize, maxPoolSize,
+            unit.toNanos(interval));
+        mController.start();
+    }
+
+    /**
+     * 关闭自适应线程数，保持当前的线程数
+     */
+    public synchronized void disableAdaptiveSizing() {
+        if (mController != null) {
+            mController.stop();
+            mController = null;
+        }
+        mTrackCpuTime = false;
+    }
+
+    /**
+     * 关闭时先停止自适应线程数控制器：父类在mainLock内调用terminated()，
+     * 那里再获取本对象和控制器的锁，会与正在setPoolSize（需要mainLock）的控制器互相等待
+     */
+    @Override
+    public void shutdown() {
+        disableAdaptiveSizing();
+        super.shutdown();
+    }
+
+    /**
+     * 立即关闭：与{@link #reject(Runnable)}一致，取出的尚未执行的Future被取消，
+     * 等待它们的一方（CompletionStage、流水线、定时器等）通过done()得到通知
+     *
+     * @return 尚未执行的任务
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        disableAdaptiveSizing();
+        List<Runnable> tasks = super.shutdownNow();
+        for (Runnable task : tasks) {
+            if (task instanceof Future) {
+                ((Future<?>) task).cancel(false);
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * 加入线程预算，只能在提交任务之前调用一次
+     *
+     * @param budget
+     * @param share  本线程池的份额
+     */
+    void attachThreadBudget(ThreadBudget budget, ThreadBudget.Share share) {
+        if (mThreadBudget != null) {
+            throw new IllegalStateException("thread budget already attached");
+        }
+        mBudgetShare = share;
+        mThreadBudget = budget;
+        if (mQueueGate != null) {
+            // 许可在出队时领取，没有许可的任务留在队列中
+            mQueueGate.setBudgetShare(share);
+        }
+    }
+
+    /**
+     * 本线程池在线程预算中的份额
+     *
+     * @return 没有加入线程预算时为null
+     */
+    ThreadBudget.Share budgetShare() {
+        return mBudgetShare;
+    }
+
+    /**
+     * 线程池内部的统计对象，供控制器读取累计值
+     *
+     * @return mMetrics
+     */
+    ThreadPoolMetrics metrics() {
+        return mMetrics;
+    }
+
+    /**
+     * 获得线程池统计数据的快照
+     *
+     * @return ThreadPoolMetrics.Snapshot
+     */
+    public ThreadPoolMetrics.Snapshot getMetrics() {
+        return mMetrics.snapshot(this);
     }
 
     /**
      * 恢复复线程池的运行
      */
     public void resumeExecutorService() {
-        this.mCont.resume();
+        if (mQueueGate != null) {
+            mQueueGate.resume();
+        } else {
+            this.mCont.resume();
+        }
     }
 
     /**
      * 暂停线程池
+     * <p/>
+     * 工作队列支持出队闸门时（{@link PriorityLaneBlockingQueue}），暂停的是出队：
+     * 工作线程不再取任务，任务留在优先级队列中继续排序，空闲的工作线程不会被过期的任务占住；
+     * 否则退回原来的方式，在beforeExecute中让已取出任务的工作线程等待
      */
     public void pauseExecutorService() {
-        this.mCont.pause();
+        if (mQueueGate != null) {
+            mQueueGate.pause();
+        } else {
+            this.mCont.pause();
+        }
+    }
+
+    /**
+     * 线程池是否处于暂停状态
+     *
+     * @return true/false
+     */
+    public boolean isPaused() {
+        return mQueueGate != null ? mQueueGate.isPaused() : mCont.isPaused();
+    }
+
+    /**
+     * 拒绝策略的包装，父类拒绝任务时经由它统计拒绝次数
+     */
+    private class CountingRejectedHandler implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            reject(r);
+        }
     }
 
     /**
@@ -0,0 +1,181 @@
+package com.task.android.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 低开销的延迟直方图（HdrHistogram风格的对数-线性分桶），单位纳秒
+ * <p/>
+ * 小于32ns的值每个值一个桶；更大的值按最高位所在的2的幂分段，每段再线性分成32个子桶，
+ * 相对误差不超过1/32（约3%）。记录时只计算下标并对计数做一次原子自增，不分配内存，
+ * 可以在工作线程上并发调用；超过上限（约18分钟）的值记入最后一个桶
+ *
+ * @date 2016/7/10
+ */
+public class LatencyHistogram {
+    private static final String TAG = "LatencyHistogram";
+
+    // 每段子桶数 = 2^SUB_BUCKET_BITS
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    // 可记录的最高位，2^40ns约18分钟
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT =
+        SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotalCount = new AtomicLong();
+    private final AtomicLong mTotalNanos = new AtomicLong();
+    private final AtomicLong mMaxNanos = new AtomicLong();
+
+    /**
+     * 记录一个值，负数按0处理
+     *
+     * @param nanos
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        mCounts.incrementAndGet(indexOf(nanos));
+        mTotalCount.incrementAndGet();
+        mTotalNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = mMaxNanos.get())) {
+            if (mMaxNanos.compareAndSet(max, nanos)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * 已记录的值的个数
+     *
+     * @return count
+     */
+    public long getCount() {
+        return mTotalCount.get();
+    }
+
+    /**
+     * 已记录的值的总和，配合getCount()可以计算任意两次采样之间的平均值
+     *
+     * @return 总和（纳秒）
+     */
+    public long getTotalNanos() {
+        return mTotalNanos.get();
+    }
+
+    /**
+     * 值到桶下标的映射
+     */
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int) (value >>> shift) & (SUB_BUCKET_COUNT - 1);
+        return SUB_BUCKET_COUNT + shift * SUB_BUCKET_COUNT + sub;
+    }
+
+    /**
+     * 桶的代表值，取桶内区间的中点
+     */
+    static long valueOf(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        int sub = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        long lower = ((long) (SUB_BUCKET_COUNT + sub)) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+
+    /**
+     * 生成当前数据的快照，快照之后的记录不影响快照
+     *
+     * @return Snapshot
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        return new Snapshot(counts, total, mTotalNanos.get(), mMaxNanos.get());
+    }
+
+    /**
+     * 直方图快照，提供计数、平均值、最大值和百分位数
+     */
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mTotalNanos;
+        private final long mMaxNanos;
+
+        Snapshot(long[] counts, long count, long totalNanos, long maxNanos) {
+            mCounts = counts;
+            mCount = count;
+            mTotalNanos = totalNanos;
+            mMaxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMax(TimeUnit unit) {
+            return unit.convert(mMaxNanos, TimeUnit.NANOSECONDS);
+        }
+
+        public double getMeanNanos() {
+            return mCount == 0 ? 0 : (double) mTotalNanos / mCount;
+        }
+
+        /**
+         * 百分位数
+         *
+         * @param percentile 0~100，例如99.9
+         * @param unit
+         * @return 该百分位上的值
+         */
+        public long getPercentile(double percentile, TimeUnit unit) {
+            return unit.convert(getPercentileNanos(percentile), TimeUnit.NANOSECONDS);
+        }
+
+        public long getPercentileNanos(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * mCount);
+            if (rank < 1) {
+                rank = 1;
+            }
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(valueOf(i), mMaxNanos);
+                }
+            }
+            return mMaxNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount
+                + " mean=" + (long) getMeanNanos() / 1000 + "us"
+                + " p50=" + getPercentile(50, TimeUnit.MICROSECONDS) + "us"
+                + " p99=" + getPercentile(99, TimeUnit.MICROSECONDS) + "us"
+                + " p999=" + getPercentile(99.9, TimeUnit.MICROSECONDS) + "us"
+                + " max=" + getMax(TimeUnit.MICROSECONDS) + "us";
+        }
+    }
+}
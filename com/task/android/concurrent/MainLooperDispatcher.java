@@ -0,0 +1,62 @@
+package com.task.android.concurrent;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 投递到Android主线程的ResultDispatcher
+ * <p/>
+ * 同一时间段内提交的多个回调合并成一条消息：第一个回调入队时才发送消息，
+ * 主线程处理这条消息时依次执行期间积累的全部回调，任务集中完成时不会给主线程灌大量消息
+ *
+ * @date 2016/7/12
+ */
+public class MainLooperDispatcher implements ResultDispatcher {
+    private static final String TAG = "MainLooperDispatcher";
+
+    private final Handler mHandler;
+    // 等待在主线程执行的回调
+    private final ConcurrentLinkedQueue<Runnable> mPending = new ConcurrentLinkedQueue<Runnable>();
+    // 是否已经有一条分发消息在主线程队列中
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            // 先清标记再取，之后入队的回调会发送新的消息，不会丢失
+            mScheduled.set(false);
+            Runnable callback;
+            while ((callback = mPending.poll()) != null) {
+                callback.run();
+            }
+        }
+    };
+
+    public MainLooperDispatcher() {
+        this(Looper.getMainLooper());
+    }
+
+    public MainLooperDispatcher(Looper looper) {
+        mHandler = new Handler(looper);
+    }
+
+    @Override
+    public void post(Runnable callback) {
+        mPending.offer(callback);
+        if (mScheduled.compareAndSet(false, true)) {
+            mHandler.post(mDrain);
+        }
+    }
+
+    @Override
+    public void postDelayed(Runnable callback, long delayMillis) {
+        if (delayMillis <= 0) {
+            post(callback);
+        } else {
+            mHandler.postDelayed(callback, delayMillis);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.task.android.concurrent;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * 任务归属索引：owner -> 尚未结束的任务
+ * <p/>
+ * 提交时按owner（例如页面对象或分组名）登记，任务结束（完成、异常或取消）时自动注销，
+ * {@link #cancel(Object, boolean)}一次取消某个owner的全部任务。
+ * 取消只是标记Future，不从工作队列中逐个删除（那是O(n)的），
+ * 已取消的任务在出队时被{@link PriorityLaneBlockingQueue}直接丢弃，
+ * 所以总开销只与取消的任务数成正比，不影响共用线程池中其它owner的任务
+ *
+ * @date 2016/7/11
+ */
+class OwnerIndex {
+    private static final String TAG = "OwnerIndex";
+
+    private final ConcurrentHashMap<Object, Group> mGroups =
+        new ConcurrentHashMap<Object, Group>();
+
+    /**
+     * 登记任务，必须在任务提交到线程池之前调用
+     *
+     * @param owner
+     * @param task
+     * @return 任务所属的分组，任务结束时调用{@link Group#remove(Future)}；owner为null时不登记，返回null
+     */
+    Group add(Object owner, Future<?> task) {
+        if (owner == null) {
+            return null;
+        }
+        while (true) {
+            Group group = mGroups.get(owner);
+            if (group == null) {
+                Group created = new Group(owner);
+                group = mGroups.putIfAbsent(owner, created);
+                if (group == null) {
+                    group = created;
+                }
+            }
+            if (group.add(task)) {
+                return group;
+            }
+            // 分组刚被取消或清空移除，重新取
+        }
+    }
+
+    /**
+     * 取消owner的全部任务
+     *
+     * @param owner
+     * @param mayInterruptIfRunning 是否中断正在执行的任务
+     * @return 取消成功的任务数
+     */
+    int cancel(Object owner, boolean mayInterruptIfRunning) {
+        if (owner == null) {
+            return 0;
+        }
+        Group group = mGroups.remove(owner);
+        if (group == null) {
+            return 0;
+        }
+        int cancelled = 0;
+        for (Future<?> task : group.close()) {
+            if (task.cancel(mayInterruptIfRunning)) {
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * owner尚未结束的任务数
+     *
+     * @param owner
+     * @return
+     */
+    int count(Object owner) {
+        if (owner == null) {
+            return 0;
+        }
+        Group group = mGroups.get(owner);
+        return group == null ? 0 : group.size();
+    }
+
+    /**
+     * 同一owner的任务集合
+     */
+    final class Group {
+        private final Object mOwner;
+        private final HashSet<Future<?>> mTasks = new HashSet<Future<?>>();
+        // 已从索引中移除，不能再加入任务
+        private boolean mClosed;
+
+        Group(Object owner) {
+            mOwner = owner;
+        }
+
+        synchronized boolean add(Future<?> task) {
+            if (mClosed) {
+                return false;
+            }
+            mTasks.add(task);
+            return true;
+        }
+
+        /**
+         * 任务结束时注销，分组空了就从索引中移除
+         *
+         * @param task
+         */
+        synchronized void remove(Future<?> task) {
+            if (mTasks.remove(task) && mTasks.isEmpty() && !mClosed) {
+                mClosed = true;
+                mGroups.remove(mOwner, this);
+            }
+        }
+
+        synchronized int size() {
+            return mTasks.size();
+        }
+
+        /**
+         * 关闭分组并取出全部任务，在锁外取消，避免done()回调时重入
+         */
+        synchronized ArrayList<Future<?>> close() {
+            mClosed = true;
+            ArrayList<Future<?>> tasks = new ArrayList<Future<?>>(mTasks);
+            mTasks.clear();
+            return tasks;
+        }
+    }
+}
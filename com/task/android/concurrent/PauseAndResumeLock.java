@@ -11,8 +11,8 @@ import java.util.concurrent.locks.ReentrantLock;
 public class PauseAndResumeLock {
     private static final String TAG = "PauseAndResumeLock";
 
-	// 是否暂停的Flag
-	private boolean isPaused;
+	// 是否暂停的Flag，checkIn在加锁前先读它，需要volatile保证可见性
+	private volatile boolean isPaused;
 	// ReentrantLock
 	private ReentrantLock pauseLock = new ReentrantLock();
 	// Condition
@@ -22,6 +22,15 @@ public class PauseAndResumeLock {
 		super();
 	}
 
+	/**
+	 * 是否处于暂停状态
+	 *
+	 * @return isPaused
+	 */
+	public boolean isPaused() {
+		return isPaused;
+	}
+
 	public void checkIn() throws InterruptedException {
 		if (isPaused) {
 			pauseLock.lock();
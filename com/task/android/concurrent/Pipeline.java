@@ -0,0 +1,538 @@
+package com.task.android.concurrent;
+
+import com.task.android.concurrent.Config.Business;
+import com.task.android.concurrent.Config.Priority;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分阶段的流水线（SEDA）：每个阶段绑定一个Business线程池，阶段之间通过有界的交接队列连接
+ * <p/>
+ * 例如图片加载：
+ * <pre class="prettyprint">
+ * Pipeline&lt;String, Void&gt; pipeline = Pipeline.&lt;String&gt;builder("image")
+ *     .stage("fetch", Business.LOW_IO, 32, fetch)      // String -&gt; byte[]
+ *     .stage("decode", Business.CPU, 8, decode)        // byte[] -&gt; Bitmap
+ *     .stage("cache", Business.HIGH_IO, 16, cache)     // Bitmap -&gt; Void
+ *     .build();
+ * pipeline.submit(url, Priority.MAX_PRIORITY);
+ * </pre>
+ * 每个阶段最多容纳capacity个条目（排队中 + 执行中）。上游阶段处理完一个条目后要先在下游占到位置
+ * 才释放自己的位置，下游满了上游的工作线程就在交接处等待，压力逐级传回到{@link #submit}，
+ * 任何一级的积压都不会无限增长。因为交接时会阻塞工作线程，每个阶段使用独立的线程池
+ * （默认tag为“流水线名/阶段名”），同一个线程池不能被两个阶段共用
+ * <p/>
+ * 条目的优先级在每个阶段都有效：每一级提交到线程池的任务都带着提交时的优先级，
+ * MAX_PRIORITY的条目在每一级的工作队列中都排在前面
+ *
+ * @param <I> 流水线的输入
+ * @param <O> 流水线的输出
+ * @date 2016/7/12
+ */
+public class Pipeline<I, O> {
+    private static final String TAG = "Pipeline";
+
+    /**
+     * 流水线中的一个处理步骤
+     *
+     * @param <In>
+     * @param <Out>
+     */
+    public interface Step<In, Out> {
+        Out process(In input) throws Exception;
+    }
+
+    private final String mName;
+    private final ConcurrentManager mManager;
+    private final List<StageImpl> mStages;
+
+    private Pipeline(String name, ConcurrentManager manager, List<StageImpl> stages) {
+        mName = name;
+        mManager = manager;
+        mStages = stages;
+    }
+
+    /**
+     * 开始构建流水线
+     *
+     * @param name 流水线名称，也是各阶段默认线程池tag的前缀
+     * @return Builder
+     */
+    public static <I> Builder<I, I> builder(String name) {
+        return new Builder<I, I>(name, ConcurrentManager.getInsance(),
+            new ArrayList<StageImpl>());
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * 提交一个条目，第一个阶段已满时阻塞等待
+     *
+     * @param input
+     * @param priority 在每个阶段都生效的优先级
+     * @return 最后一个阶段的输出，任一阶段抛出异常或条目被取消时异常完成
+     * @throws InterruptedException 等待期间被中断
+     */
+    public CompletionStage<O> submit(I input, Priority priority) throws InterruptedException {
+        StageImpl first = mStages.get(0);
+        first.mSlots.acquire();
+        return start(first, input, priority);
+    }
+
+    /**
+     * 提交一个条目，第一个阶段已满时不等待
+     *
+     * @param input
+     * @param priority 在每个阶段都生效的优先级
+     * @return 最后一个阶段的输出，第一个阶段已满时返回null
+     */
+    public CompletionStage<O> offer(I input, Priority priority) {
+        StageImpl first = mStages.get(0);
+        if (!first.mSlots.tryAcquire()) {
+            return null;
+        }
+        return start(first, input, priority);
+    }
+
+    /**
+     * 提交一个条目，第一个阶段已满时最多等待timeout
+     *
+     * @param input
+     * @param priority 在每个阶段都生效的优先级
+     * @param timeout
+     * @param unit
+     * @return 最后一个阶段的输出，超时返回null
+     * @throws InterruptedException 等待期间被中断
+     */
+    public CompletionStage<O> offer(I input, Priority priority, long timeout, TimeUnit unit)
+        throws InterruptedException {
+        StageImpl first = mStages.get(0);
+        if (!first.mSlots.tryAcquire(timeout, unit)) {
+            return null;
+        }
+        return start(first, input, priority);
+    }
+
+    private CompletionStage<O> start(StageImpl first, I input, Priority priority) {
+        CompletableFuture<O> result = new CompletableFuture<O>();
+        dispatch(first, input, PriorityRunnable.priorityValue(priority), result);
+        return result;
+    }
+
+    /**
+     * 已经在stage占到位置的条目提交到stage的线程池
+     */
+    private void dispatch(StageImpl stage, Object input, int priority,
+                          CompletableFuture<O> result) {
+        StageTask task = new StageTask(stage, input, priority, result);
+        stage.mQueued.incrementAndGet();
+        ExThreadPoolExecutor threadPool = mManager.initThreadPool(stage.mThreadPoolType,
+            stage.mTag);
+        try {
+            if (threadPool.isShutdown()) {
+                throw new RejectedExecutionException("pipeline stage " + stage.mName
+                    + " is shut down");
+            }
+            threadPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            stage.mQueued.decrementAndGet();
+            stage.mSlots.release();
+            result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * 各阶段的统计快照，按阶段顺序排列
+     *
+     * @return
+     */
+    public List<StageSnapshot> getStageMetrics() {
+        List<StageSnapshot> snapshots = new ArrayList<StageSnapshot>(mStages.size());
+        for (StageImpl stage : mStages) {
+            snapshots.add(stage.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * 条目在某个阶段的执行任务：带着条目的优先级进入该阶段线程池的工作队列。
+     * 继承FutureTask，被工作队列丢弃（超出容量、按owner取消等）时走取消流程
+     */
+    private final class StageTask extends FutureTask<Void>
+        implements PriorityTask, Comparable<Object> {
+        private final StageImpl mStage;
+        private final int mPriority;
+        private final CompletableFuture<O> mResult;
+        // 开始处理和被取消只能有一方释放位置
+        private final AtomicBoolean mClaimed = new AtomicBoolean();
+        private volatile long mSequence;
+        private volatile long mSubmitTime;
+
+        StageTask(StageImpl stage, Object input, int priority, CompletableFuture<O> result) {
+            this(stage, priority, result, new StageBody(input));
+        }
+
+        private StageTask(StageImpl stage, int priority, CompletableFuture<O> result,
+                          StageBody body) {
+            super(body);
+            body.mTask = this;
+            mStage = stage;
+            mPriority = priority;
+            mResult = result;
+        }
+
+        /**
+         * 执行前被取消：释放位置并通知调用方
+         */
+        @Override
+        protected void done() {
+            if (isCancelled() && mClaimed.compareAndSet(false, true)) {
+                mStage.mQueued.decrementAndGet();
+                mStage.mSlots.release();
+                mResult.completeExceptionally(new CancellationException(
+                    "pipeline stage " + mStage.mName + " dropped the item"));
+            }
+        }
+
+        /**
+         * 在当前阶段处理条目，再交给下一个阶段
+         */
+        private void process(StageImpl stage, Object input, CompletableFuture<O> result) {
+            if (!mClaimed.compareAndSet(false, true)) {
+                return;
+            }
+            long start = System.nanoTime();
+            stage.mQueued.decrementAndGet();
+            stage.mActive.incrementAndGet();
+            stage.mQueueWait.record(start - mSubmitTime);
+            Object output;
+            try {
+                output = stage.mStep.process(input);
+            } catch (Throwable t) {
+                stage.mService.record(System.nanoTime() - start);
+                stage.mActive.decrementAndGet();
+                stage.mFailed.incrementAndGet();
+                stage.mSlots.release();
+                result.completeExceptionally(t);
+                return;
+            }
+            stage.mService.record(System.nanoTime() - start);
+            stage.mActive.decrementAndGet();
+            stage.mCompleted.incrementAndGet();
+
+            StageImpl next = stage.mIndex + 1 < mStages.size()
+                ? mStages.get(stage.mIndex + 1) : null;
+            if (next == null) {
+                stage.mSlots.release();
+                complete(result, output);
+                return;
+            }
+            // 先在下游占到位置再释放自己的位置，下游满了就在这里等，压力逐级传回上游
+            try {
+                if (!next.mSlots.tryAcquire()) {
+                    stage.mBlocked.incrementAndGet();
+                    // 等待期间归还线程预算的许可，否则下游领不到许可，永远腾不出位置
+                    ThreadBudget.Share held = ThreadBudget.beginBlocking();
+                    try {
+                        next.mSlots.acquire();
+                    } finally {
+                        ThreadBudget.endBlocking(held);
+                        stage.mBlocked.decrementAndGet();
+                    }
+                }
+            } catch (InterruptedException e) {
+                stage.mSlots.release();
+                result.completeExceptionally(e);
+                Thread.currentThread().interrupt();
+                return;
+            }
+            stage.mSlots.release();
+            dispatch(next, output, mPriority, result);
+        }
+
+        @SuppressWarnings("unchecked")
+        private void complete(CompletableFuture<O> result, Object output) {
+            result.complete((O) output);
+        }
+
+        @Override
+        public int getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public long getSequence() {
+            return mSequence;
+        }
+
+        @Override
+        public long getSubmitTime() {
+            return mSubmitTime;
+        }
+
+        @Override
+        public void markSubmitted(long sequence, long submitTime) {
+            mSubmitTime = submitTime;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Object another) {
+            return PriorityComparator.compareTasks(this, another);
+        }
+    }
+
+    /**
+     * StageTask的执行体，构造StageTask时还不能引用this，所以单独持有输入
+     */
+    private final class StageBody implements Callable<Void> {
+        private final Object mInput;
+        StageTask mTask;
+
+        StageBody(Object input) {
+            mInput = input;
+        }
+
+        @Override
+        public Void call() {
+            mTask.process(mTask.mStage, mInput, mTask.mResult);
+            return null;
+        }
+    }
+
+    /**
+     * 一个阶段：处理步骤、线程池、交接位置和统计
+     */
+    private static final class StageImpl {
+        final String mName;
+        final int mIndex;
+        final Business mThreadPoolType;
+        final String mTag;
+        final int mCapacity;
+        // 输入输出类型由Builder保证前后衔接，这里只按Object传递
+        final Step<Object, Object> mStep;
+        // 排队中 + 执行中 + 等待交给下游的条目占用的位置
+        final Semaphore mSlots;
+        final AtomicInteger mQueued = new AtomicInteger();
+        final AtomicInteger mActive = new AtomicInteger();
+        // 处理完、因下游已满而等待交接的条目数
+        final AtomicInteger mBlocked = new AtomicInteger();
+        final AtomicLong mCompleted = new AtomicLong();
+        final AtomicLong mFailed = new AtomicLong();
+        final LatencyHistogram mQueueWait = new LatencyHistogram();
+        final LatencyHistogram mService = new LatencyHistogram();
+
+        @SuppressWarnings("unchecked")
+        StageImpl(String name, int index, Business type, String tag, int capacity,
+                  Step<?, ?> step) {
+            mName = name;
+            mIndex = index;
+            mThreadPoolType = type;
+            mTag = tag;
+            mCapacity = capacity;
+            // Builder.stage要求step接受上一个阶段的输出，运行时传入的input必然是它能处理的类型
+            mStep = (Step<Object, Object>) step;
+            mSlots = new Semaphore(capacity);
+        }
+
+        StageSnapshot snapshot() {
+            return new StageSnapshot(mName, mThreadPoolType, mTag, mCapacity, mQueued.get(),
+                mActive.get(), mBlocked.get(), mCompleted.get(), mFailed.get(),
+                mQueueWait.snapshot(), mService.snapshot());
+        }
+    }
+
+    /**
+     * 构建流水线，每调用一次stage追加一个阶段，输出类型随之改变
+     * <p/>
+     * stage返回新的Builder，原Builder不变，同一个Builder可以分别追加不同的阶段构建多条流水线
+     *
+     * @param <I> 流水线的输入
+     * @param <O> 当前最后一个阶段的输出
+     */
+    public static final class Builder<I, O> {
+        private final String mName;
+        private final ConcurrentManager mManager;
+        private final List<StageImpl> mStages;
+
+        private Builder(String name, ConcurrentManager manager, List<StageImpl> stages) {
+            mName = name;
+            mManager = manager;
+            mStages = stages;
+        }
+
+        /**
+         * 追加一个阶段，使用独立的线程池：tag为“流水线名/阶段名”
+         *
+         * @param name     阶段名称
+         * @param type     线程池类型
+         * @param capacity 阶段容量（排队中 + 执行中的条目数上限）
+         * @param step     处理步骤
+         * @return Builder
+         */
+        public <N> Builder<I, N> stage(String name, Business type, int capacity,
+                                       Step<? super O, N> step) {
+            return stage(name, type, mName + "/" + name, capacity, step);
+        }
+
+        /**
+         * 追加一个阶段，指定线程池
+         *
+         * @param name     阶段名称
+         * @param type     线程池类型
+         * @param tag      线程池标签，不能与其它阶段相同
+         * @param capacity 阶段容量（排队中 + 执行中的条目数上限）
+         * @param step     处理步骤
+         * @return Builder
+         */
+        public <N> Builder<I, N> stage(String name, Business type, String tag, int capacity,
+                                       Step<? super O, N> step) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("capacity <= 0");
+            }
+            if (step == null) {
+                throw new NullPointerException("step == null");
+            }
+            List<StageImpl> stages = new ArrayList<StageImpl>(mStages);
+            stages.add(new StageImpl(name, stages.size(), type, tag, capacity, step));
+            return new Builder<I, N>(mName, mManager, stages);
+        }
+
+        /**
+         * @return Pipeline
+         * @throws IllegalStateException 没有阶段，或两个阶段使用同一个线程池
+         */
+        public Pipeline<I, O> build() {
+            if (mStages.isEmpty()) {
+                throw new IllegalStateException("pipeline " + mName + " has no stage");
+            }
+            HashSet<String> pools = new HashSet<String>();
+            for (StageImpl stage : mStages) {
+                if (!pools.add(stage.mThreadPoolType + "/" + stage.mTag)) {
+                    // 交接时会阻塞工作线程，两个阶段共用线程池可能互相等待而死锁
+                    throw new IllegalStateException("stage " + stage.mName
+                        + " shares thread pool " + stage.mThreadPoolType + "/" + stage.mTag
+                        + " with another stage");
+                }
+            }
+            return new Pipeline<I, O>(mName, mManager, Collections.unmodifiableList(mStages));
+        }
+    }
+
+    /**
+     * 单个阶段的统计快照
+     */
+    public static class StageSnapshot {
+        private final String mName;
+        private final Business mThreadPoolType;
+        private final String mTag;
+        private final int mCapacity;
+        private final int mQueued;
+        private final int mActive;
+        private final int mBlocked;
+        private final long mCompleted;
+        private final long mFailed;
+        private final LatencyHistogram.Snapshot mQueueWait;
+        private final LatencyHistogram.Snapshot mService;
+
+        StageSnapshot(String name, Business type, String tag, int capacity, int queued,
+                      int active, int blocked, long completed, long failed,
+                      LatencyHistogram.Snapshot queueWait, LatencyHistogram.Snapshot service) {
+            mName = name;
+            mThreadPoolType = type;
+            mTag = tag;
+            mCapacity = capacity;
+            mQueued = queued;
+            mActive = active;
+            mBlocked = blocked;
+            mCompleted = completed;
+            mFailed = failed;
+            mQueueWait = queueWait;
+            mService = service;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public Business getThreadPoolType() {
+            return mThreadPoolType;
+        }
+
+        public String getTag() {
+            return mTag;
+        }
+
+        public int getCapacity() {
+            return mCapacity;
+        }
+
+        /**
+         * 已进入本阶段、还没开始处理的条目数（队列深度）
+         */
+        public int getQueueDepth() {
+            return mQueued;
+        }
+
+        /**
+         * 正在处理的条目数
+         */
+        public int getActiveCount() {
+            return mActive;
+        }
+
+        /**
+         * 处理完、因下游已满而等待交接的条目数，持续不为0说明下游是瓶颈
+         */
+        public int getBlockedCount() {
+            return mBlocked;
+        }
+
+        public long getCompletedCount() {
+            return mCompleted;
+        }
+
+        public long getFailedCount() {
+            return mFailed;
+        }
+
+        /**
+         * 进入本阶段线程池到开始处理的时间
+         */
+        public LatencyHistogram.Snapshot getQueueWait() {
+            return mQueueWait;
+        }
+
+        /**
+         * 本阶段的服务时间（Step.process的耗时）
+         */
+        public LatencyHistogram.Snapshot getServiceTime() {
+            return mService;
+        }
+
+        @Override
+        public String toString() {
+            return mName + "(" + mThreadPoolType + "/" + mTag + ")"
+                + " depth=" + mQueued + "/" + mCapacity + " active=" + mActive
+                + " blocked=" + mBlocked + " completed=" + mCompleted + " failed=" + mFailed
+                + "\n  queueWait: " + mQueueWait
+                + "\n  service:   " + mService;
+        }
+    }
+}
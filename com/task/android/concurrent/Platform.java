@@ -0,0 +1,67 @@
+package com.task.android.concurrent;
+
+/**
+ * 运行环境相关的操作：在Android上调用android.os.Process和android.util.Log，
+ * 在普通JVM上退化为Thread的优先级和空操作，使框架可以脱离Android运行
+ *
+ * @date 2016/7/12
+ */
+final class Platform {
+    private static final String TAG = "Platform";
+
+    // android.os.Process.THREAD_PRIORITY_BACKGROUND
+    static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    // 是否运行在Android上
+    static final boolean ANDROID = isClassPresent("android.os.Process");
+
+    private Platform() {
+    }
+
+    private static boolean isClassPresent(String name) {
+        try {
+            Class.forName(name, false, Platform.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 设置当前线程的优先级，取值与android.os.Process相同：-20最高，19最低
+     *
+     * @param priority
+     */
+    static void setThreadPriority(int priority) {
+        if (ANDROID) {
+            AndroidPlatform.setThreadPriority(priority);
+        }
+        // 普通JVM上任务优先级已经体现在出队顺序上，不再修改线程优先级：
+        // 线程池的工作线程会被后续任务复用
+    }
+
+    /**
+     * 输出调试日志，非Android环境忽略
+     *
+     * @param tag
+     * @param msg
+     */
+    static void logDebug(String tag, String msg) {
+        if (ANDROID) {
+            AndroidPlatform.logDebug(tag, msg);
+        }
+    }
+
+    /**
+     * 只有ANDROID为true时才会加载，普通JVM上不需要android.jar
+     */
+    private static class AndroidPlatform {
+        static void setThreadPriority(int priority) {
+            android.os.Process.setThreadPriority(priority);
+        }
+
+        static void logDebug(String tag, String msg) {
+            android.util.Log.d(tag, msg);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.task.android.concurrent;
+
+import com.task.android.concurrent.Config.Business;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 把(Business, tag)线程池适配为{@link Executor}，用作CompletionStage后续步骤的执行器
+ * <p/>
+ * 提交任务的线程本身就是该线程池的工作线程时（上一步在同一个线程池完成），直接在当前线程执行，
+ * 不再重新入队、不再唤醒其它线程；线程池暂停期间仍然入队，遵守pause语义。
+ * 每次执行时按(Business, tag)查找线程池，线程池被移除后会重新创建
+ * <p/>
+ * 后续步骤属于已经被接纳的任务链，入队后不参与容量上限的丢弃；线程池关闭后被拒绝策略丢弃、
+ * 或被shutdownNow取出时，在取消它的线程上直接执行，CompletableFuture无法从外部让这一步失败，
+ * 丢弃它会让整条链永远挂起
+ *
+ * @date 2016/7/12
+ */
+public class PoolExecutor implements Executor {
+    private static final String TAG = "PoolExecutor";
+
+    private final ConcurrentManager mManager;
+    private final Business mThreadPoolType;
+    private final String mTag;
+    private final int mPriority;
+
+    PoolExecutor(ConcurrentManager manager, Business type, String tag, int priority) {
+        mManager = manager;
+        mThreadPoolType = type;
+        mTag = tag;
+        mPriority = priority;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        ExThreadPoolExecutor threadPool = mManager.initThreadPool(mThreadPoolType, mTag);
+        if (threadPool.isCurrentThreadWorker() && !threadPool.isPaused()
+            && !threadPool.isShutdown()) {
+            command.run();
+            return;
+        }
+        threadPool.execute(new ContinuationTask(command, mPriority));
+    }
+
+    public Business getThreadPoolType() {
+        return mThreadPoolType;
+    }
+
+    public String getTag() {
+        return mTag;
+    }
+
+    /**
+     * CompletionStage的后续步骤
+     */
+    private static final class ContinuationTask extends PriorityFutureTask<Void>
+        implements PriorityLaneBlockingQueue.NonSheddable {
+        private final Runnable mCommand;
+
+        ContinuationTask(Runnable command, int priority) {
+            super(command, null, priority, 0);
+            mCommand = command;
+        }
+
+        @Override
+        protected void done() {
+            super.done();
+            if (isCancelled()) {
+                // 关闭后被拒绝策略丢弃或被shutdownNow取出，与CallerRunsPolicy一样在当前线程上执行
+                mCommand.run();
+                return;
+            }
+            reportFailure();
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.task.android.concurrent;
+
+import java.util.Comparator;
+
+/**
+ * 工作队列中任务的排序规则
+ * <p/>
+ * 优先级的值小的排在前面；优先级相同时按提交序号排序，先提交的先执行，
+ * 避免同优先级的任务在堆中以任意顺序出队
+ *
+ * @date 2016/7/9
+ */
+public class PriorityComparator implements Comparator<Object> {
+    private static final String TAG = "PriorityComparator";
+
+    public static final PriorityComparator INSTANCE = new PriorityComparator();
+
+    @Override
+    public int compare(Object lhs, Object rhs) {
+        return compareTasks(lhs, rhs);
+    }
+
+    /**
+     * 比较两个任务的出队顺序，任一方没有实现{@link PriorityTask}时视为相等
+     *
+     * @param lhs
+     * @param rhs
+     * @return 负数表示lhs先出队
+     */
+    public static int compareTasks(Object lhs, Object rhs) {
+        if (!(lhs instanceof PriorityTask) || !(rhs instanceof PriorityTask)) {
+            return 0;
+        }
+        PriorityTask l = (PriorityTask) lhs;
+        PriorityTask r = (PriorityTask) rhs;
+        int lp = l.getPriority();
+        int rp = r.getPriority();
+        if (lp != rp) {
+            return lp < rp ? -1 : 1;
+        }
+        long ls = l.getSequence();
+        long rs = r.getSequence();
+        return ls < rs ? -1 : ls > rs ? 1 : 0;
+    }
+}
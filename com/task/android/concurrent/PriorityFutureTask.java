@@ -0,0 +1,148 @@
+package com.task.android.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 具备优先级和可选截止时间的FutureTask
+ * <p/>
+ * 提交普通的Runnable/Callable并且需要Future时使用，
+ * 在队列中过期的任务被取消，调用方通过Future.isCancelled()得知
+ *
+ * @param <V>
+ * @date 2016/7/11
+ */
+public class PriorityFutureTask<V> extends FutureTask<V>
+    implements PriorityTask, DeadlineTask, Comparable<Object> {
+    private static final String TAG = "PriorityFutureTask";
+
+    private final int mPriority;
+    // 截止时间(System.nanoTime())，0表示没有截止时间
+    private final long mDeadline;
+    private volatile long mSequence;
+    private volatile long mSubmitTime;
+    // 按owner提交时所属的分组
+    volatile OwnerIndex.Group mOwnerGroup;
+
+    /**
+     * @param callable
+     * @param priority 优先级的值
+     * @param deadline 截止时间(System.nanoTime())，0表示没有截止时间
+     */
+    public PriorityFutureTask(Callable<V> callable, int priority, long deadline) {
+        super(callable);
+        mPriority = priority;
+        mDeadline = deadline;
+    }
+
+    /**
+     * @param runnable
+     * @param result   执行成功后get()的返回值
+     * @param priority 优先级的值
+     * @param deadline 截止时间(System.nanoTime())，0表示没有截止时间
+     */
+    public PriorityFutureTask(Runnable runnable, V result, int priority, long deadline) {
+        super(runnable, result);
+        mPriority = priority;
+        mDeadline = deadline;
+    }
+
+    @Override
+    public int getPriority() {
+        return mPriority;
+    }
+
+    @Override
+    public long getSequence() {
+        return mSequence;
+    }
+
+    @Override
+    public long getSubmitTime() {
+        return mSubmitTime;
+    }
+
+    @Override
+    public void markSubmitted(long sequence, long submitTime) {
+        mSubmitTime = submitTime;
+        mSequence = sequence;
+    }
+
+    @Override
+    public long getDeadline() {
+        return mDeadline;
+    }
+
+    @Override
+    public void expire() {
+        cancel(false);
+    }
+
+    /**
+     * 在工作线程中等待时暂时归还线程预算的许可，见{@link ThreadBudget#beginBlocking()}
+     */
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        if (isDone()) {
+            return super.get();
+        }
+        ThreadBudget.Share held = ThreadBudget.beginBlocking();
+        try {
+            return super.get();
+        } finally {
+            ThreadBudget.endBlocking(held);
+        }
+    }
+
+    @Override
+    public V get(long timeout, TimeUnit unit)
+        throws InterruptedException, ExecutionException, TimeoutException {
+        if (isDone()) {
+            return super.get(timeout, unit);
+        }
+        ThreadBudget.Share held = ThreadBudget.beginBlocking();
+        try {
+            return super.get(timeout, unit);
+        } finally {
+            ThreadBudget.endBlocking(held);
+        }
+    }
+
+    /**
+     * 任务抛出的异常交给当前线程的UncaughtExceptionHandler，用于没有人调用get()的任务，
+     * 在done()中调用，异常不会被FutureTask悄悄吞掉
+     */
+    void reportFailure() {
+        if (!isDone() || isCancelled()) {
+            return;
+        }
+        try {
+            super.get();
+        } catch (ExecutionException e) {
+            Thread t = Thread.currentThread();
+            Thread.UncaughtExceptionHandler handler = t.getUncaughtExceptionHandler();
+            if (handler != null) {
+                handler.uncaughtException(t, e.getCause() != null ? e.getCause() : e);
+            }
+        } catch (InterruptedException e) {
+            // 任务已经结束，get()不会等待
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    protected void done() {
+        OwnerIndex.Group group = mOwnerGroup;
+        if (group != null) {
+            group.remove(this);
+        }
+    }
+
+    @Override
+    public int compareTo(Object another) {
+        return PriorityComparator.compareTasks(this, another);
+    }
+}
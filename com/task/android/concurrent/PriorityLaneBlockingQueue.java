@@ -0,0 +1,1180 @@
+package com.task.android.concurrent;
+
+import com.task.android.concurrent.Config.DispatchPolicy;
+import com.task.android.concurrent.Config.OverflowPolicy;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按优先级分通道的阻塞队列，用来替换单锁的 PriorityBlockingQueue
+ * <p/>
+ * Config.Priority 只有 MAX(1)/NORM(5)/MIN(10) 三个级别，所以每个级别一条无锁的多生产者多消费者通道，
+ * 入队只追加到对应通道的尾部，出队从最高优先级的非空通道头部取，都是 O(1)，同一通道内先进先出。
+ * <p/>
+ * 可选的老化（aging）：低优先级通道的队头每等待一个老化周期，有效优先级提升一级，
+ * 有效优先级相同时先提交的先出队，持续的高优先级负载下低优先级任务的等待时间也有上限
+ * <p/>
+ * 出队闸门：{@link #pause()}之后poll不再返回任务，take一直等待，任务留在队列中，
+ * 暂停期间新提交的高优先级任务照常排到前面；{@link #resume()}只唤醒一个等待的工作线程，
+ * 它取到任务后如果还有任务和等待者再唤醒下一个，逐个接力，不会一次唤醒所有线程
+ * <p/>
+ * 出队策略（{@link DispatchPolicy}）：通道是双端队列，LIFO类策略从通道尾部出队，
+ * FIFO/LIFO策略忽略优先级，所有任务进同一条通道。可选容量上限，超出时先清掉已取消的Future，
+ * 仍然超出时按{@link OverflowPolicy}丢弃最早提交的或优先级最低的任务（包括截止时间堆中的），
+ * 被丢弃的Future走取消流程
+ * <p/>
+ * 已取消的Future（例如按owner批量取消的任务）在出队时直接丢弃，不需要O(n)的remove
+ * <p/>
+ * 截止时间：实现了{@link DeadlineTask}的任务在出队时如果已经过期，直接丢弃并调用
+ * {@link DeadlineTask#expire()}走取消流程，不占用工作线程。
+ * 开启EDF模式（{@link #setEarliestDeadlineFirst(boolean)}）后，带截止时间的任务进入单独的堆，
+ * 按截止时间先后出队并排在所有通道之前，没有截止时间的任务仍然按优先级通道出队
+ * <p/>
+ * 限流：设置了{@link RateLimiter}之后，每次出队先取一个许可，取不到时poll返回null，
+ * take按下一个许可的时间定时等待，任务留在队列中而不是占着工作线程等待；
+ * 许可紧张时优先级最高的任务先得到许可。等待许可的时间记入{@link #getThrottleWait()}
+ * <p/>
+ * 线程预算：线程池加入{@link ThreadBudget}后，出队前同样先领取预算的许可，许可用完时poll返回null，
+ * take离开队列的锁去等待许可，领到后再出队。任务在拿到许可之前一直留在队列中，
+ * 照常排序、过期、被取消和暂停，不会被已经取出任务的工作线程拿着等待
+ * <p/>
+ * 锁只用于队列为空时工作线程的等待和唤醒：有任务时的 offer/poll 完全不加锁，
+ * offer 只有在确实有工作线程在等待时才去拿锁发信号
+ * <p/>
+ * 注意：size() 需要遍历各通道，是 O(n) 的，只适合统计用途
+ *
+ * @date 2016/7/9
+ */
+public class PriorityLaneBlockingQueue extends AbstractQueue<Runnable>
+    implements BlockingQueue<Runnable> {
+    private static final String TAG = "PriorityLaneBlockingQueue";
+
+    // 通道下标，数值越小优先级越高
+    static final int LANE_MAX = 0;
+    static final int LANE_NORM = 1;
+    static final int LANE_MIN = 2;
+    static final int LANE_COUNT = 3;
+
+    // 普通优先级的值
+    private static final int NORM_PRIORITY_VALUE = 5;
+
+    // 各优先级的任务通道
+    private final ConcurrentLinkedDeque<Runnable>[] mLanes;
+    // 出队策略
+    private final DispatchPolicy mPolicy;
+    // 是否按优先级分通道，否则都进普通通道
+    private final boolean mUsePriority;
+    // 是否从通道尾部出队
+    private final boolean mLifo;
+    // 容量上限，0表示不限
+    private final int mCapacity;
+    // 超出容量时丢弃哪个任务
+    private final OverflowPolicy mOverflowPolicy;
+    // 有容量上限时的任务数
+    private final AtomicInteger mCount = new AtomicInteger();
+    // 超出容量被丢弃的任务数
+    private final AtomicLong mDropped = new AtomicLong();
+    // 仅用于空队列时的等待/唤醒
+    private final ReentrantLock mTakeLock = new ReentrantLock();
+    private final Condition mNotEmpty = mTakeLock.newCondition();
+    // 正在等待的工作线程数，只在 mTakeLock 内修改
+    private volatile int mWaiters;
+    // 老化周期（纳秒），0表示不老化，严格按优先级出队
+    private volatile long mAgingNanos;
+    // 出队闸门是否关闭
+    private volatile boolean mPaused;
+    // 出队闸门关闭的时刻，0表示没有关闭
+    private final AtomicLong mPausedSince = new AtomicLong();
+    // 记录每次关闭闸门的时长，null表示不统计
+    private volatile LatencyHistogram mPauseRecorder;
+    // EDF模式下带截止时间的任务，按截止时间排序，第一次开启EDF时创建
+    private volatile PriorityBlockingQueue<Runnable> mDeadlines;
+    // mDeadlines中的任务数，为0时出队不去碰mDeadlines的锁
+    private final AtomicInteger mDeadlineCount = new AtomicInteger();
+    // 是否开启EDF模式
+    private volatile boolean mEarliestDeadlineFirst;
+    // 因过期被丢弃的任务数
+    private final AtomicLong mExpired = new AtomicLong();
+    // 出队时发现已取消而被丢弃的任务数
+    private final AtomicLong mCancelled = new AtomicLong();
+    // 出队限流器，null表示不限流
+    private volatile RateLimiter mRateLimiter;
+    // 队头任务开始等待许可的时间，0表示当前没有被限流
+    private final AtomicLong mThrottledSince = new AtomicLong();
+    // 任务因限流在队头等待的时间，第一次设置限流器时创建
+    private volatile LatencyHistogram mThrottleWait;
+    // 线程池在线程预算中的份额，null表示不受预算限制
+    private volatile ThreadBudget.Share mBudgetShare;
+
+    // pollGate的返回值：线程预算的许可用完，不能出队
+    private static final Runnable BUDGET_DENIED = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    public PriorityLaneBlockingQueue() {
+        this(DispatchPolicy.PRIORITY_FIFO, 0);
+    }
+
+    /**
+     * @param policy   出队策略，null为PRIORITY_FIFO
+     * @param capacity 容量上限，超出时丢弃最早提交的任务，0表示不限
+     */
+    public PriorityLaneBlockingQueue(DispatchPolicy policy, int capacity) {
+        this(policy, capacity, OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * @param policy         出队策略，null为PRIORITY_FIFO
+     * @param capacity       容量上限，0表示不限
+     * @param overflowPolicy 超出容量时丢弃哪个任务，null为DROP_OLDEST
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public PriorityLaneBlockingQueue(DispatchPolicy policy, int capacity,
+                                     OverflowPolicy overflowPolicy) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity < 0");
+        }
+        mPolicy = policy != null ? policy : DispatchPolicy.PRIORITY_FIFO;
+        mUsePriority = mPolicy == DispatchPolicy.PRIORITY_FIFO
+            || mPolicy == DispatchPolicy.PRIORITY_LIFO;
+        mLifo = mPolicy == DispatchPolicy.LIFO || mPolicy == DispatchPolicy.PRIORITY_LIFO;
+        mCapacity = capacity;
+        mOverflowPolicy = overflowPolicy != null ? overflowPolicy : OverflowPolicy.DROP_OLDEST;
+        mLanes = new ConcurrentLinkedDeque[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT; i++) {
+            mLanes[i] = new ConcurrentLinkedDeque<Runnable>();
+        }
+    }
+
+    public DispatchPolicy getDispatchPolicy() {
+        return mPolicy;
+    }
+
+    /**
+     * 获得容量上限
+     *
+     * @return 0表示不限
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return mOverflowPolicy;
+    }
+
+    /**
+     * 获得超出容量上限被丢弃的任务数
+     *
+     * @return
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * 设置老化周期：任务每等待一个周期，有效优先级提升一级，0表示关闭老化
+     * <p/>
+     * 只对PRIORITY_FIFO策略生效
+     *
+     * @param interval
+     * @param unit
+     */
+    public void setAgingInterval(long interval, TimeUnit unit) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("interval < 0");
+        }
+        mAgingNanos = unit.toNanos(interval);
+    }
+
+    /**
+     * 获得老化周期
+     *
+     * @param unit
+     * @return 老化周期，0表示关闭老化
+     */
+    public long getAgingInterval(TimeUnit unit) {
+        return unit.convert(mAgingNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 开启或关闭EDF模式：开启后带截止时间的任务按截止时间先后出队，排在所有优先级通道之前，
+     * 关闭后新提交的任务回到优先级通道，已在堆中的任务仍然先出队
+     * <p/>
+     * 持续有带截止时间的任务提交时，没有截止时间的任务要等堆空了才能出队
+     * <p/>
+     * 截止时间堆在第一次开启时才创建，不用EDF的队列（例如每个虚拟线程池一个）不为它付出内存
+     *
+     * @param enabled
+     */
+    public synchronized void setEarliestDeadlineFirst(boolean enabled) {
+        if (enabled && mDeadlines == null) {
+            mDeadlines = new PriorityBlockingQueue<Runnable>(11, DeadlineComparator.INSTANCE);
+        }
+        mEarliestDeadlineFirst = enabled;
+    }
+
+    public boolean isEarliestDeadlineFirst() {
+        return mEarliestDeadlineFirst;
+    }
+
+    /**
+     * 获得因过期在出队时被丢弃的任务数
+     *
+     * @return 过期任务数
+     */
+    public long getExpiredCount() {
+        return mExpired.get();
+    }
+
+    /**
+     * 获得出队时发现已经取消、被直接丢弃的任务数
+     *
+     * @return 取消的任务数
+     */
+    public long getCancelledCount() {
+        return mCancelled.get();
+    }
+
+    /**
+     * 关闭出队闸门：之后poll返回null，take等待，直到{@link #resume()}
+     * <p/>
+     * 已经被取走的任务不受影响；入队、remove和drainTo不受闸门限制
+     */
+    public void pause() {
+        // 已经关闭时保留最初的时刻
+        mPausedSince.compareAndSet(0, System.nanoTime());
+        mPaused = true;
+    }
+
+    /**
+     * 打开出队闸门，只唤醒一个等待的工作线程，后续由取到任务的线程逐个接力唤醒
+     */
+    public void resume() {
+        final ReentrantLock lock = mTakeLock;
+        lock.lock();
+        try {
+            mPaused = false;
+            if (mWaiters > 0 && !isEmpty()) {
+                mNotEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+        long since = mPausedSince.getAndSet(0);
+        LatencyHistogram recorder = mPauseRecorder;
+        if (since != 0 && recorder != null) {
+            recorder.record(System.nanoTime() - since);
+        }
+    }
+
+    /**
+     * 设置记录闸门关闭时长的统计，每次pause到resume记一次
+     *
+     * @param recorder null表示不统计
+     */
+    void setPauseRecorder(LatencyHistogram recorder) {
+        mPauseRecorder = recorder;
+    }
+
+    /**
+     * 出队闸门是否关闭
+     *
+     * @return mPaused
+     */
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * 设置出队限流器
+     *
+     * @param limiter null表示不限流
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        final ReentrantLock lock = mTakeLock;
+        lock.lock();
+        try {
+            if (limiter != null && mThrottleWait == null) {
+                // 先于限流器可见，poll中拿到限流器时统计一定已经存在
+                mThrottleWait = new LatencyHistogram();
+            }
+            mRateLimiter = limiter;
+            mThrottledSince.set(0);
+            // 等待许可的工作线程按新的速率重新计算等待时间
+            mNotEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public RateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * 队列中有任务但因限流不能出队时，距离下一个许可的时间
+     *
+     * @return 没有被限流时返回0
+     */
+    public long getThrottleDelayNanos() {
+        RateLimiter limiter = mRateLimiter;
+        if (limiter == null || mPaused || isEmpty()) {
+            return 0;
+        }
+        return limiter.getDelayNanos();
+    }
+
+    /**
+     * 出队前领取线程预算的许可，只能在取任务之前设置
+     *
+     * @param share 线程池的份额，null表示不受预算限制
+     */
+    void setBudgetShare(ThreadBudget.Share share) {
+        mBudgetShare = share;
+    }
+
+    /**
+     * 队列中的任务是否因线程预算的许可用完而不能出队
+     *
+     * @return true/false
+     */
+    boolean isWaitingForBudget() {
+        ThreadBudget.Share share = mBudgetShare;
+        return share != null && !mPaused && !isEmpty() && share.budget().isExhausted(share);
+    }
+
+    /**
+     * 任务因限流在队头等待许可的时间，只统计确实等待过的任务
+     *
+     * @return 统计快照
+     */
+    public LatencyHistogram.Snapshot getThrottleWait() {
+        LatencyHistogram throttleWait = mThrottleWait;
+        if (throttleWait == null) {
+            // 从来没有限流过，返回空的快照
+            throttleWait = new LatencyHistogram();
+        }
+        return throttleWait.snapshot();
+    }
+
+    /**
+     * 获得任务的优先级，没有实现 {@link PriorityTask} 的任务视为普通优先级
+     *
+     * @param r
+     * @return 优先级的值
+     */
+    static int priorityOf(Object r) {
+        if (r instanceof PriorityTask) {
+            return ((PriorityTask) r).getPriority();
+        }
+        return NORM_PRIORITY_VALUE;
+    }
+
+    /**
+     * 优先级的值映射到通道：小于5进高优先级通道，大于5进低优先级通道
+     *
+     * @param r
+     * @return 通道下标
+     */
+    static int laneOf(Object r) {
+        int priority = priorityOf(r);
+        if (priority < NORM_PRIORITY_VALUE) {
+            return LANE_MAX;
+        } else if (priority > NORM_PRIORITY_VALUE) {
+            return LANE_MIN;
+        }
+        return LANE_NORM;
+    }
+
+    /**
+     * EDF模式下带截止时间的任务进入截止时间堆
+     */
+    private boolean isDeadlineOrdered(Runnable r) {
+        return mEarliestDeadlineFirst && DeadlineComparator.deadlineOf(r) != 0;
+    }
+
+    private void offerDeadline(Runnable r) {
+        mDeadlines.offer(r);
+        mDeadlineCount.incrementAndGet();
+    }
+
+    /**
+     * 按出队策略决定任务进入的通道
+     */
+    private int laneFor(Object r) {
+        return mUsePriority ? laneOf(r) : LANE_NORM;
+    }
+
+    @Override
+    public boolean offer(Runnable r) {
+        if (r == null) {
+            throw new NullPointerException();
+        }
+        if (isDeadlineOrdered(r)) {
+            offerDeadline(r);
+        } else {
+            mLanes[laneFor(r)].offer(r);
+        }
+        if (mCapacity > 0 && mCount.incrementAndGet() > mCapacity) {
+            trimToCapacity();
+        }
+        signalNotEmpty();
+        return true;
+    }
+
+    /**
+     * 不参与溢出丢弃的任务：已经被接纳的工作的后续步骤（例如CompletionStage的下一步），
+     * 丢弃它只会让等待结果的整条链永远挂起。它们仍然计入容量，只剩它们时队列可以暂时超出上限
+     */
+    interface NonSheddable {
+    }
+
+    /**
+     * 超出容量上限时先清掉已取消的Future，仍然超出时按溢出策略丢弃任务，直到回到上限以内；
+     * EDF模式下截止时间堆中的任务同样参与丢弃，{@link NonSheddable}的任务不会被丢弃
+     * <p/>
+     * 只在超出上限时调用，需要遍历队列，O(容量)
+     */
+    private void trimToCapacity() {
+        purgeCancelled();
+        boolean shed = mOverflowPolicy == OverflowPolicy.SHED_LOWEST_PRIORITY;
+        while (mCount.get() > mCapacity) {
+            Runnable victim = null;
+            int victimLane = -1;
+            for (int i = LANE_COUNT - 1; i >= 0; i--) {
+                Runnable r = firstSheddable(mLanes[i]);
+                if (r != null && (victim == null || sequenceOf(r) < sequenceOf(victim))) {
+                    victim = r;
+                    victimLane = i;
+                    if (shed) {
+                        // 优先级最低的非空通道，其中最早入队的任务
+                        break;
+                    }
+                }
+            }
+            Runnable deadlineVictim = mDeadlineCount.get() > 0 ? deadlineVictim(shed) : null;
+            if (deadlineVictim != null
+                && (victim == null || dropDeadlineFirst(deadlineVictim, victim, shed))) {
+                if (mDeadlines.remove(deadlineVictim)) {
+                    mDeadlineCount.decrementAndGet();
+                    mCount.decrementAndGet();
+                    drop(deadlineVictim);
+                }
+                continue;
+            }
+            if (victim == null) {
+                // 其它线程已经取走了任务，或者只剩不能丢弃的任务
+                return;
+            }
+            // removeFirstOccurrence用CAS删除，与并发的出队不会重复计数
+            if (mLanes[victimLane].removeFirstOccurrence(victim)) {
+                mCount.decrementAndGet();
+                drop(victim);
+            }
+        }
+    }
+
+    /**
+     * 通道中最早入队的可丢弃任务，通常就是通道头部
+     */
+    private static Runnable firstSheddable(ConcurrentLinkedDeque<Runnable> lane) {
+        for (Runnable r : lane) {
+            if (!(r instanceof NonSheddable)) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 删除已取消的Future：出队时本来也会丢弃它们，但在那之前一直占着容量，
+     * 不先清掉的话会丢弃仍然有效的任务
+     */
+    private void purgeCancelled() {
+        for (int i = 0; i < LANE_COUNT; i++) {
+            ConcurrentLinkedDeque<Runnable> lane = mLanes[i];
+            for (Runnable r : lane) {
+                if (isCancelledFuture(r) && lane.removeFirstOccurrence(r)) {
+                    mCount.decrementAndGet();
+                    mCancelled.incrementAndGet();
+                }
+            }
+        }
+        if (mDeadlineCount.get() > 0) {
+            for (Object r : mDeadlines.toArray()) {
+                if (isCancelledFuture(r) && mDeadlines.remove(r)) {
+                    mDeadlineCount.decrementAndGet();
+                    mCount.decrementAndGet();
+                    mCancelled.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static boolean isCancelledFuture(Object r) {
+        return r instanceof Future && ((Future<?>) r).isCancelled();
+    }
+
+    private static long sequenceOf(Object r) {
+        return r instanceof PriorityTask ? ((PriorityTask) r).getSequence() : 0;
+    }
+
+    /**
+     * 截止时间堆中按溢出策略应当丢弃的任务：优先级最低的（相同时最早提交的），或最早提交的
+     *
+     * @param shed 是否按优先级丢弃
+     * @return 没有可丢弃的任务时返回null
+     */
+    private Runnable deadlineVictim(boolean shed) {
+        Runnable victim = null;
+        for (Object o : mDeadlines.toArray()) {
+            if (o instanceof NonSheddable) {
+                continue;
+            }
+            Runnable r = (Runnable) o;
+            if (victim == null) {
+                victim = r;
+                continue;
+            }
+            if (shed) {
+                int lane = laneFor(r);
+                int victimLane = laneFor(victim);
+                if (lane > victimLane
+                    || (lane == victimLane && sequenceOf(r) < sequenceOf(victim))) {
+                    victim = r;
+                }
+            } else if (sequenceOf(r) < sequenceOf(victim)) {
+                victim = r;
+            }
+        }
+        return victim;
+    }
+
+    /**
+     * 截止时间堆中的候选任务是否比通道中的候选任务更应当丢弃
+     */
+    private boolean dropDeadlineFirst(Runnable deadlineVictim, Runnable laneVictim,
+                                      boolean shed) {
+        if (shed) {
+            int deadlineLane = laneFor(deadlineVictim);
+            int lane = laneFor(laneVictim);
+            if (deadlineLane != lane) {
+                return deadlineLane > lane;
+            }
+        }
+        return sequenceOf(deadlineVictim) < sequenceOf(laneVictim);
+    }
+
+    /**
+     * 丢弃任务，Future走取消流程
+     */
+    private void drop(Runnable r) {
+        mDropped.incrementAndGet();
+        if (r instanceof Future) {
+            ((Future<?>) r).cancel(false);
+        }
+    }
+
+    /**
+     * 任务离开队列（出队、删除），维护有容量上限时的计数
+     */
+    private void onRemoved() {
+        if (mCapacity > 0) {
+            mCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * 批量入队：按优先级分组后每个通道一次性追加整段任务，
+     * 最后只唤醒min(任务数, 等待线程数)个工作线程
+     *
+     * @param tasks
+     * @return 入队的任务数
+     * @throws NullPointerException 有任务为null，此时整批都不入队
+     */
+    public int offerAll(Collection<? extends Runnable> tasks) {
+        int n = tasks.size();
+        if (n == 0) {
+            return 0;
+        }
+        // 先检查整批，中途抛出会让一部分任务入队而计数和唤醒都没有做
+        for (Runnable r : tasks) {
+            if (r == null) {
+                throw new NullPointerException();
+            }
+        }
+        if (mEarliestDeadlineFirst) {
+            ArrayList<Runnable> rest = new ArrayList<Runnable>(n);
+            for (Runnable r : tasks) {
+                if (isDeadlineOrdered(r)) {
+                    offerDeadline(r);
+                } else {
+                    rest.add(r);
+                }
+            }
+            tasks = rest;
+        }
+        ArrayList<Runnable>[] batches = null;
+        int single = -1;
+        for (Runnable r : tasks) {
+            int lane = laneFor(r);
+            if (batches == null) {
+                if (single < 0 || single == lane) {
+                    // 常见情况：整批任务同一优先级，不需要拆分
+                    single = lane;
+                    continue;
+                }
+                batches = splitByLane(tasks, tasks.size());
+                break;
+            }
+        }
+        if (single < 0) {
+            // 全部进入了截止时间堆
+        } else if (batches == null) {
+            mLanes[single].addAll(tasks);
+        } else {
+            for (int i = 0; i < LANE_COUNT; i++) {
+                if (!batches[i].isEmpty()) {
+                    mLanes[i].addAll(batches[i]);
+                }
+            }
+        }
+        if (mCapacity > 0 && mCount.addAndGet(n) > mCapacity) {
+            trimToCapacity();
+        }
+        signalNotEmpty(n);
+        return n;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ArrayList<Runnable>[] splitByLane(Collection<? extends Runnable> tasks,
+                                                     int n) {
+        ArrayList<Runnable>[] batches = new ArrayList[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT; i++) {
+            batches[i] = new ArrayList<Runnable>(n);
+        }
+        for (Runnable r : tasks) {
+            batches[laneOf(r)].add(r);
+        }
+        return batches;
+    }
+
+    @Override
+    public void put(Runnable r) {
+        offer(r);
+    }
+
+    @Override
+    public boolean offer(Runnable r, long timeout, TimeUnit unit) {
+        return offer(r);
+    }
+
+    @Override
+    public Runnable poll() {
+        Runnable r = pollGate(mBudgetShare);
+        return r != BUDGET_DENIED ? r : null;
+    }
+
+    /**
+     * 出队令牌用的poll：线程预算的许可用完时在这里等待许可再出队，而不是返回null，
+     * 令牌不会因为许可用完而丢失；当前线程正在执行本线程池的任务（join时嵌套执行）时
+     * 已经持有许可，直接出队
+     *
+     * @return 任务，闸门关闭或队列为空时返回null
+     * @throws InterruptedException 等待许可时被中断
+     */
+    Runnable pollAdmitted() throws InterruptedException {
+        ThreadBudget.Share share = mBudgetShare;
+        if (ThreadBudget.holdsPermit(share)) {
+            return pollGate(null);
+        }
+        Runnable r;
+        while ((r = pollGate(share)) == BUDGET_DENIED) {
+            share.budget().admit(share, -1);
+        }
+        return r;
+    }
+
+    /**
+     * 经过出队闸门、限流和线程预算取出一个任务
+     *
+     * @param share 线程预算的份额，null表示不领取许可
+     * @return 任务；不能出队时返回null，许可用完时返回BUDGET_DENIED
+     */
+    private Runnable pollGate(ThreadBudget.Share share) {
+        if (mPaused) {
+            if (share != null) {
+                ThreadBudget.cancelAdmission();
+            }
+            return null;
+        }
+        RateLimiter limiter = mRateLimiter;
+        if (limiter == null && share == null) {
+            return pollLive();
+        }
+        if (isEmpty()) {
+            if (share != null) {
+                ThreadBudget.cancelAdmission();
+            }
+            return null;
+        }
+        if (limiter != null && limiter.tryAcquire() > 0) {
+            // 记下队头开始等待许可的时间，已经在等待时不覆盖
+            mThrottledSince.compareAndSet(0, System.nanoTime());
+            if (share != null) {
+                ThreadBudget.cancelAdmission();
+            }
+            return null;
+        }
+        if (share != null && !share.budget().tryAdmit(share)) {
+            if (limiter != null) {
+                limiter.refund();
+            }
+            return BUDGET_DENIED;
+        }
+        Runnable r = pollLive();
+        if (r == null) {
+            // 许可没有用上（队列中只剩已取消或过期的任务），归还
+            if (limiter != null) {
+                limiter.refund();
+            }
+            if (share != null) {
+                ThreadBudget.cancelAdmission();
+            }
+            return null;
+        }
+        long since = limiter != null ? mThrottledSince.getAndSet(0) : 0;
+        if (since != 0) {
+            long start = since;
+            if (r instanceof PriorityTask && ((PriorityTask) r).getSequence() != 0
+                && ((PriorityTask) r).getSubmitTime() - since > 0) {
+                start = ((PriorityTask) r).getSubmitTime();
+            }
+            mThrottleWait.record(System.nanoTime() - start);
+        }
+        return r;
+    }
+
+    /**
+     * 不经过出队闸门和限流，取出一个未取消、未过期的任务
+     *
+     * @return 任务，没有时返回null
+     */
+    private Runnable pollLive() {
+        Runnable r;
+        long now = 0;
+        while ((r = pollLanes()) != null) {
+            if (r instanceof Future && ((Future<?>) r).isCancelled()) {
+                mCancelled.incrementAndGet();
+                continue;
+            }
+            long deadline = DeadlineComparator.deadlineOf(r);
+            if (deadline == 0) {
+                return r;
+            }
+            if (now == 0) {
+                now = System.nanoTime();
+            }
+            if (deadline - now > 0) {
+                return r;
+            }
+            // 已经过期，不交给工作线程
+            mExpired.incrementAndGet();
+            ((DeadlineTask) r).expire();
+        }
+        return null;
+    }
+
+    /**
+     * 不经过出队闸门和过期检查，按截止时间（EDF模式）、优先级（及老化）取出一个任务
+     *
+     * @return 任务，队列为空时返回null
+     */
+    private Runnable pollLanes() {
+        Runnable r;
+        if (mDeadlineCount.get() > 0 && (r = mDeadlines.poll()) != null) {
+            mDeadlineCount.decrementAndGet();
+            onRemoved();
+            return r;
+        }
+        if (!mUsePriority) {
+            r = pollLane(LANE_NORM);
+        } else {
+            r = null;
+            long agingNanos = mAgingNanos;
+            if (agingNanos > 0 && !mLifo) {
+                int lane = agedLane(agingNanos);
+                if (lane > LANE_MAX) {
+                    r = mLanes[lane].poll();
+                }
+            }
+            for (int i = 0; r == null && i < LANE_COUNT; i++) {
+                r = pollLane(i);
+            }
+        }
+        if (r != null) {
+            onRemoved();
+        }
+        return r;
+    }
+
+    /**
+     * 按出队策略从通道头部或尾部取出任务
+     */
+    private Runnable pollLane(int lane) {
+        return mLifo ? mLanes[lane].pollLast() : mLanes[lane].pollFirst();
+    }
+
+    /**
+     * 计算老化后应当出队的通道：各通道队头的有效优先级 = 通道优先级 - 已等待的老化周期数，
+     * 取有效优先级最高的通道，相同时取先提交的
+     *
+     * @param agingNanos
+     * @return 通道下标，全部为空时返回-1
+     */
+    private int agedLane(long agingNanos) {
+        long now = System.nanoTime();
+        int best = -1;
+        long bestLevel = Long.MAX_VALUE;
+        long bestSubmitTime = 0;
+        for (int i = 0; i < LANE_COUNT; i++) {
+            Runnable head = mLanes[i].peek();
+            if (head == null) {
+                continue;
+            }
+            long level = i;
+            long submitTime = 0;
+            boolean submitted = false;
+            if (head instanceof PriorityTask && ((PriorityTask) head).getSequence() != 0) {
+                submitted = true;
+                submitTime = ((PriorityTask) head).getSubmitTime();
+                level = Math.max(LANE_MAX, i - (now - submitTime) / agingNanos);
+            }
+            if (best < 0 || level < bestLevel
+                || (level == bestLevel && submitted && submitTime - bestSubmitTime < 0)) {
+                best = i;
+                bestLevel = level;
+                bestSubmitTime = submitted ? submitTime : now;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        Runnable r = poll();
+        if (r != null) {
+            return r;
+        }
+        final ReentrantLock lock = mTakeLock;
+        lock.lockInterruptibly();
+        try {
+            mWaiters++;
+            try {
+                // 先登记为等待者再重新检查，offer 端先入队再读 mWaiters，不会丢失唤醒
+                while ((r = pollGate(mBudgetShare)) == null || r == BUDGET_DENIED) {
+                    if (r == BUDGET_DENIED) {
+                        awaitAdmission(-1);
+                        continue;
+                    }
+                    long throttle = getThrottleDelayNanos();
+                    if (throttle > 0) {
+                        // 被限流：按下一个许可的时间定时等待，任务留在队列中
+                        mNotEmpty.awaitNanos(throttle);
+                    } else if (mRateLimiter == null || mPaused || isEmpty()) {
+                        mNotEmpty.await();
+                    }
+                }
+                signalNext();
+            } finally {
+                mWaiters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return r;
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        Runnable r = poll();
+        if (r != null) {
+            return r;
+        }
+        long nanos = unit.toNanos(timeout);
+        final ReentrantLock lock = mTakeLock;
+        lock.lockInterruptibly();
+        try {
+            mWaiters++;
+            try {
+                while ((r = pollGate(mBudgetShare)) == null || r == BUDGET_DENIED) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    if (r == BUDGET_DENIED) {
+                        long deadline = System.nanoTime() + nanos;
+                        awaitAdmission(nanos);
+                        nanos = deadline - System.nanoTime();
+                        continue;
+                    }
+                    long throttle = getThrottleDelayNanos();
+                    if (throttle > 0) {
+                        long waited = Math.min(nanos, throttle);
+                        nanos -= waited - mNotEmpty.awaitNanos(waited);
+                    } else if (mRateLimiter == null || mPaused || isEmpty()) {
+                        nanos = mNotEmpty.awaitNanos(nanos);
+                    }
+                }
+                signalNext();
+            } finally {
+                mWaiters--;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return r;
+    }
+
+    /**
+     * 持有mTakeLock时等待线程预算的许可：暂时离开等待者并释放锁，许可可能要等其它线程池的任务归还，
+     * 不能占着锁让入队和其它工作线程等待；领到的许可暂存在当前线程上，重新出队时使用
+     *
+     * @param nanos 最多等待的时间，小于0表示不限
+     */
+    private void awaitAdmission(long nanos) throws InterruptedException {
+        final ReentrantLock lock = mTakeLock;
+        ThreadBudget.Share share = mBudgetShare;
+        mWaiters--;
+        lock.unlock();
+        try {
+            share.budget().admit(share, nanos);
+        } finally {
+            lock.lock();
+            mWaiters++;
+        }
+    }
+
+    /**
+     * 接力唤醒：持有mTakeLock且自己取到了任务，队列中还有任务、还有其他等待者时唤醒下一个
+     */
+    private void signalNext() {
+        if (mWaiters > 1 && !mPaused && !isEmpty()) {
+            mNotEmpty.signal();
+        }
+    }
+
+    /**
+     * 有工作线程在等待、且闸门打开时唤醒其中一个；闸门关闭期间入队的任务由resume负责唤醒
+     */
+    private void signalNotEmpty() {
+        if (mWaiters > 0 && !mPaused) {
+            final ReentrantLock lock = mTakeLock;
+            lock.lock();
+            try {
+                mNotEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 入队了count个任务，唤醒min(count, 等待线程数)个工作线程
+     */
+    private void signalNotEmpty(int count) {
+        if (mWaiters > 0 && !mPaused) {
+            final ReentrantLock lock = mTakeLock;
+            lock.lock();
+            try {
+                for (int i = Math.min(count, mWaiters); i > 0; i--) {
+                    mNotEmpty.signal();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        Runnable r;
+        if (mDeadlineCount.get() > 0 && (r = mDeadlines.peek()) != null) {
+            return r;
+        }
+        for (int i = 0; i < LANE_COUNT; i++) {
+            if ((r = mLifo ? mLanes[i].peekLast() : mLanes[i].peekFirst()) != null) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public int size() {
+        int size = mDeadlineCount.get();
+        for (int i = 0; i < LANE_COUNT; i++) {
+            size += mLanes[i].size();
+        }
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        if (mDeadlineCount.get() > 0) {
+            return false;
+        }
+        for (int i = 0; i < LANE_COUNT; i++) {
+            if (!mLanes[i].isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        if (mCapacity > 0) {
+            return Math.max(0, mCapacity - mCount.get());
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * 先在任务当前优先级对应的通道中查找，入队后优先级被修改过的任务再查其它通道
+     */
+    @Override
+    public boolean remove(Object o) {
+        if (o == null) {
+            return false;
+        }
+        if (mDeadlineCount.get() > 0 && DeadlineComparator.deadlineOf(o) != 0
+            && mDeadlines.remove(o)) {
+            mDeadlineCount.decrementAndGet();
+            onRemoved();
+            return true;
+        }
+        int lane = laneFor(o);
+        if (mLanes[lane].remove(o)) {
+            onRemoved();
+            return true;
+        }
+        for (int i = 0; i < LANE_COUNT; i++) {
+            if (i != lane && mLanes[i].remove(o)) {
+                onRemoved();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (o == null) {
+            return false;
+        }
+        if (mDeadlineCount.get() > 0 && mDeadlines.contains(o)) {
+            return true;
+        }
+        int lane = laneFor(o);
+        if (mLanes[lane].contains(o)) {
+            return true;
+        }
+        for (int i = 0; i < LANE_COUNT; i++) {
+            if (i != lane && mLanes[i].contains(o)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void clear() {
+        while (pollLanes() != null) {
+            // 逐个取出，维护计数
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        if (c == null) {
+            throw new NullPointerException();
+        }
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        int n = 0;
+        Runnable r;
+        while (n < maxElements && (r = pollLanes()) != null) {
+            c.add(r);
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * 按出队顺序返回当前任务的快照迭代器，迭代器的 remove 会从队列中删除对应任务
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        final ArrayList<Runnable> snapshot = new ArrayList<Runnable>();
+        if (mDeadlineCount.get() > 0) {
+            Object[] deadlines = mDeadlines.toArray();
+            Arrays.sort(deadlines, DeadlineComparator.INSTANCE);
+            for (Object r : deadlines) {
+                snapshot.add((Runnable) r);
+            }
+        }
+        for (int i = 0; i < LANE_COUNT; i++) {
+            Iterator<Runnable> it = mLifo ? mLanes[i].descendingIterator()
+                : mLanes[i].iterator();
+            while (it.hasNext()) {
+                snapshot.add(it.next());
+            }
+        }
+        return new Iterator<Runnable>() {
+            private final Iterator<Runnable> mIt = snapshot.iterator();
+            private Runnable mLast;
+
+            @Override
+            public boolean hasNext() {
+                return mIt.hasNext();
+            }
+
+            @Override
+            public Runnable next() {
+                mLast = mIt.next();
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if (mLast == null) {
+                    throw new IllegalStateException();
+                }
+                PriorityLaneBlockingQueue.this.remove(mLast);
+                mLast = null;
+            }
+        };
+    }
+}
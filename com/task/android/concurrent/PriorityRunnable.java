@@ -1,19 +1,42 @@
 package com.task.android.concurrent;
 
 import com.task.android.concurrent.Config.Priority;
-import com.task.android.concurrent.ExAsyncTask.WorkerFutureTask;
 
 /**
  * 具备优先级属性的Runnable,作为优先级队列的元数据
+ * <p/>
+ * 框架内部包装普通Runnable时通过{@link #obtain(Runnable, int)}从对象池获取实例，
+ * 执行完毕后由执行它的一方回收（见{@link #retire(Runnable)}），避免每次提交都分配新对象；
+ * 外部new出来的实例不会被回收
  * @date 2016/7/7
  */
-public class PriorityRunnable implements Runnable, Comparable<Object> {
+public class PriorityRunnable implements Runnable, PriorityTask, Comparable<Object> {
     private static final String TAG = "Concurrent PriorityRunnable";
 
+    // 对象池上限，与android.os.Message的池大小同一量级
+    private static final int MAX_POOL_SIZE = 64;
+
+    private static final Object sPoolSync = new Object();
+    private static PriorityRunnable sPool;
+    private static int sPoolSize = 0;
+
+    // 工作线程上执行完、等待回收的实例：线程池在afterExecute之后不再通知我们，
+    // 所以推迟到这个线程下一次retire时回收，那时上一个任务的afterExecute（包括子类覆盖的部分）已经返回
+    private static final ThreadLocal<PriorityRunnable> sRetired = new ThreadLocal<PriorityRunnable>();
+
     private Runnable r;
 
+    // 对象池链表中的下一个节点
+    private PriorityRunnable mNext;
+    // 是否由obtain获取，只有这种实例在执行完后回收
+    private boolean mRecyclable;
+
     // 默认的优先级为5
     public int mPriority = 5;
+    // 提交序号，同优先级先进先出
+    private volatile long mSequence;
+    // 提交时间
+    private volatile long mSubmitTime;
 
     public PriorityRunnable(Runnable r) {
         this.r = r;
@@ -45,11 +68,92 @@ public class PriorityRunnable implements Runnable, Comparable<Object> {
         }
     }
 
+    /**
+     * 从对象池获取一个包装实例，执行完毕后被回收，调用方不能在提交后继续持有它
+     *
+     * @param r
+     * @param priority 优先级的值
+     * @return
+     */
+    static PriorityRunnable obtain(Runnable r, int priority) {
+        PriorityRunnable runnable = null;
+        synchronized (sPoolSync) {
+            if (sPool != null) {
+                runnable = sPool;
+                sPool = runnable.mNext;
+                runnable.mNext = null;
+                sPoolSize--;
+            }
+        }
+        if (runnable == null) {
+            runnable = new PriorityRunnable(r);
+        } else {
+            runnable.r = r;
+        }
+        runnable.mPriority = priority;
+        runnable.mRecyclable = true;
+        return runnable;
+    }
+
+    /**
+     * 线程池的afterExecute中调用：r如果是对象池中的实例，先挂在当前线程上，
+     * 等这个线程下一次retire或{@link #recycleRetired()}时再回收，同时回收之前挂着的实例
+     *
+     * @param r 刚执行完的任务
+     */
+    static void retire(Runnable r) {
+        recycleRetired();
+        if (r instanceof PriorityRunnable && ((PriorityRunnable) r).mRecyclable) {
+            sRetired.set((PriorityRunnable) r);
+        }
+    }
+
+    /**
+     * 回收当前线程上挂着的实例，调用方保证它的afterExecute已经返回
+     */
+    static void recycleRetired() {
+        PriorityRunnable retired = sRetired.get();
+        if (retired != null) {
+            sRetired.set(null);
+            retired.recycle();
+        }
+    }
+
+    /**
+     * 不经过线程池、由调用方直接执行的任务，执行完后立即回收
+     *
+     * @param r
+     */
+    static void recycle(Runnable r) {
+        if (r instanceof PriorityRunnable && ((PriorityRunnable) r).mRecyclable) {
+            ((PriorityRunnable) r).recycle();
+        }
+    }
+
+    /**
+     * 放回对象池
+     */
+    private void recycle() {
+        r = null;
+        mRecyclable = false;
+        mPriority = 5;
+        mSequence = 0;
+        mSubmitTime = 0;
+        synchronized (sPoolSync) {
+            if (sPoolSize < MAX_POOL_SIZE) {
+                mNext = sPool;
+                sPool = this;
+                sPoolSize++;
+            }
+        }
+    }
+
     /**
      * 获得优先级的值
      *
      * @return mPriority
      */
+    @Override
     public int getPriority() {
         return mPriority;
     }
@@ -75,22 +179,50 @@ public class PriorityRunnable implements Runnable, Comparable<Object> {
         }
     }
 
+    /**
+     * 优先级枚举转换为优先级的值：MIN为10，NORM为5，MAX为1
+     *
+     * @param priority
+     * @return 优先级的值
+     */
+    static int priorityValue(Priority priority) {
+        if (priority == null)
+            priority = Priority.NORM_PRIORITY;
+        switch (priority) {
+            case MIN_PRIORITY:
+                return 10;
+            case MAX_PRIORITY:
+                return 1;
+            case NORM_PRIORITY:
+            default:
+                return 5;
+        }
+    }
+
+    @Override
+    public long getSequence() {
+        return mSequence;
+    }
+
+    @Override
+    public long getSubmitTime() {
+        return mSubmitTime;
+    }
+
+    @Override
+    public void markSubmitted(long sequence, long submitTime) {
+        mSubmitTime = submitTime;
+        mSequence = sequence;
+    }
+
     @Override
     public void run() {
         this.r.run();
     }
 
-    @SuppressWarnings("rawtypes")
     @Override
     public int compareTo(Object another) {
-        if (another instanceof WorkerFutureTask) {
-            return this.mPriority < ((WorkerFutureTask) another).mPriority ? -1
-                : this.mPriority > ((WorkerFutureTask) another).mPriority ? 1 : 0;
-        } else if (another instanceof PriorityRunnable) {
-            return this.mPriority < ((PriorityRunnable) another).mPriority ? -1
-                : this.mPriority > ((PriorityRunnable) another).mPriority ? 1 : 0;
-        } else
-            return 0;
+        return PriorityComparator.compareTasks(this, another);
     }
 
 }
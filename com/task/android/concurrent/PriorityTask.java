@@ -0,0 +1,42 @@
+package com.task.android.concurrent;
+
+/**
+ * 具备优先级的任务，作为线程池工作队列的元数据
+ * <p/>
+ * {@link PriorityRunnable} 和 {@link ExAsyncTask.WorkerFutureTask} 都实现了该接口，
+ * 工作队列根据它决定任务的出队顺序：优先级高的先出，优先级相同的按提交序号先进先出，
+ * 没有实现该接口的任务按普通优先级处理
+ *
+ * @date 2016/7/9
+ */
+public interface PriorityTask {
+
+    /**
+     * 获得优先级的值：1为最高，5为普通，10为最低
+     *
+     * @return 优先级
+     */
+    int getPriority();
+
+    /**
+     * 获得提交序号，同一线程池内单调递增，优先级相同的任务按它先进先出
+     *
+     * @return 提交序号，未提交过的任务为0
+     */
+    long getSequence();
+
+    /**
+     * 获得提交时间（System.nanoTime()），用于计算任务在队列中的等待时间
+     *
+     * @return 提交时间
+     */
+    long getSubmitTime();
+
+    /**
+     * 线程池接收任务时调用，记录提交序号和提交时间
+     *
+     * @param sequence
+     * @param submitTime
+     */
+    void markSubmitted(long sequence, long submitTime);
+}
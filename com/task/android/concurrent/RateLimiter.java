@@ -0,0 +1,92 @@
+package com.task.android.concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 令牌桶限流器：平均每秒permitsPerSecond个许可，空闲时最多积攒burst个，可以一次性用掉
+ * <p/>
+ * 用“理论到达时间”（GCRA）表示令牌桶，只有一个AtomicLong，不需要定时补充令牌的线程：
+ * 每发出一个许可，理论到达时间推后一个间隔；它超出当前时间不到burst个间隔时可以发出，
+ * 否则返回需要等待的时间。{@link #tryAcquire()}不阻塞，由调用者决定怎样等待
+ *
+ * @date 2016/7/12
+ */
+public class RateLimiter {
+    private static final String TAG = "RateLimiter";
+
+    private final double mPermitsPerSecond;
+    private final int mBurst;
+    // 两个许可之间的间隔(ns)
+    private final long mIntervalNanos;
+    // 允许超前的时间(ns) = burst个间隔
+    private final long mToleranceNanos;
+    // 理论到达时间(System.nanoTime)
+    private final AtomicLong mTat;
+
+    /**
+     * @param permitsPerSecond 平均速率，大于0
+     * @param burst            桶的容量，至少为1
+     */
+    public RateLimiter(double permitsPerSecond, int burst) {
+        if (!(permitsPerSecond > 0)) {
+            throw new IllegalArgumentException("permitsPerSecond <= 0");
+        }
+        if (burst <= 0) {
+            throw new IllegalArgumentException("burst <= 0");
+        }
+        mPermitsPerSecond = permitsPerSecond;
+        mBurst = burst;
+        mIntervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond));
+        mToleranceNanos = mIntervalNanos * burst;
+        // 初始时桶是满的
+        mTat = new AtomicLong(System.nanoTime() - mToleranceNanos);
+    }
+
+    /**
+     * 尝试取一个许可
+     *
+     * @return 0表示取到了；否则为还需要等待的时间(ns)，没有消耗许可
+     */
+    public long tryAcquire() {
+        for (; ; ) {
+            long now = System.nanoTime();
+            long tat = mTat.get();
+            long next = (tat - now < 0 ? now : tat) + mIntervalNanos;
+            long wait = next - now - mToleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (mTat.compareAndSet(tat, next)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * 归还一个刚取到但没有用上的许可
+     */
+    public void refund() {
+        mTat.addAndGet(-mIntervalNanos);
+    }
+
+    /**
+     * 下一个许可还需要等待的时间，不消耗许可
+     *
+     * @return 0表示现在就有许可
+     */
+    public long getDelayNanos() {
+        long now = System.nanoTime();
+        long tat = mTat.get();
+        long next = (tat - now < 0 ? now : tat) + mIntervalNanos;
+        return Math.max(0, next - now - mToleranceNanos);
+    }
+
+    public double getPermitsPerSecond() {
+        return mPermitsPerSecond;
+    }
+
+    public int getBurst() {
+        return mBurst;
+    }
+}
@@ -0,0 +1,29 @@
+package com.task.android.concurrent;
+
+/**
+ * ExAsyncTask回调（onProgressUpdate、onPostExecute、onCancelled）的投递方式
+ * <p/>
+ * Android上默认投递到主线程（{@link ResultDispatchers#mainLooper()}），
+ * 不在Android上时默认投递到一个共享的事件循环线程（{@link ResultDispatchers#newEventLoop(String)}），
+ * 也可以在工作线程上直接回调（{@link ResultDispatchers#direct()}）。
+ * 同一个实现的post按提交顺序执行
+ *
+ * @date 2016/7/12
+ */
+public interface ResultDispatcher {
+
+    /**
+     * 尽快在回调线程上执行
+     *
+     * @param callback
+     */
+    void post(Runnable callback);
+
+    /**
+     * 延迟delayMillis之后在回调线程上执行，用于进度的限速
+     *
+     * @param callback
+     * @param delayMillis
+     */
+    void postDelayed(Runnable callback, long delayMillis);
+}
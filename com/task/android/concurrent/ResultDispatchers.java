@@ -0,0 +1,94 @@
+package com.task.android.concurrent;
+
+/**
+ * {@link ResultDispatcher}的几种实现
+ *
+ * @date 2016/7/12
+ */
+public class ResultDispatchers {
+    private static final String TAG = "ResultDispatchers";
+
+    private static final ResultDispatcher DIRECT = new ResultDispatcher() {
+        @Override
+        public void post(Runnable callback) {
+            callback.run();
+        }
+
+        @Override
+        public void postDelayed(Runnable callback, long delayMillis) {
+            // 没有可以延迟执行的线程，直接执行；进度限速由ExAsyncTask在下一次publish时补上
+            callback.run();
+        }
+    };
+
+    private ResultDispatchers() {
+    }
+
+    /**
+     * 在调用线程上直接回调：onProgressUpdate/onPostExecute在工作线程上执行，没有线程切换，
+     * 适合服务端或测试环境
+     *
+     * @return ResultDispatcher
+     */
+    public static ResultDispatcher direct() {
+        return DIRECT;
+    }
+
+    /**
+     * 投递到Android主线程，同一时间段内的回调合并成一条消息
+     *
+     * @return ResultDispatcher
+     */
+    public static ResultDispatcher mainLooper() {
+        return MainLooperHolder.INSTANCE;
+    }
+
+    /**
+     * 新建一个单消费者事件循环，回调在名为name的守护线程上按提交顺序批量执行
+     *
+     * @param name
+     * @return EventLoopDispatcher
+     */
+    public static EventLoopDispatcher newEventLoop(String name) {
+        return new EventLoopDispatcher(name);
+    }
+
+    /**
+     * 运行环境的默认实现：有Android主线程时投递到主线程，否则投递到共享的事件循环
+     *
+     * @return ResultDispatcher
+     */
+    public static ResultDispatcher platformDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+    /**
+     * 是否运行在有主线程Looper的Android环境中
+     */
+    static boolean hasMainLooper() {
+        try {
+            Class.forName("android.os.Looper", false, ResultDispatchers.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+        return AndroidLooper.hasMainLooper();
+    }
+
+    /**
+     * 用到时才加载MainLooperDispatcher，非Android环境不会触发android.os类的加载
+     */
+    private static class MainLooperHolder {
+        static final ResultDispatcher INSTANCE = new MainLooperDispatcher();
+    }
+
+    private static class DefaultHolder {
+        static final ResultDispatcher INSTANCE = hasMainLooper()
+            ? mainLooper() : newEventLoop("ExAsyncTask-EventLoop");
+    }
+
+    private static class AndroidLooper {
+        static boolean hasMainLooper() {
+            return android.os.Looper.getMainLooper() != null;
+        }
+    }
+}
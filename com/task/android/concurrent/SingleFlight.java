@@ -0,0 +1,264 @@
+package com.task.android.concurrent;
+
+import com.task.android.concurrent.Config.Priority;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按key合并请求（single-flight）
+ * <p/>
+ * 同一个key在执行中（排队或运行）时，后来的提交不再新建任务，而是加入正在进行的那一次执行，
+ * 所有请求者拿到同一个结果。例如列表滑动时同一个图片URL被反复提交，只会下载和解码一次。
+ * <p/>
+ * 优先级：共享任务的优先级取所有请求者中最高的，还在队列中时会按新的优先级重新入队；
+ * 取消：每个请求者拿到自己的{@link Future}，取消只影响自己，所有请求者都取消后才取消共享任务；
+ * 共享任务结束后从表中移除，之后相同key的提交会重新执行
+ *
+ * @date 2016/7/11
+ */
+public class SingleFlight {
+    private static final String TAG = "SingleFlight";
+
+    // 执行中的共享任务
+    private final ConcurrentHashMap<Object, SharedTask<?>> mFlights =
+        new ConcurrentHashMap<Object, SharedTask<?>>();
+
+    /**
+     * 提交一个按key合并的任务
+     *
+     * @param key      相同key的并发提交共享一次执行
+     * @param callable 任务，只有创建共享任务的那一次提交的callable会被执行
+     * @param priority 本次请求的优先级
+     * @param executor 创建共享任务时使用的线程池，加入已有任务时忽略
+     * @return 本次请求的Future
+     */
+    @SuppressWarnings("unchecked")
+    public <T> Future<T> submit(Object key, Callable<T> callable, Priority priority,
+                                ExThreadPoolExecutor executor) {
+        if (key == null || callable == null || executor == null) {
+            throw new NullPointerException();
+        }
+        int priorityValue = PriorityRunnable.priorityValue(priority);
+        for (; ; ) {
+            SharedTask<?> flight = mFlights.get(key);
+            if (flight == null) {
+                SharedTask<T> created = new SharedTask<T>(key, callable, priorityValue, executor);
+                flight = mFlights.putIfAbsent(key, created);
+                if (flight == null) {
+                    try {
+                        executor.execute(created);
+                    } catch (RejectedExecutionException e) {
+                        // 已经加入的请求者拿到同一个异常，done()把它从表中移除
+                        created.fail(e);
+                        throw e;
+                    }
+                    return new SharedFuture<T>(created);
+                }
+            }
+            if (flight.acquire()) {
+                flight.raisePriority(priorityValue);
+                return new SharedFuture<T>((SharedTask<T>) flight);
+            }
+            // 共享任务已被所有请求者取消，移除后重新创建
+            mFlights.remove(key, flight);
+        }
+    }
+
+    /**
+     * 执行中的共享任务数
+     *
+     * @return count
+     */
+    public int size() {
+        return mFlights.size();
+    }
+
+    /**
+     * 共享任务：记录请求者个数，结束后从表中移除
+     */
+    private final class SharedTask<T> extends FutureTask<T> implements PriorityTask,
+        Comparable<Object> {
+        private final Object mKey;
+        private final ExThreadPoolExecutor mExecutor;
+        // 尚未取消的请求者个数，降到0后不再接受新的请求者
+        private final AtomicInteger mRequesters = new AtomicInteger(1);
+        private volatile int mPriority;
+        private volatile long mSequence;
+        private volatile long mSubmitTime;
+
+        SharedTask(Object key, Callable<T> callable, int priority,
+                   ExThreadPoolExecutor executor) {
+            super(callable);
+            mKey = key;
+            mPriority = priority;
+            mExecutor = executor;
+        }
+
+        /**
+         * 加入一个请求者
+         *
+         * @return false表示共享任务已经被所有请求者取消
+         */
+        boolean acquire() {
+            for (; ; ) {
+                int n = mRequesters.get();
+                if (n <= 0) {
+                    return false;
+                }
+                if (mRequesters.compareAndSet(n, n + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 一个请求者取消，最后一个请求者取消时取消共享任务
+         */
+        boolean release(boolean mayInterruptIfRunning) {
+            if (mRequesters.decrementAndGet() == 0) {
+                mFlights.remove(mKey, this);
+                if (cancel(mayInterruptIfRunning)) {
+                    // 不再占用队列位置
+                    mExecutor.getQueue().remove(this);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * 提高优先级，仍在队列中时按新优先级重新入队；重新入队被拒绝时（线程池已关闭等）
+         * 共享任务以拒绝异常结束，所有请求者都能得到结果，不会抛给本次请求者
+         */
+        synchronized void raisePriority(int priority) {
+            if (priority >= mPriority || isDone()) {
+                return;
+            }
+            mPriority = priority;
+            if (mExecutor.getQueue().remove(this)) {
+                try {
+                    mExecutor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        /**
+         * 没有进入线程池，以异常结束
+         */
+        void fail(Throwable t) {
+            setException(t);
+        }
+
+        @Override
+        protected void done() {
+            mFlights.remove(mKey, this);
+        }
+
+        @Override
+        public int getPriority() {
+            return mPriority;
+        }
+
+        @Override
+        public long getSequence() {
+            return mSequence;
+        }
+
+        @Override
+        public long getSubmitTime() {
+            return mSubmitTime;
+        }
+
+        @Override
+        public void markSubmitted(long sequence, long submitTime) {
+            // 重新入队时保留最初的提交时间，排队时间和老化都从第一次提交算起
+            if (mSequence == 0) {
+                mSubmitTime = submitTime;
+            }
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Object another) {
+            return PriorityComparator.compareTasks(this, another);
+        }
+    }
+
+    /**
+     * 单个请求者看到的Future，取消只影响自己
+     */
+    private static final class SharedFuture<T> implements Future<T> {
+        private final SharedTask<T> mTask;
+        private final AtomicInteger mCancelled = new AtomicInteger();
+
+        SharedFuture(SharedTask<T> task) {
+            mTask = task;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (mTask.isDone() || !mCancelled.compareAndSet(0, 1)) {
+                return false;
+            }
+            mTask.release(mayInterruptIfRunning);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mCancelled.get() != 0;
+        }
+
+        @Override
+        public boolean isDone() {
+            return isCancelled() || mTask.isDone();
+        }
+
+        /**
+         * 在工作线程中等待时暂时归还线程预算的许可，见{@link ThreadBudget#beginBlocking()}
+         */
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            if (isCancelled()) {
+                throw new CancellationException();
+            }
+            if (mTask.isDone()) {
+                return mTask.get();
+            }
+            ThreadBudget.Share held = ThreadBudget.beginBlocking();
+            try {
+                return mTask.get();
+            } finally {
+                ThreadBudget.endBlocking(held);
+            }
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+            if (isCancelled()) {
+                throw new CancellationException();
+            }
+            if (mTask.isDone()) {
+                return mTask.get(timeout, unit);
+            }
+            ThreadBudget.Share held = ThreadBudget.beginBlocking();
+            try {
+                return mTask.get(timeout, unit);
+            } finally {
+                ThreadBudget.endBlocking(held);
+            }
+        }
+    }
+}
@@ -0,0 +1,616 @@
+package com.task.android.concurrent;
+
+import com.task.android.concurrent.Config.Business;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * 待执行任务的持久化日志：进程被杀后重启，直接从日志恢复尚未执行完的任务，不需要重新扫描
+ * <p/>
+ * 只记录有可序列化描述（descriptor）的任务：提交时追加一条ENQUEUE记录（id、Business、tag、优先级、描述），
+ * 执行结束或被取消时追加一条DONE记录。日志文件用FileChannel.map映射到内存，追加只是一次内存拷贝；
+ * 进程被杀时已经写进映射区的记录仍由内核写回文件，force只是为了掉电也不丢
+ * <p/>
+ * 组提交：追加不等待落盘，后台提交线程每隔commitInterval把这段时间的所有记录一次force到磁盘；
+ * 需要确认落盘的调用方用{@link #awaitCommitted(Entry)}等待，同一时间等待的调用方共享同一次force
+ * <p/>
+ * 记录格式：总长度(int) 类型(byte) id(long) 内容 CRC32(int)，最后一条记录之后总是写一个0作为结尾标记；
+ * 打开时读到结尾标记、长度越界或校验失败（写了一半的记录）就停止，之后的追加从那里覆盖
+ * <p/>
+ * 压缩：提交线程每次提交后检查，已结束任务的记录超过COMPACT_MIN_BYTES并且占文件一半以上时，
+ * 把仍在等待的ENQUEUE记录写到新文件，force后rename替换旧文件，期间追加短暂阻塞
+ * <p/>
+ * 语义是至少一次：执行中被杀的任务重启后会再执行一次，任务需要能够重复执行
+ *
+ * @date 2016/7/12
+ */
+public class TaskJournal implements Closeable {
+    private static final String TAG = "TaskJournal";
+
+    static final byte TYPE_ENQUEUE = 1;
+    static final byte TYPE_DONE = 2;
+    // 总长度 + 类型 + id
+    private static final int HEADER_SIZE = 4 + 1 + 8;
+    private static final int CRC_SIZE = 4;
+    // 结尾标记
+    private static final int END_MARK_SIZE = 4;
+    private static final int INITIAL_MAP_SIZE = 1 << 20;
+    private static final int COMPACT_MIN_BYTES = 256 << 10;
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * 重启恢复时由描述重新创建任务
+     */
+    public interface TaskFactory {
+        /**
+         * @param descriptor 提交时记录的描述
+         * @return 要执行的任务
+         */
+        Runnable create(Serializable descriptor);
+    }
+
+    /**
+     * 一条尚未结束的任务记录
+     */
+    public static final class Entry {
+        private final long mId;
+        private final Business mThreadPoolType;
+        private final String mTag;
+        private final int mPriority;
+        private final Serializable mDescriptor;
+        // 编码后的ENQUEUE记录，压缩时原样写入新文件
+        final byte[] mRecord;
+        // 追加后的日志位置，等待这个位置提交即可确认落盘
+        long mLsn;
+
+        Entry(long id, Business type, String tag, int priority, Serializable descriptor,
+              byte[] record) {
+            mId = id;
+            mThreadPoolType = type;
+            mTag = tag;
+            mPriority = priority;
+            mDescriptor = descriptor;
+            mRecord = record;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public Business getThreadPoolType() {
+            return mThreadPoolType;
+        }
+
+        public String getTag() {
+            return mTag;
+        }
+
+        /**
+         * 优先级的值，1最高
+         */
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public Serializable getDescriptor() {
+            return mDescriptor;
+        }
+    }
+
+    // 恢复顺序：优先级高的在前，同优先级按提交顺序
+    private static final Comparator<Entry> REPLAY_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry lhs, Entry rhs) {
+            if (lhs.mPriority != rhs.mPriority) {
+                return lhs.mPriority < rhs.mPriority ? -1 : 1;
+            }
+            return lhs.mId < rhs.mId ? -1 : (lhs.mId == rhs.mId ? 0 : 1);
+        }
+    };
+
+    private final File mFile;
+    private final long mCommitIntervalNanos;
+
+    // 以下字段只在mAppendLock内访问
+    private final Object mAppendLock = new Object();
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mBuffer;
+    // 下一条记录在文件中的位置
+    private int mWritePosition;
+    // 打开以来追加的字节数，作为日志位置（lsn），压缩后也不回退
+    private long mAppended;
+    // 已结束任务占用的字节数（ENQUEUE和DONE记录）
+    private long mDeadBytes;
+    private long mNextId;
+    private boolean mClosed;
+    // id -> 尚未结束的任务
+    private final HashMap<Long, Entry> mPending = new HashMap<Long, Entry>();
+
+    // 打开时恢复出的任务，按恢复顺序排列
+    private final List<Entry> mRecovered;
+
+    // 组提交
+    private final ReentrantLock mCommitLock = new ReentrantLock();
+    private final Condition mCommitRequest = mCommitLock.newCondition();
+    private final Condition mCommitted = mCommitLock.newCondition();
+    private long mCommittedLsn;
+    private boolean mCommitRequested;
+    private boolean mClosing;
+    // 提交线程因force失败而退出时的异常，之后等待落盘的调用方直接失败
+    private Throwable mCommitFailure;
+    private final Thread mCommitter;
+
+    /**
+     * 打开日志文件，不存在时创建，并读出上次进程留下的未结束任务
+     *
+     * @param file
+     * @param commitInterval 组提交的间隔
+     * @param unit
+     * @throws IOException
+     */
+    public TaskJournal(File file, long commitInterval, TimeUnit unit) throws IOException {
+        if (commitInterval <= 0) {
+            throw new IllegalArgumentException("commitInterval <= 0");
+        }
+        mFile = file;
+        mCommitIntervalNanos = unit.toNanos(commitInterval);
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mChannel = mRandomAccessFile.getChannel();
+        try {
+            mRecovered = recover();
+        } catch (IOException e) {
+            mRandomAccessFile.close();
+            throw e;
+        }
+        mCommitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                commitLoop();
+            }
+        }, "TaskJournal " + file.getName());
+        mCommitter.setDaemon(true);
+        mCommitter.start();
+    }
+
+    /**
+     * 读出文件中的记录，重建未结束任务表
+     */
+    private List<Entry> recover() throws IOException {
+        long size = mChannel.size();
+        if (size > Integer.MAX_VALUE - END_MARK_SIZE) {
+            throw new IOException("journal too large: " + size);
+        }
+        mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+            Math.max(INITIAL_MAP_SIZE, (int) size + END_MARK_SIZE));
+        int capacity = mBuffer.capacity();
+        int position = 0;
+        long maxId = 0;
+        long liveBytes = 0;
+        CRC32 crc = new CRC32();
+        while (position + HEADER_SIZE + CRC_SIZE <= capacity) {
+            int length = mBuffer.getInt(position);
+            if (length < HEADER_SIZE + CRC_SIZE || length > capacity - position) {
+                break;
+            }
+            byte[] record = new byte[length];
+            mBuffer.position(position);
+            mBuffer.get(record);
+            crc.reset();
+            crc.update(record, 4, length - 4 - CRC_SIZE);
+            if ((int) crc.getValue() != ByteBuffer.wrap(record).getInt(length - CRC_SIZE)) {
+                // 写了一半的记录
+                break;
+            }
+            byte type = record[4];
+            long id = ByteBuffer.wrap(record).getLong(5);
+            maxId = Math.max(maxId, id);
+            if (type == TYPE_ENQUEUE) {
+                Entry entry = decode(id, record);
+                if (entry != null) {
+                    mPending.put(id, entry);
+                    liveBytes += length;
+                }
+            } else if (type == TYPE_DONE) {
+                Entry entry = mPending.remove(id);
+                if (entry != null) {
+                    liveBytes -= entry.mRecord.length;
+                }
+            } else {
+                break;
+            }
+            position += length;
+        }
+        // 覆盖可能残留的半条记录
+        mBuffer.putInt(position, 0);
+        mWritePosition = position;
+        mDeadBytes = position - liveBytes;
+        mNextId = maxId + 1;
+        List<Entry> recovered = new ArrayList<Entry>(mPending.values());
+        Collections.sort(recovered, REPLAY_ORDER);
+        return Collections.unmodifiableList(recovered);
+    }
+
+    /**
+     * 解码ENQUEUE记录，描述的类已经不存在或不兼容时丢弃这条记录
+     */
+    private Entry decode(long id, byte[] record) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record,
+                HEADER_SIZE, record.length - HEADER_SIZE - CRC_SIZE));
+            Business type = Business.valueOf(in.readUTF());
+            String tag = in.readUTF();
+            int priority = in.readInt();
+            Serializable descriptor = (Serializable) new ObjectInputStream(in).readObject();
+            return new Entry(id, type, tag, priority, descriptor, record);
+        } catch (Exception e) {
+            Platform.logDebug(TAG, "drop unreadable record " + id + ": " + e);
+            return null;
+        }
+    }
+
+    private static byte[] encode(byte type, long id, byte[] body, int offset, int length) {
+        byte[] record = new byte[HEADER_SIZE + length + CRC_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(record.length);
+        buffer.put(type);
+        buffer.putLong(id);
+        buffer.put(body, offset, length);
+        CRC32 crc = new CRC32();
+        crc.update(record, 4, record.length - 4 - CRC_SIZE);
+        buffer.putInt((int) crc.getValue());
+        return record;
+    }
+
+    /**
+     * 打开时恢复出的未结束任务，优先级高的在前，同优先级按提交顺序；
+     * 这些任务仍然算作未结束，执行完后需要调用{@link #complete(long)}
+     *
+     * @return 只读列表
+     */
+    public List<Entry> getRecoveredEntries() {
+        return mRecovered;
+    }
+
+    /**
+     * 追加一条ENQUEUE记录，不等待落盘
+     *
+     * @param descriptor 任务的描述，重启后交给{@link TaskFactory}重新创建任务
+     * @param priority   优先级的值
+     * @param type       线程池类型，不能为null
+     * @param tag        线程池标签，不能为null
+     * @return 新的任务记录
+     * @throws IOException 描述无法序列化，或日志已经关闭
+     */
+    public Entry append(Serializable descriptor, int priority, Business type, String tag)
+        throws IOException {
+        if (type == null || tag == null) {
+            throw new NullPointerException("type == null || tag == null");
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(type.name());
+        out.writeUTF(tag);
+        out.writeInt(priority);
+        ObjectOutputStream objectOut = new ObjectOutputStream(out);
+        objectOut.writeObject(descriptor);
+        objectOut.flush();
+        byte[] body = bytes.toByteArray();
+        synchronized (mAppendLock) {
+            if (mClosed) {
+                throw new IOException("TaskJournal closed");
+            }
+            long id = mNextId++;
+            Entry entry = new Entry(id, type, tag, priority, descriptor,
+                encode(TYPE_ENQUEUE, id, body, 0, body.length));
+            entry.mLsn = appendLocked(entry.mRecord);
+            mPending.put(id, entry);
+            return entry;
+        }
+    }
+
+    /**
+     * 任务执行结束或被取消，追加一条DONE记录；日志已经关闭时什么都不做，任务在下次启动时恢复
+     *
+     * @param id
+     */
+    public void complete(long id) {
+        synchronized (mAppendLock) {
+            if (mClosed) {
+                return;
+            }
+            Entry entry = mPending.get(id);
+            if (entry == null) {
+                return;
+            }
+            byte[] record = encode(TYPE_DONE, id, EMPTY, 0, 0);
+            try {
+                appendLocked(record);
+            } catch (IOException e) {
+                // 没有记下DONE，任务在下次启动时再执行一次
+                Platform.logDebug(TAG, "complete " + id + " failed: " + e.getMessage());
+                return;
+            }
+            mPending.remove(id);
+            mDeadBytes += entry.mRecord.length + record.length;
+        }
+    }
+
+    /**
+     * 写入映射区，空间不够时扩大文件重新映射
+     *
+     * @return 追加之后的日志位置
+     */
+    private long appendLocked(byte[] record) throws IOException {
+        int required = mWritePosition + record.length + END_MARK_SIZE;
+        if (required < 0) {
+            throw new IOException("journal too large");
+        }
+        if (required > mBuffer.capacity()) {
+            long capacity = Math.max((long) mBuffer.capacity() * 2, required);
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.min(capacity, Integer.MAX_VALUE));
+        }
+        // 先写结尾标记再写记录：进程在中途被杀时，恢复读到的是0或者校验失败的半条记录
+        mBuffer.putInt(mWritePosition + record.length, 0);
+        mBuffer.position(mWritePosition);
+        mBuffer.put(record);
+        mWritePosition += record.length;
+        mAppended += record.length;
+        return mAppended;
+    }
+
+    /**
+     * 等待日志位置lsn之前的记录落盘，在等待的调用方合并到同一次force
+     *
+     * @param lsn {@link Entry}追加后的日志位置
+     * @throws IOException 提交线程因force失败已经退出，记录不会再落盘
+     */
+    void awaitCommitted(long lsn) throws IOException {
+        mCommitLock.lock();
+        try {
+            while (mCommittedLsn < lsn) {
+                if (mCommitFailure != null) {
+                    throw new IOException("journal commit failed", mCommitFailure);
+                }
+                if (!mClosing) {
+                    mCommitRequested = true;
+                    mCommitRequest.signal();
+                }
+                // 关闭时由close()最后一次force之后唤醒，提交线程失败退出时也会唤醒
+                mCommitted.awaitUninterruptibly();
+            }
+        } finally {
+            mCommitLock.unlock();
+        }
+    }
+
+    /**
+     * 等待记录落盘
+     *
+     * @param entry {@link #append}返回的记录
+     * @throws IOException 提交线程因force失败已经退出，记录不会再落盘
+     */
+    public void awaitCommitted(Entry entry) throws IOException {
+        awaitCommitted(entry.mLsn);
+    }
+
+    private void commitLoop() {
+        for (; ; ) {
+            mCommitLock.lock();
+            try {
+                long remaining = mCommitIntervalNanos;
+                while (!mCommitRequested && !mClosing && remaining > 0) {
+                    remaining = mCommitRequest.awaitNanos(remaining);
+                }
+                mCommitRequested = false;
+                if (mClosing) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                mCommitLock.unlock();
+            }
+            try {
+                commit();
+            } catch (Throwable t) {
+                // force在I/O错误时抛出运行时异常，提交线程退出前让所有等待落盘的调用方失败
+                Platform.logDebug(TAG, "commit failed: " + t);
+                failCommit(t);
+                return;
+            }
+        }
+    }
+
+    private void failCommit(Throwable t) {
+        mCommitLock.lock();
+        try {
+            mCommitFailure = t;
+            mCommitted.signalAll();
+        } finally {
+            mCommitLock.unlock();
+        }
+    }
+
+    /**
+     * 一次force提交到目前为止追加的所有记录，然后检查是否需要压缩
+     */
+    private void commit() {
+        MappedByteBuffer buffer;
+        long lsn;
+        boolean compact;
+        synchronized (mAppendLock) {
+            if (mClosed) {
+                return;
+            }
+            buffer = mBuffer;
+            lsn = mAppended;
+            compact = mDeadBytes >= COMPACT_MIN_BYTES && mDeadBytes * 2 >= mWritePosition;
+        }
+        if (lsn > committedLsn()) {
+            // 在锁外force，不阻塞追加；force期间追加的记录留给下一次提交
+            buffer.force();
+            publish(lsn);
+        }
+        if (compact) {
+            try {
+                compact();
+            } catch (IOException e) {
+                Platform.logDebug(TAG, "compact failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private long committedLsn() {
+        mCommitLock.lock();
+        try {
+            return mCommittedLsn;
+        } finally {
+            mCommitLock.unlock();
+        }
+    }
+
+    private void publish(long lsn) {
+        mCommitLock.lock();
+        try {
+            if (lsn > mCommittedLsn) {
+                mCommittedLsn = lsn;
+                mCommitted.signalAll();
+            }
+        } finally {
+            mCommitLock.unlock();
+        }
+    }
+
+    /**
+     * 压缩：只保留未结束任务的ENQUEUE记录，写到新文件并force后替换旧文件
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        synchronized (mAppendLock) {
+            if (mClosed) {
+                return;
+            }
+            List<Entry> live = new ArrayList<Entry>(mPending.values());
+            // 保持原来的提交顺序
+            Collections.sort(live, new Comparator<Entry>() {
+                @Override
+                public int compare(Entry lhs, Entry rhs) {
+                    return lhs.mId < rhs.mId ? -1 : (lhs.mId == rhs.mId ? 0 : 1);
+                }
+            });
+            long liveBytes = 0;
+            for (int i = 0, size = live.size(); i < size; i++) {
+                liveBytes += live.get(i).mRecord.length;
+            }
+            long capacity = Math.max(INITIAL_MAP_SIZE, liveBytes * 2 + END_MARK_SIZE);
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IOException("journal too large");
+            }
+            File compacted = new File(mFile.getPath() + ".compact");
+            RandomAccessFile file = new RandomAccessFile(compacted, "rw");
+            boolean success = false;
+            try {
+                file.setLength(0);
+                FileChannel channel = file.getChannel();
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+                for (int i = 0, size = live.size(); i < size; i++) {
+                    buffer.put(live.get(i).mRecord);
+                }
+                buffer.putInt(0);
+                buffer.force();
+                if (!compacted.renameTo(mFile)) {
+                    throw new IOException("rename " + compacted + " failed");
+                }
+                success = true;
+                mRandomAccessFile.close();
+                mRandomAccessFile = file;
+                mChannel = channel;
+                mBuffer = buffer;
+                mWritePosition = (int) liveBytes;
+                mDeadBytes = 0;
+            } finally {
+                if (!success) {
+                    file.close();
+                    compacted.delete();
+                }
+            }
+            // 新文件已经force，之前追加的记录都已落盘
+            publish(mAppended);
+        }
+    }
+
+    /**
+     * 未结束的任务数
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        synchronized (mAppendLock) {
+            return mPending.size();
+        }
+    }
+
+    /**
+     * 关闭：最后force一次，之后的追加抛出IOException，complete被忽略；
+     * 未结束的任务留在文件中，下次打开时恢复
+     *
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        mCommitLock.lock();
+        try {
+            mClosing = true;
+            mCommitRequest.signal();
+        } finally {
+            mCommitLock.unlock();
+        }
+        boolean interrupted = false;
+        while (mCommitter.isAlive() && Thread.currentThread() != mCommitter) {
+            try {
+                mCommitter.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        long lsn;
+        synchronized (mAppendLock) {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mBuffer.force();
+            lsn = mAppended;
+            mRandomAccessFile.close();
+        }
+        publish(lsn);
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
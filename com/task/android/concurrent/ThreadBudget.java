@@ -0,0 +1,692 @@
+package com.task.android.concurrent;
+
+import com.task.android.concurrent.Config.Business;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 进程级的工作线程预算：所有线程池同时执行的任务数不超过预算，预算按权重在各线程池之间分配
+ * <p/>
+ * 每个(Business, tag)线程池注册一个{@link Share}，工作线程执行任务前领取一个许可，执行完归还。
+ * 有空闲许可时直接领取，即使超出自己的份额（空闲的份额借给繁忙的线程池）；
+ * 许可用完时工作线程排队等待，归还的许可按类似DRR（deficit round robin）的方式分配：
+ * 占用少于份额的线程池优先，其中按轮转顺序，每轮给线程池的deficit加上权重，deficit够1才分得一个许可，
+ * 借出的份额随着任务结束逐步收回，不会打断正在执行的任务
+ * <p/>
+ * 份额 = 预算 × 权重 / 活跃线程池（有任务在执行或等待）的权重之和，只有活跃的线程池参与分配
+ * <p/>
+ * 许可从任务开始执行一直持有到执行结束。任务在执行中阻塞等待另一个任务（等待它的结果、
+ * 等待流水线下游的位置）时，如果仍然占着许可，许可用完后被等待的任务永远领不到许可，形成死锁。
+ * 所以阻塞之前要用{@link #beginBlocking()}暂时归还许可，阻塞结束后用{@link #endBlocking(Share)}
+ * 重新领取：{@link PriorityFutureTask#get()}、{@link ExAsyncTask#get()}、{@link SingleFlight}
+ * 的Future和{@link Pipeline}的交接已经这样做，任务中自己等待其它任务的同步器时需要同样处理
+ * <p/>
+ * 等待许可可以被中断（例如shutdownNow）：中断后不再等待，超出预算直接放行，并保留中断状态，
+ * 由任务自己响应中断
+ * <p/>
+ * 工作队列是{@link PriorityLaneBlockingQueue}时，许可在出队时领取（{@link #tryAdmit(Share)}）：
+ * 许可用完时任务留在队列中，照常按优先级排序、过期、被取消和暂停，工作线程不拿着任务等待许可；
+ * 出队时领到的许可暂存在当前线程上，由执行任务的线程在{@link #acquire(Share)}中接手
+ * <p/>
+ * 预算为0时不启用，领取和归还都不加锁
+ *
+ * @date 2016/7/12
+ */
+public class ThreadBudget {
+    private static final String TAG = "ThreadBudget";
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    // 同时执行的任务数上限，0表示不限
+    private volatile int mBudget;
+    // 已发出的许可数
+    private int mInUse;
+    // 注册的份额，轮转顺序
+    private final ArrayList<Share> mShares = new ArrayList<Share>();
+    // 轮转指针
+    private int mCursor;
+
+    // 工作线程当前持有的许可，嵌套执行（工作窃取线程池中join子任务）时不重复领取
+    private static final ThreadLocal<Permit> sPermit = new ThreadLocal<Permit>() {
+        @Override
+        protected Permit initialValue() {
+            return new Permit();
+        }
+    };
+
+    private static final class Permit {
+        int mDepth;
+        Share mShare;
+        // 出队时已领取、还没有开始执行任务的许可
+        Share mAdmitted;
+    }
+
+    /**
+     * 一个线程池在预算中的份额
+     */
+    public final class Share {
+        final Business mThreadPoolType;
+        final String mTag;
+        // 以下字段只在mLock内访问
+        int mWeight;
+        int mInUse;
+        int mWaiting;
+        int mGranted;
+        // DRR的累计额度
+        int mDeficit;
+        long mAcquired;
+        long mBorrowed;
+        long mWaitNanos;
+        final Condition mAvailable = mLock.newCondition();
+
+        Share(Business type, String tag, int weight) {
+            mThreadPoolType = type;
+            mTag = tag;
+            mWeight = weight;
+        }
+
+        ThreadBudget budget() {
+            return ThreadBudget.this;
+        }
+    }
+
+    /**
+     * 某个线程池份额使用情况的快照
+     */
+    public static class Usage {
+        private final Business mThreadPoolType;
+        private final String mTag;
+        private final int mWeight;
+        private final int mFairShare;
+        private final int mInUse;
+        private final int mWaiting;
+        private final long mAcquired;
+        private final long mBorrowed;
+        private final long mWaitNanos;
+
+        Usage(Business type, String tag, int weight, int fairShare, int inUse, int waiting,
+              long acquired, long borrowed, long waitNanos) {
+            mThreadPoolType = type;
+            mTag = tag;
+            mWeight = weight;
+            mFairShare = fairShare;
+            mInUse = inUse;
+            mWaiting = waiting;
+            mAcquired = acquired;
+            mBorrowed = borrowed;
+            mWaitNanos = waitNanos;
+        }
+
+        public Business getThreadPoolType() {
+            return mThreadPoolType;
+        }
+
+        public String getTag() {
+            return mTag;
+        }
+
+        public int getWeight() {
+            return mWeight;
+        }
+
+        /**
+         * 按权重计算的份额，线程池不活跃时为0
+         */
+        public int getFairShare() {
+            return mFairShare;
+        }
+
+        /**
+         * 正在执行的任务数
+         */
+        public int getInUse() {
+            return mInUse;
+        }
+
+        /**
+         * 超出份额借用的许可数
+         */
+        public int getLent() {
+            return Math.max(0, mInUse - mFairShare);
+        }
+
+        /**
+         * 等待许可的工作线程数
+         */
+        public int getWaiting() {
+            return mWaiting;
+        }
+
+        /**
+         * 累计领取的许可数
+         */
+        public long getAcquiredCount() {
+            return mAcquired;
+        }
+
+        /**
+         * 累计超出份额领取的许可数
+         */
+        public long getBorrowedCount() {
+            return mBorrowed;
+        }
+
+        /**
+         * 累计等待许可的时间(ns)
+         */
+        public long getWaitNanos() {
+            return mWaitNanos;
+        }
+
+        @Override
+        public String toString() {
+            return mThreadPoolType + "/" + mTag + " weight=" + mWeight + " share=" + mFairShare
+                + " inUse=" + mInUse + " waiting=" + mWaiting + " acquired=" + mAcquired
+                + " borrowed=" + mBorrowed + " waitMs=" + mWaitNanos / 1000000;
+        }
+    }
+
+    /**
+     * 设置预算，0表示不限；调小时已发出的许可不收回，归还后不再发出
+     *
+     * @param budget
+     */
+    public void setBudget(int budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("budget < 0");
+        }
+        mLock.lock();
+        try {
+            mBudget = budget;
+            grantLocked();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    public int getBudget() {
+        return mBudget;
+    }
+
+    /**
+     * 注册线程池的份额
+     *
+     * @param type
+     * @param tag
+     * @param weight 权重，至少为1
+     * @return Share
+     */
+    Share register(Business type, String tag, int weight) {
+        mLock.lock();
+        try {
+            Share share = new Share(type, tag, Math.max(1, weight));
+            mShares.add(share);
+            return share;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 注销份额，它正在等待的工作线程直接放行，已发出的许可照常归还
+     *
+     * @param share
+     */
+    void unregister(Share share) {
+        mLock.lock();
+        try {
+            int index = mShares.indexOf(share);
+            if (index >= 0) {
+                mShares.remove(index);
+                if (mCursor > index) {
+                    mCursor--;
+                }
+            }
+            if (share.mWaiting > 0) {
+                share.mGranted += share.mWaiting;
+                share.mInUse += share.mWaiting;
+                mInUse += share.mWaiting;
+                share.mWaiting = 0;
+                share.mAvailable.signalAll();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 修改份额的权重
+     *
+     * @param share
+     * @param weight 至少为1
+     */
+    void setWeight(Share share, int weight) {
+        mLock.lock();
+        try {
+            share.mWeight = Math.max(1, weight);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 工作线程执行任务前调用：接手出队时领到的许可，没有时领取，许可用完时等待；
+     * 同一线程嵌套调用时只领取一次
+     *
+     * @param share 所在线程池的份额，null表示不受预算限制
+     */
+    void acquire(Share share) {
+        Permit permit = sPermit.get();
+        if (permit.mDepth++ > 0 || share == null) {
+            // 嵌套执行已经持有许可，出队时多领的归还
+            cancelAdmission();
+            return;
+        }
+        Share admitted = permit.mAdmitted;
+        if (admitted != null) {
+            permit.mAdmitted = null;
+            if (admitted == share) {
+                permit.mShare = share;
+                return;
+            }
+            admitted.budget().refundPermit(admitted);
+        }
+        if (mBudget == 0) {
+            return;
+        }
+        permit.mShare = share;
+        acquirePermit(share, false, -1);
+    }
+
+    /**
+     * 出队闸门：为share领取一个许可，许可用完时不等待，任务留在队列中
+     * <p/>
+     * 领到的许可暂存在当前线程上，出队的任务由当前线程执行时在{@link #acquire(Share)}中接手，
+     * 交给其它线程执行时用{@link #takeAdmission()}/{@link #restoreAdmission(Share)}转交，
+     * 没有出队到任务时用{@link #cancelAdmission()}归还
+     *
+     * @param share
+     * @return 是否可以出队
+     */
+    boolean tryAdmit(Share share) {
+        Permit permit = sPermit.get();
+        if (permit.mAdmitted == share || mBudget == 0) {
+            return true;
+        }
+        mLock.lock();
+        try {
+            if (share.mWaiting > 0 || mInUse >= mBudget) {
+                return false;
+            }
+            takePermitLocked(share);
+        } finally {
+            mLock.unlock();
+        }
+        cancelAdmission();
+        permit.mAdmitted = share;
+        return true;
+    }
+
+    /**
+     * 出队闸门：许可用完时等待许可，领到后暂存在当前线程上，再出队时不用重新领取
+     *
+     * @param share
+     * @param nanos 最多等待的时间，小于0表示不限
+     * @return 超时时返回false
+     * @throws InterruptedException 等待时被中断
+     */
+    boolean admit(Share share, long nanos) throws InterruptedException {
+        Permit permit = sPermit.get();
+        if (permit.mAdmitted == share || mBudget == 0) {
+            return true;
+        }
+        if (!acquirePermit(share, true, nanos)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            return false;
+        }
+        cancelAdmission();
+        permit.mAdmitted = share;
+        return true;
+    }
+
+    /**
+     * 当前线程是否持有share的许可，即正在（嵌套）执行这个线程池的任务
+     *
+     * @param share
+     * @return true/false
+     */
+    static boolean holdsPermit(Share share) {
+        Permit permit = sPermit.get();
+        return share != null && permit.mDepth > 0 && permit.mShare == share;
+    }
+
+    /**
+     * 取走当前线程上出队时领到的许可，交给执行任务的线程
+     *
+     * @return 没有时返回null
+     */
+    static Share takeAdmission() {
+        Permit permit = sPermit.get();
+        Share admitted = permit.mAdmitted;
+        permit.mAdmitted = null;
+        return admitted;
+    }
+
+    /**
+     * 执行任务的线程接手{@link #takeAdmission()}取走的许可
+     *
+     * @param admitted null时什么都不做
+     */
+    static void restoreAdmission(Share admitted) {
+        if (admitted == null) {
+            return;
+        }
+        cancelAdmission();
+        sPermit.get().mAdmitted = admitted;
+    }
+
+    /**
+     * 归还当前线程上出队时领到、但没有用上的许可
+     */
+    static void cancelAdmission() {
+        Share admitted = takeAdmission();
+        if (admitted != null) {
+            admitted.budget().refundPermit(admitted);
+        }
+    }
+
+    /**
+     * 出队闸门是否会因为许可用完而拒绝share出队
+     *
+     * @param share
+     * @return true/false
+     */
+    boolean isExhausted(Share share) {
+        if (mBudget == 0) {
+            return false;
+        }
+        mLock.lock();
+        try {
+            return mBudget != 0 && (share.mWaiting > 0 || mInUse >= mBudget);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 为share领取一个许可，许可用完时等待
+     *
+     * @param interruptible 被中断时放弃等待并保留中断状态，否则超出预算直接放行
+     * @param nanos         最多等待的时间，小于0表示不限
+     * @return 是否领到了许可，只有可中断或限时等待时才可能为false
+     */
+    private boolean acquirePermit(Share share, boolean interruptible, long nanos) {
+        mLock.lock();
+        try {
+            if (share.mWaiting == 0 && (mBudget == 0 || mInUse < mBudget)) {
+                takePermitLocked(share);
+                return true;
+            }
+            long start = System.nanoTime();
+            boolean timed = nanos >= 0;
+            share.mWaiting++;
+            boolean interrupted = false;
+            // 许可由grantLocked直接记到本份额名下
+            while (share.mGranted == 0 && !interrupted) {
+                try {
+                    if (!timed) {
+                        share.mAvailable.await();
+                    } else if (nanos > 0) {
+                        nanos = share.mAvailable.awaitNanos(nanos);
+                    } else {
+                        break;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            boolean acquired = true;
+            if (share.mGranted > 0) {
+                share.mGranted--;
+                share.mAcquired++;
+            } else if (interrupted && !interruptible) {
+                // 被中断且还没有分到许可：退出等待，超出预算放行，归还后自然回到预算以内
+                share.mWaiting--;
+                share.mInUse++;
+                share.mBorrowed++;
+                share.mAcquired++;
+                mInUse++;
+            } else {
+                // 超时或者放弃等待
+                share.mWaiting--;
+                acquired = false;
+            }
+            share.mWaitNanos += System.nanoTime() - start;
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return acquired;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 有空闲许可时直接发给share，超出份额时记为借用
+     */
+    private void takePermitLocked(Share share) {
+        if (share.mInUse >= fairShareLocked(share, true)) {
+            share.mBorrowed++;
+        }
+        share.mInUse++;
+        share.mAcquired++;
+        mInUse++;
+    }
+
+    /**
+     * 工作线程执行任务后调用，归还许可并分配给等待的线程池
+     */
+    void release() {
+        Permit permit = sPermit.get();
+        if (--permit.mDepth > 0) {
+            return;
+        }
+        Share share = permit.mShare;
+        if (share == null) {
+            return;
+        }
+        permit.mShare = null;
+        releasePermit(share);
+    }
+
+    /**
+     * 当前线程即将阻塞等待其它任务时调用，暂时归还持有的许可，让被等待的任务能够领到许可
+     * <p/>
+     * 必须与{@link #endBlocking(Share)}成对调用：
+     * <pre class="prettyprint">
+     * ThreadBudget.Share held = ThreadBudget.beginBlocking();
+     * try {
+     *     latch.await();
+     * } finally {
+     *     ThreadBudget.endBlocking(held);
+     * }
+     * </pre>
+     *
+     * @return 归还的许可所属的份额，当前线程没有持有许可时返回null
+     */
+    public static Share beginBlocking() {
+        Permit permit = sPermit.get();
+        Share share = permit.mShare;
+        if (share == null) {
+            return null;
+        }
+        permit.mShare = null;
+        share.budget().releasePermit(share);
+        return share;
+    }
+
+    /**
+     * 阻塞结束后重新领取{@link #beginBlocking()}归还的许可，许可用完时等待
+     *
+     * @param share beginBlocking的返回值，null时什么都不做
+     */
+    public static void endBlocking(Share share) {
+        if (share == null) {
+            return;
+        }
+        share.budget().acquirePermit(share, false, -1);
+        sPermit.get().mShare = share;
+    }
+
+    private void releasePermit(Share share) {
+        mLock.lock();
+        try {
+            share.mInUse--;
+            mInUse--;
+            grantLocked();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 归还出队时领到、但没有用上的许可，不计入领取次数
+     */
+    private void refundPermit(Share share) {
+        mLock.lock();
+        try {
+            share.mAcquired--;
+            share.mInUse--;
+            mInUse--;
+            grantLocked();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 把空闲的许可分配给等待的线程池：先在占用少于份额的线程池之间轮转，没有时在所有等待的线程池之间轮转
+     */
+    private void grantLocked() {
+        int budget = mBudget;
+        while ((budget == 0 || mInUse < budget) && !mShares.isEmpty()) {
+            Share next = nextLocked(true);
+            if (next == null) {
+                next = nextLocked(false);
+                if (next == null) {
+                    return;
+                }
+                next.mBorrowed++;
+            }
+            next.mWaiting--;
+            next.mGranted++;
+            next.mInUse++;
+            mInUse++;
+            next.mAvailable.signal();
+        }
+    }
+
+    /**
+     * DRR轮转：从指针位置开始找等待中的线程池，每经过一次加上权重，deficit够1时分得许可
+     *
+     * @param underShareOnly 只考虑占用少于份额的线程池
+     * @return 没有符合条件的线程池时返回null
+     */
+    private Share nextLocked(boolean underShareOnly) {
+        int size = mShares.size();
+        boolean found = false;
+        for (int i = 0; i < size; i++) {
+            Share share = mShares.get((mCursor + i) % size);
+            if (share.mWaiting > 0
+                && (!underShareOnly || share.mInUse < fairShareLocked(share, false))) {
+                found = true;
+                break;
+            }
+        }
+        if (!found) {
+            return null;
+        }
+        for (; ; ) {
+            if (mCursor >= size) {
+                mCursor = 0;
+            }
+            Share share = mShares.get(mCursor);
+            if (share.mWaiting > 0
+                && (!underShareOnly || share.mInUse < fairShareLocked(share, false))) {
+                if (share.mDeficit >= 1) {
+                    share.mDeficit--;
+                    return share;
+                }
+                share.mDeficit += share.mWeight;
+            } else {
+                // 不在等待的线程池不积累额度
+                share.mDeficit = 0;
+            }
+            mCursor++;
+        }
+    }
+
+    /**
+     * 份额：预算按权重在活跃的线程池之间分配，至少为1
+     *
+     * @param share
+     * @param includeSelf share即将变为活跃，计入权重之和
+     */
+    private int fairShareLocked(Share share, boolean includeSelf) {
+        int budget = mBudget;
+        if (budget == 0) {
+            return Integer.MAX_VALUE;
+        }
+        int totalWeight = 0;
+        for (int i = 0, size = mShares.size(); i < size; i++) {
+            Share other = mShares.get(i);
+            if (other.mInUse > 0 || other.mWaiting > 0 || (includeSelf && other == share)) {
+                totalWeight += other.mWeight;
+            }
+        }
+        if (totalWeight == 0) {
+            return budget;
+        }
+        return Math.max(1, budget * share.mWeight / totalWeight);
+    }
+
+    /**
+     * 获得各线程池份额使用情况的快照
+     *
+     * @return Usage列表
+     */
+    public List<Usage> getUsage() {
+        mLock.lock();
+        try {
+            List<Usage> usages = new ArrayList<Usage>(mShares.size());
+            for (int i = 0, size = mShares.size(); i < size; i++) {
+                Share share = mShares.get(i);
+                boolean active = share.mInUse > 0 || share.mWaiting > 0;
+                usages.add(new Usage(share.mThreadPoolType, share.mTag, share.mWeight,
+                    active ? fairShareLocked(share, false) : 0, share.mInUse, share.mWaiting,
+                    share.mAcquired, share.mBorrowed, share.mWaitNanos));
+            }
+            return usages;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 已发出的许可数
+     *
+     * @return
+     */
+    public int getInUse() {
+        mLock.lock();
+        try {
+            return mInUse;
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.task.android.concurrent;
+
+import com.task.android.concurrent.Config.Business;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 单个线程池的任务生命周期统计
+ * <p/>
+ * 排队时间：提交到被工作线程取出（工作队列支持出队闸门时包含暂停期间留在队列中的时间）；
+ * 暂停时间：不支持出队闸门的线程池在{@link PauseAndResumeLock#checkIn()}中等待恢复的时间；
+ * 执行时间：任务run()本身的耗时。三者分开统计，可以判断慢任务是慢在排队、暂停还是任务本身。
+ * 设置了限流时另外统计限流等待时间：任务在队头等待令牌的时间，包含在排队时间之内。
+ * 另外统计拒绝、完成、取消、过期、超出队列容量被丢弃和异常的次数
+ *
+ * @date 2016/7/10
+ */
+public class ThreadPoolMetrics {
+    private static final String TAG = "ThreadPoolMetrics";
+
+    private final Business mThreadPoolType;
+    private final String mTag;
+
+    final LatencyHistogram mQueueWait = new LatencyHistogram();
+    final LatencyHistogram mPause = new LatencyHistogram();
+    final LatencyHistogram mExecution = new LatencyHistogram();
+
+    final AtomicLong mRejected = new AtomicLong();
+    final AtomicLong mCompleted = new AtomicLong();
+    final AtomicLong mCancelled = new AtomicLong();
+    final AtomicLong mFailed = new AtomicLong();
+
+    // 开启自适应线程数后才统计：任务消耗的线程CPU时间，以及对应任务的执行墙钟时间
+    final AtomicLong mCpuNanos = new AtomicLong();
+    final AtomicLong mCpuWallNanos = new AtomicLong();
+
+    ThreadPoolMetrics(Business type, String tag) {
+        mThreadPoolType = type;
+        mTag = tag;
+    }
+
+    /**
+     * 生成快照
+     *
+     * @param executor 用于读取当前的队列长度和活动线程数
+     * @return Snapshot
+     */
+    Snapshot snapshot(ExThreadPoolExecutor executor) {
+        PriorityLaneBlockingQueue queue = executor.laneQueue();
+        return new Snapshot(mThreadPoolType, mTag, executor.getQueue().size(),
+            executor.getActiveCount(), mQueueWait.snapshot(), mPause.snapshot(),
+            mExecution.snapshot(),
+            queue != null ? queue.getThrottleWait() : new LatencyHistogram().snapshot(),
+            mRejected.get(), mCompleted.get(),
+            mCancelled.get() + (queue != null ? queue.getCancelledCount() : 0),
+            queue != null ? queue.getExpiredCount() : 0,
+            queue != null ? queue.getDroppedCount() : 0, mFailed.get());
+    }
+
+    /**
+     * 线程池统计数据的快照
+     */
+    public static class Snapshot {
+        private final Business mThreadPoolType;
+        private final String mTag;
+        private final int mQueueSize;
+        private final int mActiveCount;
+        private final LatencyHistogram.Snapshot mQueueWait;
+        private final LatencyHistogram.Snapshot mPause;
+        private final LatencyHistogram.Snapshot mExecution;
+        private final LatencyHistogram.Snapshot mThrottleWait;
+        private final long mRejected;
+        private final long mCompleted;
+        private final long mCancelled;
+        private final long mExpired;
+        private final long mDropped;
+        private final long mFailed;
+
+        Snapshot(Business type, String tag, int queueSize, int activeCount,
+                 LatencyHistogram.Snapshot queueWait, LatencyHistogram.Snapshot pause,
+                 LatencyHistogram.Snapshot execution, LatencyHistogram.Snapshot throttleWait,
+                 long rejected, long completed,
+                 long cancelled, long expired, long dropped, long failed) {
+            mThreadPoolType = type;
+            mTag = tag;
+            mQueueSize = queueSize;
+            mActiveCount = activeCount;
+            mQueueWait = queueWait;
+            mPause = pause;
+            mExecution = execution;
+            mThrottleWait = throttleWait;
+            mRejected = rejected;
+            mCompleted = completed;
+            mCancelled = cancelled;
+            mExpired = expired;
+            mDropped = dropped;
+            mFailed = failed;
+        }
+
+        public Business getThreadPoolType() {
+            return mThreadPoolType;
+        }
+
+        public String getTag() {
+            return mTag;
+        }
+
+        /**
+         * 快照时的排队任务数
+         */
+        public int getQueueSize() {
+            return mQueueSize;
+        }
+
+        /**
+         * 快照时正在执行任务的线程数
+         */
+        public int getActiveCount() {
+            return mActiveCount;
+        }
+
+        /**
+         * 排队时间：提交到被工作线程取出
+         */
+        public LatencyHistogram.Snapshot getQueueWait() {
+            return mQueueWait;
+        }
+
+        /**
+         * 线程池暂停的时长：使用出队闸门时每次暂停（pause到resume）记一次；
+         * 否则为任务在beforeExecute中等待恢复的时间，只统计确实等待过的任务
+         */
+        public LatencyHistogram.Snapshot getPause() {
+            return mPause;
+        }
+
+        /**
+         * 任务执行时间
+         */
+        public LatencyHistogram.Snapshot getExecution() {
+            return mExecution;
+        }
+
+        /**
+         * 限流等待时间：任务在队头等待令牌的时间，只统计确实等待过的任务
+         */
+        public LatencyHistogram.Snapshot getThrottleWait() {
+            return mThrottleWait;
+        }
+
+        public long getRejectedCount() {
+            return mRejected;
+        }
+
+        /**
+         * 执行结束（包括抛出异常）的任务数，不含取消的任务
+         */
+        public long getCompletedCount() {
+            return mCompleted;
+        }
+
+        /**
+         * 出队时已经被取消的任务数（包括工作队列直接丢弃的）
+         */
+        public long getCancelledCount() {
+            return mCancelled;
+        }
+
+        /**
+         * 超过截止时间、在出队时被丢弃的任务数
+         */
+        public long getExpiredCount() {
+            return mExpired;
+        }
+
+        /**
+         * 工作队列超出容量上限被丢弃（LOW_IO为按优先级舍弃）的任务数
+         */
+        public long getDroppedCount() {
+            return mDropped;
+        }
+
+        /**
+         * 执行失败的任务数：run()抛出异常，或者Future（submit、ExAsyncTask）以异常结束
+         */
+        public long getFailedCount() {
+            return mFailed;
+        }
+
+        @Override
+        public String toString() {
+            return mThreadPoolType + "/" + mTag
+                + " queued=" + mQueueSize + " active=" + mActiveCount
+                + " completed=" + mCompleted + " cancelled=" + mCancelled
+                + " expired=" + mExpired + " dropped=" + mDropped
+                + " failed=" + mFailed + " rejected=" + mRejected
+                + "\n  queueWait: " + mQueueWait
+                + "\n  pause:     " + mPause
+                + "\n  execution: " + mExecution
+                + "\n  throttle:  " + mThrottleWait;
+        }
+    }
+}
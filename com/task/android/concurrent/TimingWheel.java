@@ -0,0 +1,518 @@
+package com.task.android.concurrent;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 分层时间轮：延迟任务、周期任务和重试的定时器，到期的任务交给目标线程池按优先级执行
+ * <p/>
+ * {@link #LEVELS}层，每层{@link #SLOTS}个槽，第k层一个槽跨64^k个tick（默认1ms），
+ * 可以表示两年以上的延迟。定时器按剩余时间放进对应层的槽（双向链表），插入和取消都是O(1)；
+ * 高层的槽到期时把其中的定时器重新分配到低层（cascade），第0层的槽到期时触发。
+ * 和ScheduledThreadPoolExecutor的堆相比，几十万个待触发的定时器也没有O(log n)的开销
+ * <p/>
+ * 时间轮只由一个守护线程访问，不加锁：schedule和cancel只把定时器放进无锁的收件箱，
+ * 由时间轮线程插入或摘除。每层用一个64位的位图记录非空的槽，时间轮线程直接计算下一个
+ * 需要处理的tick并休眠到那时，没有定时器到期时不会每个tick都被唤醒
+ * <p/>
+ * 时间轮线程只做入队（交给线程池），不执行任务本身
+ *
+ * @date 2016/7/12
+ */
+public class TimingWheel {
+    private static final String TAG = "TimingWheel";
+
+    // 每层的槽数 = 2^SLOT_BITS
+    static final int SLOT_BITS = 6;
+    static final int SLOTS = 1 << SLOT_BITS;
+    static final int LEVELS = 6;
+    // 时间轮能表示的最大tick数，更远的定时器先放在最高层，cascade时重新计算
+    private static final long MAX_TICKS = 1L << (SLOT_BITS * LEVELS);
+
+    // 定时器状态
+    static final int PENDING = 0;
+    static final int RUNNING = 1;
+    static final int CANCELLED = 2;
+    static final int DONE = 3;
+
+    private final long mTickNanos;
+    private final long mStartNanos;
+    // 槽：每个槽是一个双向链表的头结点，只由时间轮线程访问
+    private final Timer[][] mWheel = new Timer[LEVELS][SLOTS];
+    // 每层非空槽的位图
+    private final long[] mOccupied = new long[LEVELS];
+    // 时间轮当前处理到的tick
+    private long mCurrentTick;
+
+    // 待插入和待摘除的定时器
+    private final ConcurrentLinkedQueue<Timer> mPendingAdds = new ConcurrentLinkedQueue<Timer>();
+    private final ConcurrentLinkedQueue<Timer> mPendingCancels =
+        new ConcurrentLinkedQueue<Timer>();
+    // 时间轮线程计划醒来的tick，醒着时为Long.MIN_VALUE，更早的定时器加入时才需要唤醒它
+    private volatile long mWakeTick = Long.MIN_VALUE;
+    private volatile boolean mShutdown;
+    // 尚未触发或取消的定时器数
+    private final AtomicInteger mPending = new AtomicInteger();
+    private final Thread mThread;
+
+    /**
+     * 定时器句柄
+     */
+    public static class Timer {
+        final Runnable mTask;
+        final Target mTarget;
+        final int mPriority;
+        // 周期(tick)，0表示一次性
+        final long mPeriodTicks;
+        final TimingWheel mWheel;
+        long mDeadlineTick;
+        final AtomicInteger mState = new AtomicInteger(PENDING);
+        // 以下字段只由时间轮线程访问
+        Timer mPrev;
+        Timer mNext;
+        int mLevel = -1;
+        int mSlot;
+
+        Timer(TimingWheel wheel, Runnable task, Target target,
+              int priority, long deadlineTick, long periodTicks) {
+            mWheel = wheel;
+            mTask = task;
+            mTarget = target;
+            mPriority = priority;
+            mDeadlineTick = deadlineTick;
+            mPeriodTicks = periodTicks;
+        }
+
+        /**
+         * 取消：尚未触发的不再触发，周期任务不再安排下一次，已经交给线程池的这一次照常执行
+         *
+         * @return 是否由本次调用取消
+         */
+        public boolean cancel() {
+            for (; ; ) {
+                int state = mState.get();
+                if (state == CANCELLED || state == DONE) {
+                    return false;
+                }
+                if (mState.compareAndSet(state, CANCELLED)) {
+                    // RUNNING只出现在周期任务上，此时它不在时间轮中，不需要摘除
+                    mWheel.onCancelled(this, state == PENDING);
+                    return true;
+                }
+            }
+        }
+
+        public boolean isCancelled() {
+            return mState.get() == CANCELLED;
+        }
+
+        /**
+         * 一次性定时器已经交给线程池，或者定时器已被取消
+         */
+        public boolean isDone() {
+            int state = mState.get();
+            return state == CANCELLED || state == DONE;
+        }
+
+        /**
+         * 距离下一次触发的时间
+         *
+         * @param unit
+         * @return 已经到期时小于等于0
+         */
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mWheel.tickToNanos(mDeadlineTick) - System.nanoTime(),
+                TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * 执行到期任务的线程池，到期时才解析，线程池被移除后会重新创建
+     */
+    interface Target {
+        ExThreadPoolExecutor get();
+
+        /**
+         * pool是否仍是当前注册的线程池，被移除的线程池在下一次到期时会重新创建
+         */
+        boolean isCurrent(ExThreadPoolExecutor pool);
+    }
+
+    /**
+     * @param tick 时间轮的精度
+     * @param unit
+     * @param name 时间轮线程的名称
+     */
+    public TimingWheel(long tick, TimeUnit unit, String name) {
+        mTickNanos = unit.toNanos(tick);
+        if (mTickNanos <= 0) {
+            throw new IllegalArgumentException("tick <= 0");
+        }
+        mStartNanos = System.nanoTime();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * 添加定时器
+     *
+     * @param task     到期时执行的任务
+     * @param target   执行任务的线程池
+     * @param priority 优先级的值
+     * @param delay    首次触发的延迟
+     * @param period   周期，0表示一次性；周期任务的下一次从上一次的计划时间起算，
+     *                 上一次执行完之前不会开始下一次
+     * @param unit
+     * @return 定时器句柄
+     */
+    Timer schedule(Runnable task, Target target, int priority,
+                   long delay, long period, TimeUnit unit) {
+        if (task == null || target == null) {
+            throw new NullPointerException();
+        }
+        if (period < 0) {
+            throw new IllegalArgumentException("period < 0");
+        }
+        if (mShutdown) {
+            throw new RejectedExecutionException("TimingWheel is shut down");
+        }
+        long periodTicks = period > 0 ? Math.max(1, ceilTicks(unit.toNanos(period))) : 0;
+        Timer timer = new Timer(this, task, target, priority,
+            nanosToTick(System.nanoTime() + unit.toNanos(Math.max(0, delay))), periodTicks);
+        mPending.incrementAndGet();
+        enqueue(timer);
+        return timer;
+    }
+
+    /**
+     * 尚未触发或取消的定时器数
+     *
+     * @return
+     */
+    public int getPendingCount() {
+        return mPending.get();
+    }
+
+    /**
+     * 停止时间轮，尚未触发的定时器不再触发
+     */
+    public void shutdown() {
+        mShutdown = true;
+        LockSupport.unpark(mThread);
+    }
+
+    private void enqueue(Timer timer) {
+        mPendingAdds.offer(timer);
+        // 先入队再读mWakeTick，时间轮线程先写mWakeTick再检查收件箱，不会错过唤醒
+        if (timer.mDeadlineTick < mWakeTick) {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    private void onCancelled(Timer timer, boolean linked) {
+        mPending.decrementAndGet();
+        if (linked) {
+            mPendingCancels.offer(timer);
+        }
+    }
+
+    private long ceilTicks(long nanos) {
+        return (nanos + mTickNanos - 1) / mTickNanos;
+    }
+
+    /**
+     * 向上取整，保证不会提前触发
+     */
+    private long nanosToTick(long nanoTime) {
+        long elapsed = nanoTime - mStartNanos;
+        return elapsed <= 0 ? 0 : ceilTicks(elapsed);
+    }
+
+    private long tickToNanos(long tick) {
+        return mStartNanos + tick * mTickNanos;
+    }
+
+    private void loop() {
+        while (!mShutdown) {
+            drainInbox();
+            long nowTick = (System.nanoTime() - mStartNanos) / mTickNanos;
+            // 依次处理到当前tick为止的事件，中间没有事件的tick直接跳过
+            while (mCurrentTick < nowTick) {
+                long next = nextEventTick();
+                if (next > nowTick) {
+                    mCurrentTick = nowTick;
+                    break;
+                }
+                mCurrentTick = next;
+                processTick(next);
+            }
+            drainInbox();
+            long next = nextEventTick();
+            mWakeTick = next;
+            if (!mPendingAdds.isEmpty() || mShutdown) {
+                mWakeTick = Long.MIN_VALUE;
+                continue;
+            }
+            if (next == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                long wait = tickToNanos(next) - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(this, wait);
+                }
+            }
+            mWakeTick = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * 处理收件箱：插入新的定时器，摘除已取消的定时器
+     */
+    private void drainInbox() {
+        Timer timer;
+        while ((timer = mPendingAdds.poll()) != null) {
+            if (timer.mState.get() == PENDING) {
+                insert(timer);
+            }
+        }
+        while ((timer = mPendingCancels.poll()) != null) {
+            if (timer.mLevel >= 0) {
+                unlink(timer);
+            }
+        }
+    }
+
+    /**
+     * 按剩余时间放进对应层的槽，已经到期的直接触发
+     */
+    private void insert(Timer timer) {
+        long delta = timer.mDeadlineTick - mCurrentTick;
+        if (delta <= 0) {
+            fire(timer);
+            return;
+        }
+        long placeTick = timer.mDeadlineTick;
+        if (delta >= MAX_TICKS) {
+            // 超出时间轮的范围，先放在最高层最远的槽，cascade时重新计算
+            placeTick = mCurrentTick + MAX_TICKS - 1;
+            delta = MAX_TICKS - 1;
+        }
+        int level = 0;
+        while (delta >= (1L << (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((placeTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        Timer head = mWheel[level][slot];
+        timer.mPrev = null;
+        timer.mNext = head;
+        if (head != null) {
+            head.mPrev = timer;
+        }
+        mWheel[level][slot] = timer;
+        mOccupied[level] |= 1L << slot;
+        timer.mLevel = level;
+        timer.mSlot = slot;
+    }
+
+    private void unlink(Timer timer) {
+        int level = timer.mLevel;
+        int slot = timer.mSlot;
+        if (timer.mPrev != null) {
+            timer.mPrev.mNext = timer.mNext;
+        } else {
+            mWheel[level][slot] = timer.mNext;
+        }
+        if (timer.mNext != null) {
+            timer.mNext.mPrev = timer.mPrev;
+        }
+        if (mWheel[level][slot] == null) {
+            mOccupied[level] &= ~(1L << slot);
+        }
+        timer.mPrev = null;
+        timer.mNext = null;
+        timer.mLevel = -1;
+    }
+
+    /**
+     * 取出整个槽的链表
+     */
+    private Timer takeSlot(int level, int slot) {
+        Timer head = mWheel[level][slot];
+        mWheel[level][slot] = null;
+        mOccupied[level] &= ~(1L << slot);
+        for (Timer t = head; t != null; t = t.mNext) {
+            t.mLevel = -1;
+        }
+        return head;
+    }
+
+    /**
+     * 处理tick：先把到期的高层槽重新分配到低层，再触发第0层的槽
+     */
+    private void processTick(long tick) {
+        for (int level = LEVELS - 1; level > 0; level--) {
+            long lowMask = (1L << (SLOT_BITS * level)) - 1;
+            if ((tick & lowMask) != 0) {
+                continue;
+            }
+            int slot = (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+            Timer t = takeSlot(level, slot);
+            while (t != null) {
+                Timer next = t.mNext;
+                t.mPrev = null;
+                t.mNext = null;
+                insert(t);
+                t = next;
+            }
+        }
+        Timer t = takeSlot(0, (int) (tick & (SLOTS - 1)));
+        while (t != null) {
+            Timer next = t.mNext;
+            t.mPrev = null;
+            t.mNext = null;
+            fire(t);
+            t = next;
+        }
+    }
+
+    /**
+     * 下一个需要处理的tick：各层非空槽最早的到期（第0层）或cascade（高层）时间
+     *
+     * @return 没有定时器时返回Long.MAX_VALUE
+     */
+    private long nextEventTick() {
+        long best = Long.MAX_VALUE;
+        long now = mCurrentTick;
+        for (int level = 0; level < LEVELS; level++) {
+            long occupied = mOccupied[level];
+            if (occupied == 0) {
+                continue;
+            }
+            int shift = SLOT_BITS * level;
+            int current = (int) ((now >>> shift) & (SLOTS - 1));
+            // 从当前槽的下一个开始循环查找第一个非空槽
+            long rotated = Long.rotateRight(occupied, current + 1);
+            int offset = Long.numberOfTrailingZeros(rotated) + 1;
+            // 该槽下一次到期的tick：当前槽的起点往后offset个槽
+            long event = (((now >>> shift) + offset) << shift);
+            if (event < best) {
+                best = event;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 到期：交给目标线程池，周期任务在这一次执行完后重新加入
+     */
+    private void fire(Timer timer) {
+        if (timer.mPeriodTicks > 0) {
+            if (!timer.mState.compareAndSet(PENDING, RUNNING)) {
+                return;
+            }
+        } else {
+            if (!timer.mState.compareAndSet(PENDING, DONE)) {
+                return;
+            }
+            mPending.decrementAndGet();
+        }
+        try {
+            ExThreadPoolExecutor target = timer.mTarget.get();
+            target.execute(new FiredTask(timer, target));
+        } catch (RejectedExecutionException e) {
+            // 线程池已关闭，周期任务随之停止
+            dropped(timer, e, false);
+        }
+    }
+
+    /**
+     * 到期任务在线程池中被丢弃（超出容量上限、关闭后被拒绝策略丢弃）时需要得到通知的任务，
+     * 例如重试：这一次不会执行，也就不会再安排下一次
+     */
+    interface DropAware {
+        void onDropped(Throwable cause);
+    }
+
+    /**
+     * 交给线程池的一次触发：以FutureTask的形式入队，被丢弃时走取消流程，由done()结束或继续定时器
+     */
+    private final class FiredTask extends PriorityFutureTask<Void> {
+        private final Timer mTimer;
+        private final ExThreadPoolExecutor mTarget;
+
+        FiredTask(Timer timer, ExThreadPoolExecutor target) {
+            super(timer.mTask, null, timer.mPriority, 0);
+            mTimer = timer;
+            mTarget = target;
+        }
+
+        @Override
+        protected void done() {
+            super.done();
+            if (isCancelled()) {
+                // 已关闭但仍是当前线程池时下一次也会被拒绝；已被移除的会在下一次到期时重新创建
+                boolean retry = !mTarget.isShutdown() || !mTimer.mTarget.isCurrent(mTarget);
+                dropped(mTimer, new CancellationException("timer task dropped by "
+                    + mTarget.getmThreadPoolType() + "/" + mTarget.getmTag()), retry);
+                return;
+            }
+            reportFailure();
+            if (mTimer.mPeriodTicks > 0) {
+                reschedule(mTimer);
+            }
+        }
+    }
+
+    /**
+     * 到期任务没有执行：周期任务可以继续时跳过这一次、按周期继续，否则结束；
+     * 一次性任务通知{@link DropAware}
+     */
+    private void dropped(Timer timer, Throwable cause, boolean periodicContinues) {
+        if (timer.mPeriodTicks > 0) {
+            if (periodicContinues) {
+                reschedule(timer);
+            } else {
+                finish(timer);
+            }
+        } else if (timer.mTask instanceof DropAware) {
+            ((DropAware) timer.mTask).onDropped(cause);
+        }
+    }
+
+    /**
+     * 周期任务不再继续
+     */
+    private void finish(Timer timer) {
+        if (timer.mState.compareAndSet(RUNNING, DONE)) {
+            mPending.decrementAndGet();
+        }
+    }
+
+    /**
+     * 周期任务执行完：下一次的计划时间为上一次加一个周期，已经错过时立即触发，不会补触发多次
+     */
+    private void reschedule(Timer timer) {
+        long now = nanosToTick(System.nanoTime());
+        timer.mDeadlineTick += timer.mPeriodTicks;
+        if (timer.mDeadlineTick < now) {
+            timer.mDeadlineTick = now;
+        }
+        if (mShutdown) {
+            finish(timer);
+            return;
+        }
+        if (timer.mState.compareAndSet(RUNNING, PENDING)) {
+            enqueue(timer);
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package com.task.android.concurrent;
+
+import com.task.android.concurrent.Config.Business;
+import com.task.android.concurrent.Config.Priority;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 虚拟线程池：按key区分的串行或限制并发数的执行器，复用同一Business的共享线程池，
+ * 自己不创建线程
+ * <p/>
+ * 每个虚拟线程池只有一个任务队列和几个计数器，一千个key只多出一千个队列，而不是一千组线程。
+ * 任务先进入自己的{@link PriorityLaneBlockingQueue}（优先级、截止时间、已取消任务的丢弃规则不变），
+ * 同时在共享线程池中执行的“排空任务”不超过maxConcurrency个：maxConcurrency为1时严格串行，
+ * 同一key的任务按优先级、同优先级按提交顺序依次执行
+ * <p/>
+ * 排空任务每执行{@link #DRAIN_BATCH}个任务就重新排到共享线程池队尾，以队头任务的优先级排队，
+ * 积压很多任务的key不会长期占住共享线程，其它key的任务可以穿插执行
+ * <p/>
+ * pause只影响本虚拟线程池：不再派发新任务，正在执行的任务执行完后让出共享线程，
+ * 不会像{@link ExThreadPoolExecutor#pauseExecutorService()}那样让工作线程阻塞等待
+ *
+ * @date 2016/7/12
+ */
+public class VirtualPool implements Executor {
+    private static final String TAG = "VirtualPool";
+
+    // 排空任务一次最多连续执行的任务数
+    static final int DRAIN_BATCH = 8;
+
+    private final ConcurrentManager mManager;
+    private final Business mThreadPoolType;
+    private final String mKey;
+    // 本虚拟线程池的任务队列，截止时间堆和限流统计按需创建，空闲的key只占三条空通道
+    private final PriorityLaneBlockingQueue mQueue = new PriorityLaneBlockingQueue();
+    // 同时执行的任务数上限
+    private volatile int mMaxConcurrency;
+    // 已经交给共享线程池的排空任务数，不超过mMaxConcurrency
+    private final AtomicInteger mActive = new AtomicInteger();
+    private volatile boolean mPaused;
+    private volatile boolean mShutdown;
+    // 任务提交序号
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+
+    VirtualPool(ConcurrentManager manager, Business type, String key, int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency <= 0");
+        }
+        mManager = manager;
+        mThreadPoolType = type;
+        mKey = key;
+        mMaxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * 以普通优先级执行，已经实现{@link PriorityTask}的任务保留自己的优先级
+     *
+     * @param command
+     */
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        enqueue(command instanceof PriorityTask ? command : PriorityRunnable.obtain(command, 5));
+    }
+
+    /**
+     * 以指定优先级执行
+     *
+     * @param command
+     * @param priority
+     */
+    public void execute(Runnable command, Priority priority) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        enqueue(PriorityRunnable.obtain(command, PriorityRunnable.priorityValue(priority)));
+    }
+
+    /**
+     * 执行AsyncTask异步任务
+     *
+     * @param task
+     */
+    @SuppressWarnings({"rawtypes"})
+    public void execute(ExAsyncTask task) {
+        enqueue(task.prepareExecute());
+    }
+
+    private void enqueue(Runnable task) {
+        if (mShutdown) {
+            throw new RejectedExecutionException("VirtualPool " + mKey + " is shut down");
+        }
+        if (task instanceof PriorityTask) {
+            ((PriorityTask) task).markSubmitted(mSequence.incrementAndGet(), System.nanoTime());
+        }
+        mQueue.offer(task);
+        dispatch();
+    }
+
+    /**
+     * 有任务、没有暂停、排空任务数没有达到上限时，向共享线程池提交排空任务
+     */
+    private void dispatch() {
+        while (!mPaused && !mShutdown && !mQueue.isEmpty()) {
+            int active = mActive.get();
+            if (active >= mMaxConcurrency) {
+                return;
+            }
+            if (mActive.compareAndSet(active, active + 1)) {
+                submitDrain();
+            }
+        }
+    }
+
+    /**
+     * 提交排空任务，调用前已经占用了一个并发名额
+     */
+    private void submitDrain() {
+        try {
+            ExThreadPoolExecutor threadPool = mManager.initThreadPool(mThreadPoolType,
+                AsyncTag.SHARED);
+            threadPool.execute(new DrainTask(threadPool, headPriority()));
+        } catch (RejectedExecutionException e) {
+            mActive.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private int headPriority() {
+        Runnable head = mQueue.peek();
+        return head != null ? PriorityLaneBlockingQueue.priorityOf(head) : 5;
+    }
+
+    /**
+     * 共享线程上：连续执行最多DRAIN_BATCH个任务，还有任务时重新排队，否则归还并发名额
+     */
+    private void drain() {
+        try {
+            for (int i = 0; i < DRAIN_BATCH; i++) {
+                if (mPaused || mShutdown || mActive.get() > mMaxConcurrency) {
+                    break;
+                }
+                Runnable task = mQueue.poll();
+                if (task == null) {
+                    break;
+                }
+                try {
+                    task.run();
+                } finally {
+                    mCompleted.incrementAndGet();
+                    PriorityRunnable.recycle(task);
+                }
+            }
+        } finally {
+            // 任务抛出的异常由DrainTask交给UncaughtExceptionHandler，名额在这里归还或转交
+            if (!mPaused && !mShutdown && mActive.get() <= mMaxConcurrency
+                && !mQueue.isEmpty()) {
+                // 保留并发名额，排到共享线程池队尾，让其它key的任务有机会执行
+                submitDrain();
+            } else {
+                mActive.decrementAndGet();
+                // 归还名额和入队之间可能有新任务到达，它看到名额已满没有提交排空任务，这里补上
+                dispatch();
+            }
+        }
+    }
+
+    /**
+     * 排空任务：以FutureTask的形式进入共享线程池，不参与容量上限的丢弃；
+     * 共享线程池被移除或关闭时取出、丢弃的排空任务被取消，归还并发名额，
+     * 否则名额永远不会归还，maxConcurrency为1的key就此停住
+     */
+    private final class DrainTask extends PriorityFutureTask<Void>
+        implements PriorityLaneBlockingQueue.NonSheddable {
+        private final ExThreadPoolExecutor mThreadPool;
+
+        DrainTask(ExThreadPoolExecutor threadPool, int priority) {
+            super(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, null, priority, 0);
+            mThreadPool = threadPool;
+        }
+
+        @Override
+        protected void done() {
+            super.done();
+            if (isCancelled()) {
+                mActive.decrementAndGet();
+                // 共享线程池已被移除时在重新创建的线程池中继续；仍是当前线程池说明它已关闭，
+                // 重新提交只会再被拒绝，留到下一次提交时派发
+                if (mManager.getThreadPool(mThreadPoolType, AsyncTag.SHARED) != mThreadPool) {
+                    dispatch();
+                }
+                return;
+            }
+            reportFailure();
+        }
+    }
+
+    /**
+     * 暂停：不再派发任务，正在执行的任务不受影响，执行完后让出共享线程
+     */
+    public void pause() {
+        mPaused = true;
+    }
+
+    /**
+     * 恢复派发
+     */
+    public void resume() {
+        mPaused = false;
+        dispatch();
+    }
+
+    public boolean isPaused() {
+        return mPaused;
+    }
+
+    /**
+     * 修改同时执行的任务数上限，调小时多出的排空任务在执行完当前任务后退出
+     *
+     * @param maxConcurrency
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency <= 0");
+        }
+        mMaxConcurrency = maxConcurrency;
+        dispatch();
+    }
+
+    public int getMaxConcurrency() {
+        return mMaxConcurrency;
+    }
+
+    /**
+     * 关闭：拒绝新任务，取消尚未执行的任务，正在执行的任务不中断
+     *
+     * @return 取消的任务数
+     */
+    public int shutdownNow() {
+        mShutdown = true;
+        int cancelled = 0;
+        Runnable task;
+        while ((task = mQueue.poll()) != null) {
+            if (task instanceof Future) {
+                ((Future<?>) task).cancel(false);
+            }
+            cancelled++;
+        }
+        return cancelled;
+    }
+
+    public boolean isShutdown() {
+        return mShutdown;
+    }
+
+    /**
+     * 排队中的任务数，O(n)，只适合统计用途
+     *
+     * @return
+     */
+    public int getQueueSize() {
+        return mQueue.size();
+    }
+
+    /**
+     * 占用共享线程的排空任务数（包括在共享线程池中排队的）
+     *
+     * @return
+     */
+    public int getActiveCount() {
+        return mActive.get();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    public Business getThreadPoolType() {
+        return mThreadPoolType;
+    }
+
+    public String getKey() {
+        return mKey;
+    }
+}
@@ -0,0 +1,455 @@
+package com.task.android.concurrent;
+
+import android.util.Log;
+
+import com.task.android.concurrent.Config.Business;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 每个任务运行在一个虚拟线程上的线程池，用于LOW_IO（网络/进程间通信）业务，需要JDK 21+
+ * <p/>
+ * 阻塞的网络调用只会挂起虚拟线程，不再占住平台线程，几百个并发的慢请求只需要少量载体线程。
+ * 并发数由信号量限制：任务先按优先级进入工作队列，拿到许可后才取出队列中优先级最高的任务，
+ * 在新的虚拟线程上执行，执行完释放许可并继续派发，所以优先级准入不变；
+ * 暂停/恢复与{@link ExThreadPoolExecutor}一致：暂停期间不再派发，恢复时重新派发；
+ * 被限流时（{@link #setRateLimit(double, int)}）由一个休眠的虚拟线程在下一个令牌的时间重新派发；
+ * 线程预算的许可用完时由一个虚拟线程等待许可，领到后出队执行，任务在此之前留在队列中
+ * <p/>
+ * 虚拟线程通过反射创建，低版本JDK和Android上{@link #isSupported()}返回false，
+ * 由{@link ConcurrentFactory}退回普通的{@link ExThreadPoolExecutor}
+ *
+ * @date 2016/7/9
+ */
+public class VirtualThreadPoolExecutor extends ExThreadPoolExecutor {
+    private static final String TAG = "VirtualThreadPoolExecutor";
+
+    // 是否支持虚拟线程，null表示尚未检测
+    private static volatile Boolean sSupported;
+
+    // 虚拟线程工厂
+    private final ThreadFactory mVirtualThreadFactory;
+    // 并发数限制
+    private final ResizableSemaphore mPermits;
+    private volatile int mMaxConcurrency;
+    // 正在执行任务的线程，用于shutdownNow时中断
+    private final Set<Thread> mRunningThreads =
+        Collections.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+    // 用于等待线程池终止
+    private final Object mTerminationLock = new Object();
+    // 是否已经安排了限流结束后的重新派发
+    private final AtomicBoolean mRetryScheduled = new AtomicBoolean();
+    // 是否已经有虚拟线程在等待线程预算的许可
+    private final AtomicBoolean mAdmissionScheduled = new AtomicBoolean();
+
+    /**
+     * 虚拟线程池的构造函数
+     *
+     * @param maxConcurrency  同时执行的任务数上限
+     * @param workQueue       等待许可的任务的优先级队列
+     * @param mThreadPoolType
+     * @param mTag
+     * @throws UnsupportedOperationException 当前运行环境不支持虚拟线程
+     */
+    public VirtualThreadPoolExecutor(int maxConcurrency, BlockingQueue<Runnable> workQueue,
+                                     Business mThreadPoolType, String mTag) {
+        this(maxConcurrency, workQueue, mThreadPoolType, mTag,
+            newVirtualThreadFactory(mThreadPoolType.name() + " # " + mTag + "#VT"));
+    }
+
+    VirtualThreadPoolExecutor(int maxConcurrency, BlockingQueue<Runnable> workQueue,
+                              Business mThreadPoolType, String mTag,
+                              ThreadFactory threadFactory) {
+        // 父类只用来保存工作队列、状态和各种回调，不会启动自己的工作线程
+        super(1, 1, 0L, TimeUnit.MILLISECONDS, workQueue, mThreadPoolType, mTag);
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency <= 0");
+        }
+        if (threadFactory == null) {
+            throw new UnsupportedOperationException("virtual threads require JDK 21+");
+        }
+        mVirtualThreadFactory = threadFactory;
+        mMaxConcurrency = maxConcurrency;
+        mPermits = new ResizableSemaphore(maxConcurrency);
+    }
+
+    /**
+     * 当前运行环境是否支持虚拟线程
+     *
+     * @return true/false
+     */
+    public static boolean isSupported() {
+        Boolean supported = sSupported;
+        if (supported == null) {
+            supported = newVirtualThreadFactory("probe") != null;
+            sSupported = supported;
+        }
+        return supported;
+    }
+
+    /**
+     * 通过反射调用Thread.ofVirtual().name(prefix, 0).factory()
+     *
+     * @param prefix 线程名前缀
+     * @return 虚拟线程工厂，不支持时返回null
+     */
+    private static ThreadFactory newVirtualThreadFactory(String prefix) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Object builder = ofVirtual.invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class)
+                .invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            Log.d(TAG, "virtual threads unavailable: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * 获得并发数上限
+     *
+     * @return mMaxConcurrency
+     */
+    public int getMaxConcurrency() {
+        return mMaxConcurrency;
+    }
+
+    /**
+     * 调整并发数上限：增加时立即派发排队的任务，减少时正在执行的任务不受影响，
+     * 后续任务在并发数降到新上限以下后才会派发
+     *
+     * @param maxConcurrency
+     */
+    public synchronized void setMaxConcurrency(int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency <= 0");
+        }
+        int delta = maxConcurrency - mMaxConcurrency;
+        mMaxConcurrency = maxConcurrency;
+        if (delta > 0) {
+            mPermits.release(delta);
+            dispatch();
+        } else if (delta < 0) {
+            mPermits.reducePermits(-delta);
+        }
+    }
+
+    /**
+     * 虚拟线程池的“线程数”即并发数上限
+     *
+     * @param poolSize
+     */
+    @Override
+    public void setPoolSize(int poolSize) {
+        setMaxConcurrency(poolSize);
+    }
+
+    /**
+     * 提交任务：先按优先级入队，再尝试派发
+     *
+     * @param command
+     */
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        if (isShutdown()) {
+            reject(command);
+            return;
+        }
+        markSubmitted(command);
+        if (!getQueue().offer(command)) {
+            reject(command);
+            return;
+        }
+        dispatch();
+    }
+
+    /**
+     * 批量提交：整批任务一次进入工作队列后统一派发
+     *
+     * @param commands
+     */
+    @Override
+    public void executeAll(Collection<? extends Runnable> commands) {
+        PriorityLaneBlockingQueue queue = laneQueue();
+        if (queue == null) {
+            for (Runnable command : commands) {
+                execute(command);
+            }
+            return;
+        }
+        if (!prepareBatch(commands)) {
+            return;
+        }
+        queue.offerAll(commands);
+        dispatch();
+    }
+
+    /**
+     * 只要队列不空且还有许可，就取出优先级最高的任务放到新的虚拟线程上执行
+     * <p/>
+     * 任务结束时先释放许可再调用本方法，入队的线程拿不到许可时必然有一个任务尚未释放，
+     * 它释放之后会看到新入队的任务，不会漏掉派发
+     */
+    private void dispatch() {
+        final BlockingQueue<Runnable> queue = getQueue();
+        while (!queue.isEmpty()) {
+            if (!mPermits.tryAcquire()) {
+                return;
+            }
+            Runnable task = queue.poll();
+            if (task == null) {
+                mPermits.release();
+                if (isPaused()) {
+                    // 出队闸门关闭，resume时会重新派发
+                    return;
+                }
+                long throttle = laneQueue() != null ? laneQueue().getThrottleDelayNanos() : 0;
+                if (throttle > 0) {
+                    scheduleRetry(throttle);
+                    return;
+                }
+                if (laneQueue() != null && laneQueue().isWaitingForBudget()) {
+                    scheduleAdmission();
+                    return;
+                }
+                continue;
+            }
+            Worker worker = new Worker(task);
+            Thread thread = mVirtualThreadFactory.newThread(worker);
+            if (thread == null) {
+                ThreadBudget.cancelAdmission();
+                mPermits.release();
+                reject(task);
+                return;
+            }
+            // 出队时在当前线程上领到的线程预算许可交给执行任务的虚拟线程
+            worker.mAdmission = ThreadBudget.takeAdmission();
+            thread.start();
+        }
+    }
+
+    /**
+     * 线程预算的许可用完时，由一个虚拟线程等待许可再出队执行，同一时间只安排一个；
+     * 它领到许可后先继续派发，再在自己身上执行取到的任务
+     */
+    private void scheduleAdmission() {
+        if (!mAdmissionScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = mVirtualThreadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                Runnable task = null;
+                if (mPermits.tryAcquire()) {
+                    try {
+                        task = laneQueue().pollAdmitted();
+                    } catch (InterruptedException e) {
+                        // 没有取到任务，交给下面的派发
+                    }
+                    if (task == null) {
+                        mPermits.release();
+                    }
+                }
+                mAdmissionScheduled.set(false);
+                if (task == null) {
+                    dispatch();
+                    return;
+                }
+                Worker worker = new Worker(task);
+                worker.mAdmission = ThreadBudget.takeAdmission();
+                dispatch();
+                worker.run();
+            }
+        });
+        if (thread == null) {
+            mAdmissionScheduled.set(false);
+            return;
+        }
+        thread.start();
+    }
+
+    /**
+     * 被限流时在下一个令牌的时间重新派发，同一时间只安排一次
+     *
+     * @param delayNanos
+     */
+    private void scheduleRetry(final long delayNanos) {
+        if (!mRetryScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = mVirtualThreadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delayNanos);
+                } catch (InterruptedException e) {
+                    // 继续派发
+                }
+                mRetryScheduled.set(false);
+                if (!isShutdown()) {
+                    dispatch();
+                }
+            }
+        });
+        if (thread == null) {
+            mRetryScheduled.set(false);
+            return;
+        }
+        thread.start();
+    }
+
+    @Override
+    public void resumeExecutorService() {
+        super.resumeExecutorService();
+        dispatch();
+    }
+
+    @Override
+    public int getActiveCount() {
+        return mRunningThreads.size();
+    }
+
+    @Override
+    public int getPoolSize() {
+        return mRunningThreads.size();
+    }
+
+    @Override
+    public int getLargestPoolSize() {
+        return mMaxConcurrency;
+    }
+
+    @Override
+    public int getCorePoolSize() {
+        return mMaxConcurrency;
+    }
+
+    @Override
+    public int getMaximumPoolSize() {
+        return mMaxConcurrency;
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        signalIfTerminated();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> tasks = super.shutdownNow();
+        for (Thread thread : mRunningThreads) {
+            thread.interrupt();
+        }
+        signalIfTerminated();
+        return tasks;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return isShutdown() && mRunningThreads.isEmpty() && getQueue().isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (mTerminationLock) {
+            while (!isTerminated()) {
+                long nanos = deadline - System.nanoTime();
+                if (nanos <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(mTerminationLock, nanos);
+            }
+        }
+        return true;
+    }
+
+    private void signalIfTerminated() {
+        if (isTerminated()) {
+            // 父类只在shutdown时检查终止条件，队列排空后通过purge让它完成终止
+            purge();
+            synchronized (mTerminationLock) {
+                mTerminationLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 可以减少许可数的信号量
+     */
+    private static final class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        ResizableSemaphore(int permits) {
+            super(permits);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+
+    /**
+     * 在虚拟线程上执行一个任务，结束后释放许可并继续派发
+     */
+    private final class Worker implements Runnable {
+        private final Runnable mTask;
+        // 出队时领到的线程预算许可，在start之前设置
+        ThreadBudget.Share mAdmission;
+
+        Worker(Runnable task) {
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            Thread t = Thread.currentThread();
+            mRunningThreads.add(t);
+            Throwable thrown = null;
+            try {
+                ThreadBudget.restoreAdmission(mAdmission);
+                beforeExecute(t, mTask);
+                try {
+                    mTask.run();
+                } catch (RuntimeException x) {
+                    thrown = x;
+                    throw x;
+                } catch (Error x) {
+                    thrown = x;
+                    throw x;
+                } finally {
+                    afterExecute(mTask, thrown);
+                    // 虚拟线程只执行这一个任务，不会再有下一次retire
+                    PriorityRunnable.recycleRetired();
+                }
+            } finally {
+                mRunningThreads.remove(t);
+                mPermits.release();
+                if (isShutdown()) {
+                    // 关闭后仍然把已入队的任务执行完，与ThreadPoolExecutor.shutdown一致
+                    dispatch();
+                    signalIfTerminated();
+                } else {
+                    dispatch();
+                }
+            }
+        }
+    }
+}
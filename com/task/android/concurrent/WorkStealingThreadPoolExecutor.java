@@ -0,0 +1,324 @@
+package com.task.android.concurrent;
+
+import com.task.android.concurrent.Config.Business;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 以ForkJoinPool（工作窃取）为执行引擎的CPU线程池
+ * <p/>
+ * 外部提交的任务先按优先级进入工作队列，每提交一个任务就向ForkJoinPool投递一个出队令牌，
+ * 令牌被某个工作线程执行时从工作队列取出当前优先级最高的任务运行，因此优先级和暂停/恢复的语义
+ * 与{@link ExThreadPoolExecutor}一致；暂停期间令牌取不到任务，恢复时为队列中的任务重新投递令牌
+ * <p/>
+ * 在工作线程内部再提交的任务（拆分出的子任务）直接fork到当前工作线程自己的双端队列，
+ * 不经过共享的工作队列：本线程后进先出，空闲线程从队尾窃取，减少争用并保持缓存局部性。
+ * 任务内部也可以直接使用RecursiveTask/RecursiveAction的fork/join
+ *
+ * @date 2016/7/9
+ */
+public class WorkStealingThreadPoolExecutor extends ExThreadPoolExecutor {
+    private static final String TAG = "WorkStealingThreadPoolExecutor";
+
+    // 工作窃取的执行引擎
+    private final ForkJoinPool mForkJoinPool;
+
+    /**
+     * 工作窃取线程池的构造函数
+     *
+     * @param parallelism     并行度，即工作线程数
+     * @param workQueue       外部提交任务的优先级队列
+     * @param mThreadPoolType
+     * @param mTag
+     */
+    public WorkStealingThreadPoolExecutor(int parallelism, BlockingQueue<Runnable> workQueue,
+                                          final Business mThreadPoolType, final String mTag) {
+        // 父类只用来保存工作队列、状态和各种回调，不会启动自己的工作线程
+        super(parallelism, parallelism, 0L, TimeUnit.MILLISECONDS, workQueue,
+            mThreadPoolType, mTag);
+        mForkJoinPool = new ForkJoinPool(parallelism,
+            new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                    ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                    };
+                    thread.setName(mThreadPoolType.name() + " # " + mTag + "#FJ"
+                        + mCount.getAndIncrement());
+                    return thread;
+                }
+            }, null, false);
+    }
+
+    /**
+     * 提交任务：工作线程内提交的子任务fork到本地队列，外部提交的任务按优先级进入工作队列
+     *
+     * @param command
+     */
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        if (isShutdown()) {
+            reject(command);
+            return;
+        }
+        markSubmitted(command);
+        if (isWorkerThread()) {
+            new TaskAction(command).fork();
+            return;
+        }
+        if (!getQueue().offer(command)) {
+            reject(command);
+            return;
+        }
+        mForkJoinPool.execute(new DrainAction());
+    }
+
+    /**
+     * 批量提交：整批任务一次进入工作队列，再按任务数投递出队令牌
+     *
+     * @param commands
+     */
+    @Override
+    public void executeAll(Collection<? extends Runnable> commands) {
+        PriorityLaneBlockingQueue queue = laneQueue();
+        if (queue == null || isWorkerThread()) {
+            for (Runnable command : commands) {
+                execute(command);
+            }
+            return;
+        }
+        if (!prepareBatch(commands)) {
+            return;
+        }
+        int n = queue.offerAll(commands);
+        for (int i = 0; i < n; i++) {
+            mForkJoinPool.execute(new DrainAction());
+        }
+    }
+
+    /**
+     * 当前线程是否是本线程池的工作线程
+     *
+     * @return true/false
+     */
+    private boolean isWorkerThread() {
+        Thread t = Thread.currentThread();
+        return t instanceof ForkJoinWorkerThread
+            && ((ForkJoinWorkerThread) t).getPool() == mForkJoinPool;
+    }
+
+    /**
+     * 在工作线程上运行一个任务，前后调用beforeExecute/afterExecute
+     * <p/>
+     * 暂停由工作队列的出队闸门实现，出队令牌在暂停期间取不到任务；
+     * 工作线程内fork的子任务不经过工作队列，不受暂停影响
+     *
+     * @param task
+     */
+    private void runTask(Runnable task) {
+        Thread t = Thread.currentThread();
+        // join子任务时可能在同一线程上嵌套执行，保存外层任务的开始时间
+        long[] startTime = startTimeSlot();
+        long outerStartTime = startTime[0];
+        long outerCpuTime = startTime[1];
+        beforeExecute(t, task);
+        Throwable thrown = null;
+        try {
+            task.run();
+        } catch (RuntimeException x) {
+            thrown = x;
+            throw x;
+        } catch (Error x) {
+            thrown = x;
+            throw x;
+        } finally {
+            afterExecute(task, thrown);
+            PriorityRunnable.recycleRetired();
+            startTime[0] = outerStartTime;
+            startTime[1] = outerCpuTime;
+        }
+    }
+
+    /**
+     * 运行不会被join的任务（出队令牌和fork出的子任务）：ForkJoinTask只把异常记录下来等join时抛出，
+     * 这里改为交给工作线程的UncaughtExceptionHandler，和ThreadPoolExecutor的工作线程一致，不会悄悄丢失
+     *
+     * @param task
+     */
+    private void runTaskUnjoined(Runnable task) {
+        try {
+            runTask(task);
+        } catch (Throwable x) {
+            Thread t = Thread.currentThread();
+            Thread.UncaughtExceptionHandler handler = t.getUncaughtExceptionHandler();
+            if (handler != null) {
+                handler.uncaughtException(t, x);
+            }
+        }
+    }
+
+    /**
+     * 获得执行引擎，可以直接向它提交ForkJoinTask
+     *
+     * @return mForkJoinPool
+     */
+    public ForkJoinPool getForkJoinPool() {
+        return mForkJoinPool;
+    }
+
+    /**
+     * 在本线程池中执行一个可拆分的任务并等待结果
+     *
+     * @param task
+     * @return 任务结果
+     */
+    public <T> T invoke(ForkJoinTask<T> task) {
+        return mForkJoinPool.invoke(task);
+    }
+
+    @Override
+    public void resumeExecutorService() {
+        super.resumeExecutorService();
+        // 暂停期间执行的令牌没有取到任务，按队列中剩余的任务数补发
+        for (int n = getQueue().size(); n > 0; n--) {
+            mForkJoinPool.execute(new DrainAction());
+        }
+    }
+
+    /**
+     * ForkJoinPool的并行度在创建后不能修改
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void setPoolSize(int poolSize) {
+        throw new UnsupportedOperationException("parallelism of a work-stealing pool is fixed");
+    }
+
+    /**
+     * 出队令牌和任务一一对应，没有令牌时无法稍后重试，不支持限流
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public void setRateLimit(double permitsPerSecond, int burst) {
+        throw new UnsupportedOperationException("work-stealing pool does not support rate limit");
+    }
+
+    /**
+     * ForkJoinPool的并行度在创建后不能修改，不支持自适应线程数
+     *
+     * @throws UnsupportedOperationException
+     */
+    @Override
+    public synchronized void enableAdaptiveSizing(int minPoolSize, int maxPoolSize,
+                                                  long interval, TimeUnit unit) {
+        throw new UnsupportedOperationException("parallelism of a work-stealing pool is fixed");
+    }
+
+    @Override
+    public int getActiveCount() {
+        return mForkJoinPool.getActiveThreadCount();
+    }
+
+    @Override
+    public int getPoolSize() {
+        return mForkJoinPool.getPoolSize();
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        mForkJoinPool.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        List<Runnable> tasks = super.shutdownNow();
+        mForkJoinPool.shutdownNow();
+        return tasks;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return super.isTerminated() && mForkJoinPool.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (!mForkJoinPool.awaitTermination(timeout, unit)) {
+            return false;
+        }
+        return super.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 出队令牌：从工作队列中取出当前优先级最高的任务并执行
+     */
+    private final class DrainAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            Runnable task = pollQueued();
+            if (task != null) {
+                runTaskUnjoined(task);
+            }
+            if (isShutdown() && getQueue().isEmpty()) {
+                // 父类只在shutdown时检查终止条件，队列排空后通过purge让它完成终止
+                purge();
+            }
+        }
+    }
+
+    /**
+     * 出队令牌取任务：线程预算的许可用完时令牌在这里等待许可，任务留在队列中排序，
+     * 令牌不会因为许可用完取不到任务而丢失
+     *
+     * @return 闸门关闭或队列为空时返回null
+     */
+    private Runnable pollQueued() {
+        PriorityLaneBlockingQueue queue = laneQueue();
+        if (queue == null) {
+            return getQueue().poll();
+        }
+        try {
+            return queue.pollAdmitted();
+        } catch (InterruptedException e) {
+            // shutdownNow中断了等待，任务由它取消
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * 工作线程内提交的子任务
+     */
+    private final class TaskAction extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Runnable mTask;
+
+        TaskAction(Runnable task) {
+            mTask = task;
+        }
+
+        @Override
+        protected void compute() {
+            runTaskUnjoined(mTask);
+        }
+    }
+}